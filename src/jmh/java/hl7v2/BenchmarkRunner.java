@@ -0,0 +1,25 @@
+package hl7v2;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks matching the given regex (all by default) with the GC profiler, so every result comes with
+ * its allocation rate (gc.alloc.rate.norm is bytes per operation).
+ *
+ * mvn -Pjmh compile exec:exec -Djmh.include=ParseBenchmark
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+
+        Options options = new OptionsBuilder()
+                .include(args.length > 0 && !args[0].isEmpty() ? args[0] : ".*Benchmark.*")
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,96 @@
+package hl7v2;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.util.Terser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Field extraction from a parsed ADT message: the per-path Terser reads ADTParser used to make, against one
+ * {@link SegmentSnapshot} walk followed by indexed reads of the same fields.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractBenchmark {
+
+    // the reads ADTParser made per message before it switched to a snapshot, repeats included
+    private static final String[] TERSER_READS = {
+            "MSH-4", "MSH-4",
+            "PID-3", "MSH-4", "PID-3-1", "PID-4", "MSH-4", "PID-4-1",
+            "PID-5-1", "PID-5-1", "PID-5-1", "PID-5-2", "PID-5-2", "PID-5-3",
+            "PID-8", "PID-8", "PID-8", "PID-7", "PID-7", "PID-13", "PID-13",
+            "PID-11-1", "PID-11-1", "PID-11-2", "PID-11-3", "PID-11-3", "PID-11-4", "PID-11-4", "PID-11-5", "PID-11-5",
+            "NK1-3", "NK1-2", "NK1-2-1", "NK1-2-2",
+            "NK1-4-1", "NK1-4-1", "NK1-4-2", "NK1-4-3", "NK1-4-3", "NK1-4-4", "NK1-4-4", "NK1-4-5", "NK1-4-5",
+            "NK1-5", "NK1-5",
+            "PID-18", "MSH-4", "PID-18",
+            "PV1-18", "PV1-18", "PV1-18", "PV1-18", "PV1-18", "PV1-18",
+            "PV1-2", "PV1-2", "PV1-18", "PV1-41", "PV1-41", "PV1-18", "PV1-10", "PV1-10", "PV2-3", "PV2-3",
+            "PV1-44", "PV1-44", "PV1-44", "PV1-45",
+            "PV1-7-1", "PV1-7-1", "PV1-7-2", "PV1-7-2", "PV1-7-2", "PV1-7-3", "PV1-7-3"
+    };
+
+    @Param({ "ADT-1", "ADT-2" })
+    public String sample;
+
+    private Message[] messages;
+    private int[][] reads;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+
+        String[] text = Samples.load(sample);
+        messages = new Message[text.length];
+        for (int i = 0; i < text.length; i++) {
+            messages[i] = HL7Converter.getInstance().parse(text[i]);
+        }
+
+        String[] segments = ADTParser.SEGMENTS;
+        reads = new int[TERSER_READS.length][];
+        for (int i = 0; i < reads.length; i++) {
+            String[] parts = TERSER_READS[i].split("-");
+            int segment = -1;
+            for (int s = 0; s < segments.length; s++) {
+                if (segments[s].equals(parts[0])) {
+                    segment = s;
+                }
+            }
+            reads[i] = new int[] { segment, Integer.parseInt(parts[1]), parts.length > 2 ? Integer.parseInt(parts[2]) : 1 };
+        }
+    }
+
+    private Message nextMessage() {
+        Message message = messages[next];
+        next = (next + 1) % messages.length;
+        return message;
+    }
+
+    @Benchmark
+    public void terser(Blackhole blackhole) {
+        Terser terser = new Terser(nextMessage());
+        for (String path : TERSER_READS) {
+            try {
+                blackhole.consume(terser.get(path));
+            } catch (HL7Exception e) {
+                // segment not in this message, as ADTParser used to handle for NK1
+                blackhole.consume(e);
+            }
+        }
+    }
+
+    @Benchmark
+    public void snapshot(Blackhole blackhole) throws Exception {
+        SegmentSnapshot snapshot = new SegmentSnapshot(nextMessage(), ADTParser.SEGMENTS);
+        for (int[] read : reads) {
+            blackhole.consume(snapshot.get(read[0], read[1], read[2]));
+        }
+    }
+}
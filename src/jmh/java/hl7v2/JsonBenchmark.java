@@ -0,0 +1,80 @@
+package hl7v2;
+
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON encoding and decoding of converted resources, pretty-printed and compact.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+
+    @Param({ "ADT-1", "ADT-2", "ORM-1" })
+    public String sample;
+
+    private IParser compact;
+    private IParser pretty;
+
+    private Resource[] resources;
+    private String[] compactJson;
+    private String[] prettyJson;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+
+        HL7Converter converter = HL7Converter.getInstance();
+        compact = converter.getFhirContext().newJsonParser();
+        pretty = converter.getFhirContext().newJsonParser().setPrettyPrint(true);
+
+        List<Resource> converted = new ArrayList<>();
+        for (String message : Samples.load(sample)) {
+            converted.addAll(converter.convert(message).getResources());
+        }
+        resources = converted.toArray(new Resource[0]);
+
+        compactJson = new String[resources.length];
+        prettyJson = new String[resources.length];
+        for (int i = 0; i < resources.length; i++) {
+            compactJson[i] = compact.encodeResourceToString(resources[i]);
+            prettyJson[i] = pretty.encodeResourceToString(resources[i]);
+        }
+    }
+
+    private int advance() {
+        int current = next;
+        next = (next + 1) % resources.length;
+        return current;
+    }
+
+    @Benchmark
+    public String encodeCompact() {
+        return compact.encodeResourceToString(resources[advance()]);
+    }
+
+    @Benchmark
+    public String encodePretty() {
+        return pretty.encodeResourceToString(resources[advance()]);
+    }
+
+    @Benchmark
+    public IBaseResource decodeCompact() {
+        return compact.parseResource(compactJson[advance()]);
+    }
+
+    @Benchmark
+    public IBaseResource decodePretty() {
+        return compact.parseResource(prettyJson[advance()]);
+    }
+}
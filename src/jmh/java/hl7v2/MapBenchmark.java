@@ -0,0 +1,62 @@
+package hl7v2;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FHIR resource mapping on its own, from fields already extracted, and end to end from message text.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapBenchmark {
+
+    @Param({ "ADT-1", "ADT-2", "ORM-1" })
+    public String sample;
+
+    private HL7Converter hapi;
+    private HL7Converter fast;
+    private HL7Mapping mapping;
+    private String[] messages;
+    private FieldSource[] sources;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+
+        hapi = HL7Converter.getInstance();
+        fast = new HL7Converter(hapi.getHapiContext(), hapi.getFhirContext(), true);
+        mapping = sample.startsWith("ORM") ? ORMParser.MAPPING : ADTParser.MAPPING;
+
+        messages = Samples.load(sample);
+        sources = new FieldSource[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            sources[i] = new SegmentSnapshot(hapi.parse(messages[i]), mapping.getSegments());
+        }
+    }
+
+    private int advance() {
+        int current = next;
+        next = (next + 1) % messages.length;
+        return current;
+    }
+
+    @Benchmark
+    public HL7Mapping.Result map() {
+        return mapping.apply(sources[advance()]);
+    }
+
+    @Benchmark
+    public ConversionResult convertHapi() throws Exception {
+        return hapi.convert(messages[advance()]);
+    }
+
+    @Benchmark
+    public ConversionResult convertFast() throws Exception {
+        return fast.convert(messages[advance()]);
+    }
+}
@@ -0,0 +1,47 @@
+package hl7v2;
+
+import ca.uhn.hl7v2.model.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HL7 v2 parsing: the HAPI generic parser against the {@link TokenizedMessage} fast path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({ "ADT-1", "ADT-2", "ORM-1" })
+    public String sample;
+
+    private HL7Converter converter;
+    private String[] messages;
+    private int next;
+
+    @Setup
+    public void setup() {
+        converter = HL7Converter.getInstance();
+        messages = Samples.load(sample);
+    }
+
+    private String nextMessage() {
+        String message = messages[next];
+        next = (next + 1) % messages.length;
+        return message;
+    }
+
+    @Benchmark
+    public Message hapi() throws Exception {
+        return converter.parse(nextMessage());
+    }
+
+    @Benchmark
+    public TokenizedMessage tokenize() throws Exception {
+        return TokenizedMessage.tokenize(nextMessage());
+    }
+}
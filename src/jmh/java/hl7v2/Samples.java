@@ -0,0 +1,36 @@
+package hl7v2;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the bundled sample files (ADT-1, ADT-2, ORM-1) from the classpath for the benchmarks.
+ */
+final class Samples {
+
+    private Samples() {
+    }
+
+    static String[] load(String name) {
+
+        URL url = Samples.class.getResource("/" + name + ".hl7");
+        if (url == null) {
+            throw new IllegalArgumentException("No sample named " + name);
+        }
+
+        List<String> messages = new ArrayList<>();
+        try (HL7BatchReader reader = new HL7BatchReader(Paths.get(url.toURI()))) {
+            reader.forEachRemaining(messages::add);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+        return messages.toArray(new String[0]);
+    }
+}
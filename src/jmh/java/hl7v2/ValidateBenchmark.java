@@ -0,0 +1,51 @@
+package hl7v2;
+
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FhirValidator.validateWithResult with the instance validator, as in ValidationExample, on converted resources.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ValidateBenchmark {
+
+    @Param({ "ADT-1", "ADT-2", "ORM-1" })
+    public String sample;
+
+    private FhirValidator validator;
+    private Resource[] resources;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+
+        HL7Converter converter = HL7Converter.getInstance();
+        validator = converter.getFhirContext().newValidator();
+        validator.registerValidatorModule(new FhirInstanceValidator(converter.getFhirContext()));
+
+        List<Resource> converted = new ArrayList<>();
+        for (String message : Samples.load(sample)) {
+            converted.addAll(converter.convert(message).getResources());
+        }
+        resources = converted.toArray(new Resource[0]);
+    }
+
+    @Benchmark
+    public ValidationResult validate() {
+        Resource resource = resources[next];
+        next = (next + 1) % resources.length;
+        return validator.validateWithResult(resource);
+    }
+}
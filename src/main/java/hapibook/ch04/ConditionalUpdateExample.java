@@ -2,6 +2,7 @@ package hapibook.ch04;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import hl7v2.DeliveryController;
 import org.hl7.fhir.r4.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,7 +11,7 @@ public class ConditionalUpdateExample {
 
     private static Logger log = LoggerFactory.getLogger(ConditionalUpdateExample.class);
 
-    public void run() {
+    public void run() throws Exception {
 
         // Create FhirContext for R4
         FhirContext ctx = FhirContext.forR4();
@@ -18,6 +19,9 @@ public class ConditionalUpdateExample {
         // Create a generic client for http://localhost:8080/fhir/
         IGenericClient client = ctx.newRestfulGenericClient("http://localhost:8080/fhir/");
 
+        // Limit concurrent calls to the server and retry the ones that fail for transient reasons
+        DeliveryController controller = new DeliveryController(client, 4, 1, 16, 5_000, 3);
+
         Patient patient = new Patient();
         patient.addIdentifier().setValue("J516754").setSystem("https://fhir.experiments.com/PatientAlias/BACKENDID/HCA:KYA");
         patient.addName().setFamily("TESTING").addGiven("FHIR").addGiven("TWO");
@@ -110,13 +114,13 @@ public class ConditionalUpdateExample {
         // Log the request
         log.info(ctx.newJsonParser().setPrettyPrint(true).encodeResourceToString(bundle));
 
-        Bundle response = client.transaction().withBundle(bundle).execute();
+        Bundle response = controller.transaction(bundle);
 
         // Log the response
         log.info(ctx.newJsonParser().setPrettyPrint(true).encodeResourceToString(response));
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
         ConditionalUpdateExample conditionalUpdateExample = new ConditionalUpdateExample();
         conditionalUpdateExample.run();
     }
@@ -3,6 +3,7 @@ package hapibook.ch04;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import hl7v2.DeliveryController;
 import org.hl7.fhir.r4.model.Patient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,7 +12,7 @@ public class CreateExample {
 
     private static Logger log = LoggerFactory.getLogger(CreateExample.class);
 
-    public void run() {
+    public void run() throws Exception {
 
         // create FhirContext for R4
         FhirContext ctx = FhirContext.forR4();
@@ -19,6 +20,9 @@ public class CreateExample {
         // create a generic client for http://localhost:8080/fhir/
         IGenericClient client = ctx.newRestfulGenericClient("http://localhost:8080/fhir/");
 
+        // limit concurrent calls to the server and retry the ones that fail for transient reasons
+        DeliveryController controller = new DeliveryController(client, 4, 1, 16, 5_000, 3);
+
         // create a new Patient resource similar to the one in PatientExample but do NOT specify an ID
         Patient patient = new Patient();
 
@@ -27,14 +31,15 @@ public class CreateExample {
 
         patient.addName().setFamily("TESTING").addGiven("FHIR");
 
-        // push the new Patient resource to the server
-        MethodOutcome outcome = client.create().resource(patient).execute();
+        // push the new Patient resource to the server; a create is not idempotent, so it is only retried when the
+        // server surely did not carry it out
+        MethodOutcome outcome = controller.execute(c -> c.create().resource(patient).execute(), false);
 
         // print "Created id: <id>" from the response back from the server
         log.info("Created id: " + outcome.getId().getIdPart());
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
         CreateExample createExample = new CreateExample();
         createExample.run();
     }
@@ -3,6 +3,7 @@ package hapibook.ch04;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import hl7v2.DeliveryController;
 import org.hl7.fhir.r4.model.Patient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,7 +12,7 @@ public class UpdateExample {
 
     private static Logger log = LoggerFactory.getLogger(UpdateExample.class);
 
-    public void run() {
+    public void run() throws Exception {
 
         // create FhirContext for R4
         FhirContext ctx = FhirContext.forR4();
@@ -19,6 +20,9 @@ public class UpdateExample {
         // create a generic client for http://localhost:8080/fhir/
         IGenericClient client = ctx.newRestfulGenericClient("http://localhost:8080/fhir/");
 
+        // limit concurrent calls to the server and retry the ones that fail for transient reasons
+        DeliveryController controller = new DeliveryController(client, 4, 1, 16, 5_000, 3);
+
         // read the Patient resource that you created in CreateExample
         Patient patient = client.read().resource(Patient.class).withId("1").execute();
 
@@ -26,13 +30,13 @@ public class UpdateExample {
         patient.getName().get(0).setFamily("TESTING2");
 
         // push the updated Patient resource to the server
-        MethodOutcome outcome = client.update().resource(patient).execute();
+        MethodOutcome outcome = controller.execute(c -> c.update().resource(patient).execute(), true);
 
         // print "Updated id: <id>" from the response back from the server
         log.info("Updated id: " + outcome.getId().getIdPart());
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
         UpdateExample createExample = new UpdateExample();
         createExample.run();
     }
@@ -0,0 +1,298 @@
+package hl7v2;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs {@link IGenericClient} calls in the background so a single producer can keep many requests in flight,
+ * instead of waiting a full round trip for each as the hapibook.ch04 examples do.
+ *
+ * At most window requests are in flight at once; submit blocks while the window is full, which holds back producers
+ * that outrun the server. Each request runs on one of window threads over the client factory's pooled keep-alive
+ * connections, whose size is raised to the window if needed. Each request is submitted with keys, e.g. the conditional
+ * URLs of the resources it writes, and runs after every earlier request that shares any of them, in submission order,
+ * whatever happens to the earlier ones; requests with no key in common run concurrently.
+ *
+ * Given a {@link DeliveryController}, each request also goes through its adaptive limit and retries, and a failed
+ * request completes its future with the {@link DeliveryException}.
+ */
+public class AsyncFhirClient implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncFhirClient.class);
+
+    private final DeliveryController controller;
+    private final int window;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+
+    // the last request submitted for each key that has not completed yet
+    private final Map<String, CompletableFuture<?>> tails = new HashMap<>();
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public AsyncFhirClient(IGenericClient client, int window) {
+        this(DeliveryController.direct(client), window);
+    }
+
+    public AsyncFhirClient(DeliveryController controller, int window) {
+
+        this.controller = controller;
+        this.window = window;
+        this.permits = new Semaphore(window);
+
+        IRestfulClientFactory factory = controller.getClient().getFhirContext().getRestfulClientFactory();
+        if (factory.getPoolMaxPerRoute() < window) {
+            factory.setPoolMaxPerRoute(window);
+        }
+        if (factory.getPoolMaxTotal() < window) {
+            factory.setPoolMaxTotal(window);
+        }
+
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(window, r -> {
+            Thread thread = new Thread(r, "fhir-async-" + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a call on the client, blocking while the window is full.
+     *
+     * @param keys orders this call after earlier calls with any of the same keys; empty for no ordering
+     * @param idempotent whether the call may safely be repeated, see {@link DeliveryController#execute(Function,
+     *                   boolean)}
+     */
+    public <T> CompletableFuture<T> submit(Collection<String> keys, Function<IGenericClient, T> call,
+                                           boolean idempotent) throws InterruptedException {
+
+        Objects.requireNonNull(keys, "keys");
+        Supplier<T> task = () -> {
+            try {
+                return controller.execute(call, idempotent);
+            } catch (DeliveryException e) {
+                throw new CompletionException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        };
+
+        permits.acquire();
+        CompletableFuture<T> future;
+        try {
+            future = schedule(keys, task);
+        } catch (RuntimeException | Error e) {
+            permits.release();
+            throw e;
+        }
+
+        future.whenComplete((r, e) -> {
+            if (e == null) {
+                completed.incrementAndGet();
+            }
+            else {
+                failed.incrementAndGet();
+            }
+            permits.release();
+        });
+        return future;
+    }
+
+    /**
+     * Runs the task once every earlier request with any of the keys has completed.
+     */
+    private <T> CompletableFuture<T> schedule(Collection<String> keys, Supplier<T> task) {
+
+        CompletableFuture<T> future;
+        if (keys.isEmpty()) {
+            future = CompletableFuture.supplyAsync(task, executor);
+        }
+        else {
+            synchronized (tails) {
+                List<CompletableFuture<?>> previous = new ArrayList<>(keys.size());
+                for (String key : keys) {
+                    CompletableFuture<?> tail = tails.get(key);
+                    if (tail != null && !previous.contains(tail)) {
+                        previous.add(tail);
+                    }
+                }
+                if (previous.isEmpty()) {
+                    future = CompletableFuture.supplyAsync(task, executor);
+                }
+                else if (previous.size() == 1) {
+                    future = previous.get(0).handleAsync((r, e) -> task.get(), executor);
+                }
+                else {
+                    future = CompletableFuture.allOf(previous.toArray(new CompletableFuture<?>[0]))
+                            .handleAsync((r, e) -> task.get(), executor);
+                }
+                for (String key : keys) {
+                    tails.put(key, future);
+                }
+            }
+            CompletableFuture<T> tail = future;
+            future.whenComplete((r, e) -> {
+                synchronized (tails) {
+                    for (String key : keys) {
+                        tails.remove(key, tail);
+                    }
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Posts a transaction or batch Bundle, ordered by the request URLs of the resources it writes.
+     */
+    public CompletableFuture<Bundle> transaction(Collection<String> keys, Bundle bundle) throws InterruptedException {
+        return submit(keys, c -> c.transaction().withBundle(bundle).execute(), DeliveryController.isIdempotent(bundle));
+    }
+
+    /**
+     * Creates or updates the resource at its conditional URL, or at Type/id if it has no identifier.
+     */
+    public CompletableFuture<Resource> update(Resource resource) throws InterruptedException {
+        String url = ConditionalUrls.requestUrl(resource);
+        if (url == null) {
+            throw new IllegalArgumentException(resource.fhirType() + " has neither an identifier nor an id");
+        }
+        if (url.indexOf('?') >= 0) {
+            return submit(Collections.singleton(url),
+                    c -> (Resource) c.update().resource(resource).conditionalByUrl(url).execute().getResource(), true);
+        }
+        return submit(Collections.singleton(url),
+                c -> (Resource) c.update().resource(resource).execute().getResource(), true);
+    }
+
+    /**
+     * Requests currently submitted but not completed, including those waiting on an earlier request with the same key.
+     */
+    public int getInFlight() {
+        return window - permits.availablePermits();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Waits for all submitted requests to complete.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        permits.acquire(window);
+        permits.release(window);
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Usage: AsyncFhirClient [file ...] [--repeat n] [--latency ms] [--window n]
+     *
+     * Converts the files (ADT-2 by default) and writes each message to a {@link StubFhirServer} as its own
+     * transaction, keyed by the conditional URLs of its resources, first one request at a time and then with --window
+     * requests in flight (16 by default). Logs messages/s for both.
+     */
+    public static void main(String[] args) throws Exception {
+
+        List<Path> files = new ArrayList<>();
+        int repeat = 5;
+        long latency = 20;
+        int window = 16;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--repeat".equals(args[i])) {
+                repeat = Integer.parseInt(args[++i]);
+            }
+            else if ("--latency".equals(args[i])) {
+                latency = Long.parseLong(args[++i]);
+            }
+            else if ("--window".equals(args[i])) {
+                window = Integer.parseInt(args[++i]);
+            }
+            else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            files.add(Paths.get("./src/main/resources/ADT-2.hl7"));
+        }
+
+        HL7Converter converter = HL7Converter.getInstance();
+        List<ConversionResult> results = new ArrayList<>();
+        for (int r = 0; r < repeat; r++) {
+            for (Path file : files) {
+                try (HL7BatchReader reader = new HL7BatchReader(file)) {
+                    while (reader.hasNext()) {
+                        results.add(converter.convert(reader.next()));
+                    }
+                }
+            }
+        }
+
+        try (StubFhirServer server = new StubFhirServer(converter.getFhirContext(), 0, latency)) {
+            IGenericClient client = converter.getFhirContext().newRestfulGenericClient(server.getBaseUrl());
+
+            for (int inFlight : new int[] { 1, window }) {
+                long start = System.nanoTime();
+                AsyncFhirClient async = new AsyncFhirClient(client, inFlight);
+                try {
+                    for (ConversionResult result : results) {
+                        Bundle bundle = new Bundle();
+                        bundle.setType(Bundle.BundleType.TRANSACTION);
+                        for (Resource resource : result.getResources()) {
+                            String url = ConditionalUrls.requestUrl(resource);
+                            bundle.addEntry()
+                                    .setResource(resource)
+                                    .getRequest()
+                                    .setUrl(url != null ? url : resource.fhirType())
+                                    .setMethod(url != null ? Bundle.HTTPVerb.PUT : Bundle.HTTPVerb.POST);
+                        }
+                        async.transaction(ConditionalUrls.requestUrls(result), bundle).exceptionally(e -> {
+                            log.warn("{} failed: {}", result.getControlId(), e.getMessage());
+                            return null;
+                        });
+                    }
+                } finally {
+                    async.close();
+                }
+                long elapsed = System.nanoTime() - start;
+
+                log.info("{} in flight: {} messages ({} failed), {} ms, {} messages/s", inFlight,
+                        async.getCompleted() + async.getFailed(), async.getFailed(),
+                        TimeUnit.NANOSECONDS.toMillis(elapsed), results.size() * TimeUnit.SECONDS.toNanos(1) / elapsed);
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package hl7v2;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds resources that are identical to the last version written for the same identifier, so that feeds which resend
+ * the same demographics do not create a new server version every time.
+ *
+ * Run it between conversion and delivery: {@link #check} marks the unchanged resources of a result, which
+ * {@link FhirBatchWriter} then leaves out or sends as a conditional create instead of an update, and {@link #commit}
+ * records the result's fingerprints once the writer reports it delivered. The comparison is on a 64-bit fingerprint
+ * of the resource's compact JSON without its id, without the references the writer adds.
+ *
+ * Fingerprints live in a fixed-size table of (identifier hash, fingerprint) pairs, 16 bytes each, so memory is
+ * bounded whatever the number of identifiers: an identifier whose slot is taken over by another is just written
+ * again next time. The table can be backed by a memory-mapped file, which keeps it across restarts.
+ *
+ * Until then a resource is compared with the last delivered version. A key with a checked result still waiting for
+ * its commit or {@link #invalidate} is always taken as changed, as what is in flight may be written after the last
+ * delivered version, or not at all: A delivered, then B in flight, then A again must write A. A failed batch may
+ * still have written some of its entries, so invalidate the result on failure.
+ */
+public class ChangeDetector implements Closeable {
+
+    private static final long MAGIC = 0x484c37465052494eL; // "HL7FPRIN"
+    private static final int HEADER = 16;
+
+    private final ThreadLocal<IParser> parser;
+    private final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(ChangeDetector::sha256);
+
+    private final FileChannel channel;
+    private final ByteBuffer table;
+    private final int mask;
+
+    // key hash -> checked results for it that are not yet committed or invalidated
+    private final Map<Long, Integer> pending = new HashMap<>();
+
+    private long checked;
+    private long suppressed;
+
+    /**
+     * @param file     where the table is kept, or null to keep it in memory only; a file with a different capacity is
+     *                 started afresh
+     * @param capacity rounded up to a power of two
+     */
+    public ChangeDetector(FhirContext ctx, Path file, int capacity) throws IOException {
+
+        this.parser = ThreadLocal.withInitial(() -> ctx.newJsonParser().setOmitResourceId(true));
+
+        int slots = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = slots - 1;
+        long size = HEADER + (long) slots * 16;
+
+        if (file == null) {
+            this.channel = null;
+            this.table = ByteBuffer.allocate((int) size);
+            return;
+        }
+
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean valid = channel.size() == size;
+        if (channel.size() > size) {
+            channel.truncate(size);
+        }
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (!valid || mapped.getLong(0) != MAGIC || mapped.getInt(8) != slots) {
+            for (long i = 0; i < size; i += 8) {
+                mapped.putLong((int) i, 0);
+            }
+            mapped.putLong(0, MAGIC);
+            mapped.putInt(8, slots);
+        }
+        this.table = mapped;
+    }
+
+    /**
+     * Marks each resource of the result that has an identifier and is unchanged since it was last committed, with no
+     * other check of it in flight. Every checked result must later be committed or invalidated.
+     */
+    public void check(ConversionResult result) {
+        for (Resource resource : result.getResources()) {
+            String key = ConditionalUrls.requestUrl(resource);
+            if (key == null) {
+                continue;
+            }
+            long fingerprint = hash(parser.get().encodeResourceToString(resource));
+            if (!changed(hash(key), fingerprint)) {
+                result.markUnchanged(resource);
+            }
+            result.setFingerprint(resource, fingerprint);
+        }
+    }
+
+    /**
+     * Records the fingerprints {@link #check} took of the result's resources. Call it when the result is delivered.
+     */
+    public void commit(ConversionResult result) {
+        for (Resource resource : result.getResources()) {
+            long fingerprint = result.getFingerprint(resource);
+            if (fingerprint != 0) {
+                settle(hash(ConditionalUrls.requestUrl(resource)), result.isUnchanged(resource) ? 0 : fingerprint);
+                result.setFingerprint(resource, 0);
+            }
+        }
+    }
+
+    /**
+     * Forgets the fingerprints of the result's resources, so that they are written in full next time.
+     */
+    public void invalidate(ConversionResult result) {
+        for (Resource resource : result.getResources()) {
+            String key = ConditionalUrls.requestUrl(resource);
+            if (key != null) {
+                boolean checked = result.getFingerprint(resource) != 0;
+                result.setFingerprint(resource, 0);
+                remove(hash(key), checked);
+            }
+        }
+    }
+
+    /**
+     * False if the fingerprint is the one stored for the key and nothing else is pending for it. Either way the check
+     * is pending until settled.
+     */
+    private synchronized boolean changed(long key, long fingerprint) {
+        checked++;
+        int slot = HEADER + (int) (key & mask) * 16;
+        boolean same = !pending.containsKey(key)
+                && table.getLong(slot) == key && table.getLong(slot + 8) == fingerprint;
+        pending.merge(key, 1, Integer::sum);
+        if (same) {
+            suppressed++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ends a pending check, storing its fingerprint unless 0.
+     */
+    private synchronized void settle(long key, long fingerprint) {
+        pending.computeIfPresent(key, (k, n) -> n == 1 ? null : n - 1);
+        if (fingerprint != 0) {
+            int slot = HEADER + (int) (key & mask) * 16;
+            table.putLong(slot, key);
+            table.putLong(slot + 8, fingerprint);
+        }
+    }
+
+    private synchronized void remove(long key, boolean checked) {
+        if (checked) {
+            pending.computeIfPresent(key, (k, n) -> n == 1 ? null : n - 1);
+        }
+        int slot = HEADER + (int) (key & mask) * 16;
+        if (table.getLong(slot) == key) {
+            table.putLong(slot, 0);
+            table.putLong(slot + 8, 0);
+        }
+    }
+
+    /**
+     * The first 8 bytes of the SHA-256 of the text; never 0, which marks an empty slot.
+     */
+    private long hash(String text) {
+        byte[] bytes = digest.get().digest(text.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = hash << 8 | (bytes[i] & 0xff);
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Resources with an identifier that were checked. */
+    public synchronized long getChecked() {
+        return checked;
+    }
+
+    /** Resources found unchanged. */
+    public synchronized long getSuppressed() {
+        return suppressed;
+    }
+
+    /**
+     * Flushes the table to its file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            synchronized (this) {
+                ((MappedByteBuffer) table).force();
+            }
+            channel.close();
+        }
+    }
+}
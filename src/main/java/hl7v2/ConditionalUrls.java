@@ -0,0 +1,89 @@
+package hl7v2;
+
+import org.hl7.fhir.r4.model.*;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The conditional URLs that identify the resources of a {@link ConversionResult} on the server, shared by everything
+ * that writes, orders or remembers them by identifier.
+ */
+public final class ConditionalUrls {
+
+    private ConditionalUrls() {
+    }
+
+    /**
+     * Type?identifier=system|value for the first identifier with a value, else Type/id, else null for a POST.
+     */
+    public static String requestUrl(Resource resource) {
+
+        List<Identifier> identifiers = Collections.emptyList();
+        if (resource instanceof Patient) {
+            identifiers = ((Patient) resource).getIdentifier();
+        }
+        else if (resource instanceof Encounter) {
+            identifiers = ((Encounter) resource).getIdentifier();
+        }
+        else if (resource instanceof ServiceRequest) {
+            identifiers = ((ServiceRequest) resource).getIdentifier();
+        }
+        else if (resource instanceof Practitioner) {
+            identifiers = ((Practitioner) resource).getIdentifier();
+        }
+        else if (resource instanceof Location) {
+            identifiers = ((Location) resource).getIdentifier();
+        }
+
+        for (Identifier identifier : identifiers) {
+            if (identifier.hasValue()) {
+                StringBuilder url = new StringBuilder(resource.fhirType()).append("?identifier=");
+                if (identifier.hasSystem()) {
+                    escape(url, identifier.getSystem());
+                    url.append('|');
+                }
+                escape(url, identifier.getValue());
+                return url.toString();
+            }
+        }
+
+        if (resource.hasIdElement() && resource.getIdElement().hasIdPart()) {
+            return resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+        }
+        return null;
+    }
+
+    /**
+     * The request URLs of all the result's resources that have one.
+     */
+    public static Set<String> requestUrls(ConversionResult result) {
+        Set<String> urls = new LinkedHashSet<>();
+        for (Resource resource : result.getResources()) {
+            String url = requestUrl(resource);
+            if (url != null) {
+                urls.add(url);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Only escapes the characters that would change how the query string is split, so the URL reads as written.
+     */
+    private static void escape(StringBuilder url, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '%': url.append("%25"); break;
+                case '&': url.append("%26"); break;
+                case '#': url.append("%23"); break;
+                case '+': url.append("%2B"); break;
+                case ' ': url.append("%20"); break;
+                default: url.append(c);
+            }
+        }
+    }
+}
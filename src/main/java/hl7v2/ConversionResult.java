@@ -0,0 +1,162 @@
+package hl7v2;
+
+import org.hl7.fhir.r4.model.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The FHIR resources produced from a single HL7 v2 message by {@link HL7Converter}.
+ */
+public class ConversionResult {
+
+    private final String messageType;
+    private final String triggerEvent;
+    private final String controlId;
+    private final String sendingFacility;
+
+    private Location facility;
+    private Patient patient;
+    private Encounter encounter;
+    private Practitioner practitioner;
+    private ServiceRequest serviceRequest;
+
+    private Set<Resource> unchanged;
+    private Map<Resource, Long> fingerprints;
+
+    public ConversionResult(String messageType, String triggerEvent, String controlId, String sendingFacility) {
+        this.messageType = messageType;
+        this.triggerEvent = triggerEvent;
+        this.controlId = controlId;
+        this.sendingFacility = sendingFacility;
+    }
+
+    static ConversionResult of(String messageType, String triggerEvent, String controlId, String sendingFacility, ADTParser adt) {
+        ConversionResult result = new ConversionResult(messageType, triggerEvent, controlId, sendingFacility);
+        result.facility = adt.getFacility();
+        result.patient = adt.getPatient();
+        result.encounter = adt.getEncounter();
+        result.practitioner = adt.getAttending();
+        return result;
+    }
+
+    static ConversionResult of(String messageType, String triggerEvent, String controlId, String sendingFacility, ORMParser orm) {
+        ConversionResult result = new ConversionResult(messageType, triggerEvent, controlId, sendingFacility);
+        result.patient = orm.getPatient();
+        result.encounter = orm.getEncounter();
+        result.practitioner = orm.getRequester();
+        result.serviceRequest = orm.getOrder();
+        return result;
+    }
+
+    /**
+     * The state after both messages: the later message's resources, and the earlier one's where the later has none.
+     * Nothing is marked unchanged, as the earlier resources may never have been written.
+     */
+    static ConversionResult merge(ConversionResult earlier, ConversionResult later) {
+        ConversionResult result = new ConversionResult(later.messageType, later.triggerEvent, later.controlId,
+                later.sendingFacility);
+        result.facility = later.facility != null ? later.facility : earlier.facility;
+        result.patient = later.patient != null ? later.patient : earlier.patient;
+        result.encounter = later.encounter != null ? later.encounter : earlier.encounter;
+        result.practitioner = later.practitioner != null ? later.practitioner : earlier.practitioner;
+        result.serviceRequest = later.serviceRequest != null ? later.serviceRequest : earlier.serviceRequest;
+        return result;
+    }
+
+    /** MSH-9-1, e.g. ADT or ORM. */
+    public String getMessageType() {
+        return messageType;
+    }
+
+    /** MSH-9-2, e.g. A01 or O01. */
+    public String getTriggerEvent() {
+        return triggerEvent;
+    }
+
+    /** MSH-10 */
+    public String getControlId() {
+        return controlId;
+    }
+
+    /** MSH-4 */
+    public String getSendingFacility() {
+        return sendingFacility;
+    }
+
+    public Location getFacility() {
+        return facility;
+    }
+
+    public Patient getPatient() {
+        return patient;
+    }
+
+    public Encounter getEncounter() {
+        return encounter;
+    }
+
+    public Practitioner getPractitioner() {
+        return practitioner;
+    }
+
+    public ServiceRequest getServiceRequest() {
+        return serviceRequest;
+    }
+
+    /**
+     * All non-null resources, referenced resources first.
+     */
+    public List<Resource> getResources() {
+        List<Resource> resources = new ArrayList<>(5);
+        if (facility != null) {
+            resources.add(facility);
+        }
+        if (practitioner != null) {
+            resources.add(practitioner);
+        }
+        if (patient != null) {
+            resources.add(patient);
+        }
+        if (encounter != null) {
+            resources.add(encounter);
+        }
+        if (serviceRequest != null) {
+            resources.add(serviceRequest);
+        }
+        return resources;
+    }
+
+    /**
+     * True if a {@link ChangeDetector} found the resource identical to the last one written for its identifier.
+     */
+    public boolean isUnchanged(Resource resource) {
+        return unchanged != null && unchanged.contains(resource);
+    }
+
+    void markUnchanged(Resource resource) {
+        if (unchanged == null) {
+            unchanged = Collections.newSetFromMap(new IdentityHashMap<>());
+        }
+        unchanged.add(resource);
+    }
+
+    /**
+     * The fingerprint a {@link ChangeDetector} took of the resource, or 0 if none.
+     */
+    long getFingerprint(Resource resource) {
+        Long fingerprint = fingerprints != null ? fingerprints.get(resource) : null;
+        return fingerprint != null ? fingerprint : 0;
+    }
+
+    void setFingerprint(Resource resource, long fingerprint) {
+        if (fingerprints == null) {
+            fingerprints = new IdentityHashMap<>();
+        }
+        fingerprints.put(resource, fingerprint);
+    }
+}
@@ -0,0 +1,413 @@
+package hl7v2;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Runs calls on an {@link IGenericClient} with an adaptive limit on how many run at once, and retries the ones that
+ * fail for transient reasons.
+ *
+ * The limit follows AIMD: every call that completes within the latency target raises it by 1/limit, so by about one
+ * per round trip's worth of calls, and a call that is throttled (429), finds the server unavailable (502, 503, 504),
+ * times out or exceeds the latency target cuts it by a quarter, at most once per latency target so one burst of
+ * failures does not collapse it. Calls over the limit wait for a slot.
+ *
+ * Failures that {@link DeliveryException#isTransient()} are retried up to maxAttempts, after a full-jitter
+ * exponential backoff or the server's Retry-After, whichever is longer. Retries are also limited by a budget that
+ * earns a tenth of a retry per successful call, so that a server that is down is not hit with retries of every
+ * request at once. Permanent failures, such as an OperationOutcome for an invalid resource, are thrown straight away.
+ * A failure the server may have carried out anyway ({@link DeliveryException#isAmbiguous()}) is only retried for an
+ * idempotent call, since retrying a plain create could create the resource twice.
+ */
+public class DeliveryController {
+
+    private static final Logger log = LoggerFactory.getLogger(DeliveryController.class);
+
+    private static final long BACKOFF_BASE_MILLIS = 50;
+    private static final long BACKOFF_CAP_MILLIS = 5_000;
+    private static final double BUDGET_PER_SUCCESS = 0.1;
+    private static final double BUDGET_MAX = 20;
+
+    private final IGenericClient client;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyTargetNanos;
+    private final int maxAttempts;
+    private final PipelineMetrics metrics = PipelineMetrics.getInstance();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private long lastDecrease;
+    private double budget = BUDGET_MAX;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong retriesDenied = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param maxAttempts including the first; 1 never retries
+     */
+    public DeliveryController(IGenericClient client, int initialLimit, int minLimit, int maxLimit,
+                              long latencyTargetMillis, int maxAttempts) {
+        this.client = client;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMillis);
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * No concurrency limit and no retries, i.e. the client as it is.
+     */
+    public static DeliveryController direct(IGenericClient client) {
+        return new DeliveryController(client, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, 1);
+    }
+
+    public IGenericClient getClient() {
+        return client;
+    }
+
+    /**
+     * Runs a call that is not idempotent, such as a plain create, waiting for a slot first and retrying transient
+     * failures that the server surely did not carry out.
+     */
+    public <T> T execute(Function<IGenericClient, T> call) throws DeliveryException, InterruptedException {
+        return execute(call, false);
+    }
+
+    /**
+     * Runs the call, waiting for a slot first and retrying transient failures.
+     *
+     * @param idempotent whether the call may safely be repeated, e.g. a read, an update or a conditional create; only
+     *                   then are failures retried that the server may have carried out
+     */
+    public <T> T execute(Function<IGenericClient, T> call, boolean idempotent)
+            throws DeliveryException, InterruptedException {
+
+        for (int attempt = 1; ; attempt++) {
+            acquire();
+            long start = System.nanoTime();
+            try {
+                T result = call.apply(client);
+                release(System.nanoTime() - start, false);
+                deposit();
+                return result;
+
+            } catch (BaseServerResponseException e) {
+                DeliveryException error = DeliveryException.of(e);
+                boolean overloaded = overloaded(error.getStatus());
+                release(System.nanoTime() - start, overloaded);
+                if (overloaded) {
+                    throttled.incrementAndGet();
+                }
+
+                if (!error.isTransient() || !idempotent && error.isAmbiguous() || attempt >= maxAttempts) {
+                    failed.incrementAndGet();
+                    throw error;
+                }
+                if (!withdraw()) {
+                    retriesDenied.incrementAndGet();
+                    failed.incrementAndGet();
+                    throw error;
+                }
+                retries.incrementAndGet();
+                long delay = Math.max(backoff(attempt), retryAfter(e));
+                log.debug("Retrying after {} ms, attempt {} failed with {}", delay, attempt, error.getStatus());
+                TimeUnit.MILLISECONDS.sleep(delay);
+
+            } catch (RuntimeException e) {
+                release(System.nanoTime() - start, false);
+                failed.incrementAndGet();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Posts a transaction or batch Bundle.
+     */
+    public Bundle transaction(Bundle bundle) throws DeliveryException, InterruptedException {
+        return execute(c -> c.transaction().withBundle(bundle).execute(), isIdempotent(bundle));
+    }
+
+    /**
+     * True if every entry of the Bundle may safely be repeated: a GET, HEAD, PUT or DELETE, or a POST with
+     * ifNoneExist.
+     */
+    public static boolean isIdempotent(Bundle bundle) {
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Bundle.HTTPVerb method = entry.getRequest().getMethod();
+            if (method == Bundle.HTTPVerb.POST ? !entry.getRequest().hasIfNoneExist()
+                    : method != Bundle.HTTPVerb.GET && method != Bundle.HTTPVerb.HEAD
+                    && method != Bundle.HTTPVerb.PUT && method != Bundle.HTTPVerb.DELETE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates or updates the resource at its conditional URL, or at Type/id if it has no identifier.
+     */
+    public Resource update(Resource resource) throws DeliveryException, InterruptedException {
+        String url = ConditionalUrls.requestUrl(resource);
+        if (url == null) {
+            throw new IllegalArgumentException(resource.fhirType() + " has neither an identifier nor an id");
+        }
+        if (url.indexOf('?') >= 0) {
+            return execute(c -> (Resource) c.update().resource(resource).conditionalByUrl(url).execute().getResource(),
+                    true);
+        }
+        return execute(c -> (Resource) c.update().resource(resource).execute().getResource(), true);
+    }
+
+    /**
+     * Creates the resource, unless one with the same identifier exists already (If-None-Exist). A resource without an
+     * identifier is created as it is, and then failures the server may have carried out are not retried.
+     */
+    public Resource create(Resource resource) throws DeliveryException, InterruptedException {
+        String url = ConditionalUrls.requestUrl(resource);
+        if (url != null && url.indexOf('?') >= 0) {
+            return execute(c -> (Resource) c.create().resource(resource).conditionalByUrl(url).execute().getResource(),
+                    true);
+        }
+        return execute(c -> (Resource) c.create().resource(resource).execute().getResource());
+    }
+
+    private static boolean overloaded(int status) {
+        return status == 0 || status == 408 || status == 429 || status == 502 || status == 503 || status == 504;
+    }
+
+    private void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                available.await();
+            }
+            inFlight++;
+            calls.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long latencyNanos, boolean overloaded) {
+        // one per HTTP round trip; a request carries a whole Bundle, so there is no single event or facility
+        metrics.record(PipelineMetrics.Stage.HTTP, null, null, latencyNanos);
+        lock.lock();
+        try {
+            inFlight--;
+            long now = System.nanoTime();
+            if (overloaded || latencyNanos > latencyTargetNanos) {
+                if (now - lastDecrease > latencyTargetNanos) {
+                    limit = Math.max(minLimit, limit * 0.75);
+                    lastDecrease = now;
+                }
+            }
+            else if (limit < maxLimit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private synchronized void deposit() {
+        budget = Math.min(BUDGET_MAX, budget + BUDGET_PER_SUCCESS);
+    }
+
+    private synchronized boolean withdraw() {
+        if (budget < 1) {
+            return false;
+        }
+        budget--;
+        return true;
+    }
+
+    /**
+     * A random delay between 0 and base * 2^(attempt - 1), capped.
+     */
+    private static long backoff(int attempt) {
+        long ceiling = Math.min(BACKOFF_CAP_MILLIS, BACKOFF_BASE_MILLIS << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * The Retry-After the server sent, in seconds, as milliseconds; 0 if none.
+     */
+    private static long retryAfter(BaseServerResponseException e) {
+        Map<String, List<String>> headers = e.getResponseHeaders();
+        if (headers != null) {
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if ("Retry-After".equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                    try {
+                        return TimeUnit.SECONDS.toMillis(Long.parseLong(header.getValue().get(0).trim()));
+                    } catch (NumberFormatException ignored) {
+                        // an HTTP date, which the stand-in servers never send
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+    /** The current concurrency limit. */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Attempts made, including retries. */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /** Transient failures not retried because the retry budget was spent. */
+    public long getRetriesDenied() {
+        return retriesDenied.get();
+    }
+
+    /** Attempts answered with 429, 502, 503, 504 or no response. */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /** Calls that failed after all attempts. */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Usage: DeliveryController [file ...] [--repeat n] [--latency ms] [--capacity n] [--fault-rate f] [--window n]
+     *
+     * Converts the files (ADT-2 by default) and writes each message as its own transaction, --window at a time (32 by
+     * default), to a {@link StubFhirServer} that works on --capacity requests at once (4), queues as many again and
+     * throttles the rest, and fails a fraction --fault-rate of requests with 503 (0.05). Does so first without any
+     * control, then through an adaptive controller with retries, and logs throughput, failures and retries for both.
+     */
+    public static void main(String[] args) throws Exception {
+
+        List<Path> files = new ArrayList<>();
+        int repeat = 5;
+        long latency = 20;
+        int capacity = 4;
+        double faultRate = 0.05;
+        int window = 32;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--repeat".equals(args[i])) {
+                repeat = Integer.parseInt(args[++i]);
+            }
+            else if ("--latency".equals(args[i])) {
+                latency = Long.parseLong(args[++i]);
+            }
+            else if ("--capacity".equals(args[i])) {
+                capacity = Integer.parseInt(args[++i]);
+            }
+            else if ("--fault-rate".equals(args[i])) {
+                faultRate = Double.parseDouble(args[++i]);
+            }
+            else if ("--window".equals(args[i])) {
+                window = Integer.parseInt(args[++i]);
+            }
+            else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            files.add(Paths.get("./src/main/resources/ADT-2.hl7"));
+        }
+
+        HL7Converter converter = HL7Converter.getInstance();
+        List<Bundle> bundles = new ArrayList<>();
+        for (int r = 0; r < repeat; r++) {
+            for (Path file : files) {
+                try (HL7BatchReader reader = new HL7BatchReader(file)) {
+                    while (reader.hasNext()) {
+                        Bundle bundle = new Bundle();
+                        bundle.setType(Bundle.BundleType.TRANSACTION);
+                        for (Resource resource : converter.convert(reader.next()).getResources()) {
+                            String url = ConditionalUrls.requestUrl(resource);
+                            bundle.addEntry()
+                                    .setResource(resource)
+                                    .getRequest()
+                                    .setUrl(url != null ? url : resource.fhirType())
+                                    .setMethod(url != null ? Bundle.HTTPVerb.PUT : Bundle.HTTPVerb.POST);
+                        }
+                        bundles.add(bundle);
+                    }
+                }
+            }
+        }
+
+        for (boolean adaptive : new boolean[] { false, true }) {
+            try (StubFhirServer server = new StubFhirServer(converter.getFhirContext(), 0, latency)) {
+                server.setCapacity(capacity, capacity);
+                server.setFaultRate(faultRate);
+                IGenericClient client = converter.getFhirContext().newRestfulGenericClient(server.getBaseUrl());
+                DeliveryController controller = adaptive
+                        ? new DeliveryController(client, 1, 1, window, 3 * latency, 4)
+                        : direct(client);
+
+                long start = System.nanoTime();
+                AsyncFhirClient async = new AsyncFhirClient(controller, window);
+                try {
+                    for (Bundle bundle : bundles) {
+                        async.transaction(Collections.emptySet(), bundle);
+                    }
+                } finally {
+                    async.close();
+                }
+                long elapsed = System.nanoTime() - start;
+
+                log.info("{}: {} of {} messages delivered, {} ms, {} messages/s; {} requests, {} throttled, "
+                                + "{} retries, {} retries denied, final limit {}",
+                        adaptive ? "adaptive" : "uncontrolled", async.getCompleted(), bundles.size(),
+                        TimeUnit.NANOSECONDS.toMillis(elapsed),
+                        async.getCompleted() * TimeUnit.SECONDS.toNanos(1) / elapsed, server.getRequestCount(),
+                        controller.getThrottled(), controller.getRetries(), controller.getRetriesDenied(),
+                        adaptive ? String.valueOf(controller.getLimit()) : "none");
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package hl7v2;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome;
+
+/**
+ * A write to the FHIR server that was not accepted, with the HTTP status and OperationOutcome the server gave.
+ */
+public class DeliveryException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+    private final IBaseOperationOutcome outcome;
+
+    public DeliveryException(int status, String message, IBaseOperationOutcome outcome, Throwable cause) {
+        super(message, cause);
+        this.status = status;
+        this.outcome = outcome;
+    }
+
+    /**
+     * Wraps an exception thrown by the HAPI client. Connection failures get status 0.
+     */
+    public static DeliveryException of(BaseServerResponseException e) {
+        int status = e instanceof FhirClientConnectionException ? 0 : e.getStatusCode();
+        return new DeliveryException(status, e.getMessage(), e.getOperationOutcome(), e);
+    }
+
+    /**
+     * The HTTP status of the request or of the failed entry, or 0 if there was no response.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * May be null.
+     */
+    public IBaseOperationOutcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * True if the same request may succeed later: no response, a timeout (408), throttling (429), any server error
+     * (5xx), or a 409 whose OperationOutcome reports a version conflict between concurrent writes. Anything else fails
+     * the same way again, e.g. a 400 or 422 for an invalid resource, or a 409 for a delete blocked by references.
+     */
+    public boolean isTransient() {
+        if (status == 0 || status == 408 || status == 429 || status >= 500 && status < 600) {
+            return true;
+        }
+        if (status == 409 && outcome instanceof OperationOutcome) {
+            for (OperationOutcome.OperationOutcomeIssueComponent issue : ((OperationOutcome) outcome).getIssue()) {
+                if (issue.getCode() == OperationOutcome.IssueType.CONFLICT) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * True if the server may have carried out the request even though it failed: no response, or a server error other
+     * than 503, which a server sends for a request it did not take on. Retrying such a request is only safe if it is
+     * idempotent.
+     */
+    public boolean isAmbiguous() {
+        return status == 0 || status >= 500 && status < 600 && status != 503;
+    }
+}
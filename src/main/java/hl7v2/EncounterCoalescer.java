@@ -0,0 +1,383 @@
+package hl7v2;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Holds ADT conversions for a visit for a short window and passes on only the state at the end of it.
+ *
+ * Registration systems often send an A01, a few A08s and perhaps an A02 for the same visit within seconds, each a
+ * full copy of the Patient and Encounter. The first conversion for a visit (the Encounter's identifier, from PID-18)
+ * is held until its window closes; later ones within the window replace it, keeping any resource the later message
+ * did not carry (see {@link ConversionResult#merge}). When the window closes the merged result goes to the sink once.
+ * A discharge or cancellation (A03 or A11, or an Encounter status of finished or cancelled from PV1-18 DIS or CAN) is
+ * passed on at once with whatever was held for the visit, as nothing more is expected for it.
+ *
+ * Results for one visit reach the sink in the order they were submitted, and a Patient is never written older than
+ * it was: anything held for the patient's other visits is passed on before a newer result for the patient. Messages
+ * that are not ADT, or have no visit number, are not held. The sink is called with the coalescer's lock held, so it
+ * should only queue the result, as {@link FhirBatchWriter#submit} does.
+ *
+ * A visit stays held until the sink has accepted it. If the sink throws when the timer passes a visit on, the visit
+ * is tried again a window later, and the next {@link #submit} throws the sink's exception; {@link #flush} tries
+ * everything again and throws if the sink still fails.
+ *
+ * Held results exist only in memory, so anything upstream that treats a message as safe once submitted (a spool
+ * checkpoint, an MLLP ack) should wait for the sink. Run it before a {@link ChangeDetector}, which then compares the
+ * merged state with what was last written rather than with a state that never was.
+ */
+public class EncounterCoalescer implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(EncounterCoalescer.class);
+
+    private static final Set<String> TERMINAL_EVENTS = new HashSet<>(Arrays.asList("A03", "A11"));
+
+    public interface Sink {
+        void accept(ConversionResult result) throws Exception;
+    }
+
+    private static class Held {
+
+        private final String visit;
+        private final String patient;
+        private final long deadline;
+        private ConversionResult result;
+
+        Held(String visit, String patient, long deadline, ConversionResult result) {
+            this.visit = visit;
+            this.patient = patient;
+            this.deadline = deadline;
+            this.result = result;
+        }
+    }
+
+    private final Sink sink;
+    private final long windowNanos;
+    private final int maxHeld;
+
+    // in the order each visit was first held, which is also the order their windows close
+    private final LinkedHashMap<String, Held> held = new LinkedHashMap<>();
+    private final Map<String, List<Held>> heldByPatient = new HashMap<>();
+    private final Thread timer;
+    private boolean closed;
+    // what the sink last threw at the timer, until submit reports it
+    private Exception failure;
+
+    private long received;
+    private long written;
+    private long resourcesReceived;
+    private long resourcesWritten;
+    private long failed;
+
+    /**
+     * @param windowMillis how long to hold the first result for a visit; 0 passes everything straight on
+     * @param maxHeld      the most visits to hold at once; beyond that the oldest is passed on early
+     */
+    public EncounterCoalescer(Sink sink, long windowMillis, int maxHeld) {
+        this.sink = sink;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxHeld = maxHeld;
+        this.timer = new Thread(this::expire, "encounter-coalescer");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    public synchronized void submit(ConversionResult result) throws Exception {
+        if (closed) {
+            throw new IllegalStateException("Coalescer is closed");
+        }
+        if (failure != null) {
+            Exception e = failure;
+            failure = null;
+            throw e;
+        }
+        received++;
+        resourcesReceived += result.getResources().size();
+
+        String visit = "ADT".equals(result.getMessageType()) && result.getEncounter() != null
+                ? ConditionalUrls.requestUrl(result.getEncounter()) : null;
+        String patient = result.getPatient() != null ? ConditionalUrls.requestUrl(result.getPatient()) : null;
+        if (patient != null) {
+            releasePatient(patient, visit);
+        }
+        if (visit == null || windowNanos == 0) {
+            write(result);
+            return;
+        }
+
+        Held current = held.get(visit);
+        if (current != null) {
+            current.result = ConversionResult.merge(current.result, result);
+            if (terminal(result)) {
+                release(current);
+            }
+        }
+        else if (terminal(result)) {
+            write(result);
+        }
+        else {
+            current = new Held(visit, patient, System.nanoTime() + windowNanos, result);
+            held.put(visit, current);
+            if (patient != null) {
+                heldByPatient.computeIfAbsent(patient, k -> new ArrayList<>(1)).add(current);
+            }
+            if (held.size() > maxHeld) {
+                release(held.values().iterator().next());
+            }
+            if (held.size() == 1) {
+                // the timer may be waiting with nothing held
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Passes on everything held.
+     */
+    public synchronized void flush() throws Exception {
+        failure = null;
+        while (!held.isEmpty()) {
+            release(held.values().iterator().next());
+        }
+    }
+
+    /**
+     * Passes on everything held and stops the timer. Logs how many writes were saved.
+     */
+    @Override
+    public void close() throws Exception {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+            flush();
+        }
+        timer.join();
+        log.info("Coalesced {} messages into {} writes, {} of {} resources ({} fewer)", received, written,
+                resourcesWritten, resourcesReceived, String.format("%.1f%%", getReduction() * 100));
+    }
+
+    private static boolean terminal(ConversionResult result) {
+        if (TERMINAL_EVENTS.contains(result.getTriggerEvent())) {
+            return true;
+        }
+        Encounter encounter = result.getEncounter();
+        return encounter != null && (encounter.getStatus() == Encounter.EncounterStatus.FINISHED
+                || encounter.getStatus() == Encounter.EncounterStatus.CANCELLED);
+    }
+
+    /**
+     * Passes on whatever is held for the patient's visits other than this one.
+     */
+    private void releasePatient(String patient, String visit) throws Exception {
+        List<Held> visits = heldByPatient.get(patient);
+        if (visits == null) {
+            return;
+        }
+        for (Held other : new ArrayList<>(visits)) {
+            if (!other.visit.equals(visit)) {
+                release(other);
+            }
+        }
+    }
+
+    private void release(Held visit) throws Exception {
+        write(visit.result);
+        held.remove(visit.visit);
+        if (visit.patient != null) {
+            List<Held> visits = heldByPatient.get(visit.patient);
+            visits.remove(visit);
+            if (visits.isEmpty()) {
+                heldByPatient.remove(visit.patient);
+            }
+        }
+    }
+
+    private void write(ConversionResult result) throws Exception {
+        sink.accept(result);
+        written++;
+        resourcesWritten += result.getResources().size();
+    }
+
+    private synchronized void expire() {
+        while (!closed) {
+            long wait = windowNanos > 0 ? windowNanos : TimeUnit.SECONDS.toNanos(1);
+            Iterator<Held> oldest = held.values().iterator();
+            while (oldest.hasNext()) {
+                Held visit = oldest.next();
+                long remaining = visit.deadline - System.nanoTime();
+                if (remaining > 0) {
+                    wait = remaining;
+                    break;
+                }
+                try {
+                    release(visit);
+                } catch (Exception e) {
+                    // still held; try again after waiting
+                    failed++;
+                    failure = e;
+                    log.warn("Could not pass on {}, keeping it: {}", visit.visit, e.toString());
+                    break;
+                }
+                // release removed it, so start again from the new oldest
+                oldest = held.values().iterator();
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    /** Results passed to the sink. */
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    public synchronized long getResourcesReceived() {
+        return resourcesReceived;
+    }
+
+    public synchronized long getResourcesWritten() {
+        return resourcesWritten;
+    }
+
+    /** Visits held now. */
+    public synchronized int getHeld() {
+        return held.size();
+    }
+
+    /** Times the timer could not pass on a visit because the sink threw. */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /** The fraction of resource writes saved. */
+    public synchronized double getReduction() {
+        return resourcesReceived == 0 ? 0 : 1 - (double) resourcesWritten / resourcesReceived;
+    }
+
+    /**
+     * Usage: EncounterCoalescer [--messages n] [--rate msg/s] [--window ms] [--patients n] [--visits n] [--skew s]
+     * [--latency ms] [--seed n]
+     *
+     * Generates --messages (20000) synthetic messages for --patients (2000) with --visits each (2), skewed by --skew
+     * (1.1), converts them, and replays them at --rate messages per second (2000) through a FhirBatchWriter to an
+     * in-process server answering after --latency (10 ms): once writing every message, once coalesced over --window
+     * (2000 ms). Logs the writes, resource versions and requests each way, and the resources stored, which should
+     * match.
+     */
+    public static void main(String[] args) throws Exception {
+
+        int messages = 20_000;
+        double rate = 2_000;
+        long window = 2_000;
+        int patients = 2_000;
+        int visits = 2;
+        double skew = 1.1;
+        long latency = 10;
+        long seed = 1;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--messages".equals(args[i])) {
+                messages = Integer.parseInt(args[++i]);
+            }
+            else if ("--rate".equals(args[i])) {
+                rate = Double.parseDouble(args[++i]);
+            }
+            else if ("--window".equals(args[i])) {
+                window = Long.parseLong(args[++i]);
+            }
+            else if ("--patients".equals(args[i])) {
+                patients = Integer.parseInt(args[++i]);
+            }
+            else if ("--visits".equals(args[i])) {
+                visits = Integer.parseInt(args[++i]);
+            }
+            else if ("--skew".equals(args[i])) {
+                skew = Double.parseDouble(args[++i]);
+            }
+            else if ("--latency".equals(args[i])) {
+                latency = Long.parseLong(args[++i]);
+            }
+            else if ("--seed".equals(args[i])) {
+                seed = Long.parseLong(args[++i]);
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        HL7Converter converter = new HL7Converter(true);
+        FhirContext ctx = converter.getFhirContext();
+        HL7Generator generator = new HL7Generator(seed, patients, visits, 4, skew);
+        List<ConversionResult> results = new ArrayList<>(messages);
+        for (int i = 0; i < messages; i++) {
+            results.add(converter.convert(generator.next()));
+        }
+
+        FhirBatchWriter.Listener listener = new FhirBatchWriter.Listener() {
+            @Override
+            public void onDelivered(ConversionResult result, List<Bundle.BundleEntryResponseComponent> responses) {
+            }
+
+            @Override
+            public void onFailed(ConversionResult result, DeliveryException e) {
+                log.warn("Delivery failed: {}", e.getMessage());
+            }
+        };
+
+        for (long run : new long[] { 0, window }) {
+            try (StubFhirServer server = new StubFhirServer(ctx, 0, latency)) {
+                DeliveryController controller = new DeliveryController(ctx.newRestfulGenericClient(server.getBaseUrl()),
+                        16, 1, 16, 5_000, 3);
+                FhirBatchWriter writer = new FhirBatchWriter(controller, listener, Bundle.BundleType.TRANSACTION, 500,
+                        1 << 20, 50, 1024, new IdentifierCache(100_000, TimeUnit.MINUTES.toMillis(10)));
+                EncounterCoalescer coalescer = new EncounterCoalescer(writer::submit, run, 100_000);
+
+                long start = System.nanoTime();
+                long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+                for (int i = 0; i < results.size(); i++) {
+                    long wait = start + i * interval - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    coalescer.submit(results.get(i));
+                }
+                coalescer.close();
+                writer.flush();
+                writer.close();
+                long elapsed = System.nanoTime() - start;
+
+                log.info("Window {} ms: {} messages in {} ms, {} writes, {} of {} resources ({}), {} versions "
+                                + "in {} requests, {} resources stored", run, coalescer.getReceived(),
+                        TimeUnit.NANOSECONDS.toMillis(elapsed), coalescer.getWritten(),
+                        coalescer.getResourcesWritten(), coalescer.getResourcesReceived(),
+                        String.format("%.1f%% fewer", coalescer.getReduction() * 100), server.getVersionCount(),
+                        server.getRequestCount(), server.getResourceCount());
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package hl7v2;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Differential check of the {@link TokenizedMessage} fast path against the HAPI parser.
+ *
+ * Every message in the given files (the bundled samples by default) is converted both ways and the resulting
+ * resources are compared as JSON. A message with escape sequences, repetitions and missing segments is added to the
+ * samples, since they contain none. Exits with status 1 if any resource differs.
+ */
+public class FastPathCheck {
+
+    private static final Logger log = LoggerFactory.getLogger(FastPathCheck.class);
+
+    private static final String ESCAPES =
+            "MSH|^~\\&|REG|FRNK^HCACRP.TEST.N|||201811200954||ADT^A08^ADT_A01|20001|D|2.4|||AL|NE|\r" +
+            "PID|1||K000000099^^^^MR^FRNK~A1-B99^^^^PI^FRNK||O\\S\\BRIEN^MARY\\T\\ANN^\\E\\X||19800101|U||W|" +
+            "1\\F\\2 MAIN ST^APT \\R\\4^BOSTON^MA^02108~9 OTHER RD^^SALEM^MA^01970||(617)555-0100~(617)555-0101|||||V99|\r" +
+            "PV1|1|E|ER^01|||||||EMR||||||||CAN||||||||||||||||||||||ADM|||201901011200|201901011300|\r";
+
+    public static void main(String[] args) throws Exception {
+
+        List<String> files = args.length > 0 ? Arrays.asList(args) : Arrays.asList(
+                "./src/main/resources/ADT-1.hl7", "./src/main/resources/ADT-2.hl7", "./src/main/resources/ORM-1.hl7");
+
+        List<String> messages = new ArrayList<>();
+        for (String file : files) {
+            try (HL7BatchReader reader = new HL7BatchReader(Paths.get(file))) {
+                reader.forEachRemaining(messages::add);
+            }
+        }
+        messages.add(ESCAPES);
+
+        HL7Converter hapi = new HL7Converter(false);
+        HL7Converter fast = new HL7Converter(hapi.getHapiContext(), hapi.getFhirContext(), true);
+
+        int differences = 0;
+        for (String message : messages) {
+            List<Resource> expected = hapi.convert(message).getResources();
+            List<Resource> actual = fast.convert(message).getResources();
+
+            if (expected.size() != actual.size()) {
+                log.error("Expected {} resources but the fast path produced {}:\n{}", expected.size(), actual.size(), message);
+                differences++;
+                continue;
+            }
+            for (int i = 0; i < expected.size(); i++) {
+                String expectedJson = hapi.encode(expected.get(i), false);
+                String actualJson = fast.encode(actual.get(i), false);
+                if (!expectedJson.equals(actualJson)) {
+                    log.error("Resources differ:\nHAPI: {}\nfast: {}", expectedJson, actualJson);
+                    differences++;
+                }
+            }
+        }
+
+        log.info("Compared {} messages, {} differences", messages.size(), differences);
+        if (differences > 0) {
+            System.exit(1);
+        }
+    }
+}
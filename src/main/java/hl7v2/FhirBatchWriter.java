@@ -0,0 +1,845 @@
+package hl7v2;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.hl7.fhir.r4.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes converted messages to a FHIR server as transaction (or batch) Bundles holding many messages each, instead
+ * of one round trip per message.
+ *
+ * A Bundle is sent once it holds maxEntries entries or maxBytes of JSON, or maxDelay after its first message arrived,
+ * whichever comes first. The entries of one message always travel in the same Bundle. Resources with an identifier
+ * are written with a conditional PUT (Patient?identifier=system|value), those with only an id with a PUT to Type/id,
+ * and the Encounter and ServiceRequest are linked to the Patient, Location and Practitioner of the same message, as
+ * in ConditionalUpdateExample.
+ *
+ * A Bundle never holds two entries for the same resource, since a transaction cannot: a later write replaces the
+ * earlier one, which leaves the server in the state applying both in order would. Both messages then share the
+ * entry's response.
+ *
+ * Resources a {@link ChangeDetector} marked as unchanged are not sent if their id is known. Otherwise they are sent
+ * as a conditional create (ifNoneExist), which the server resolves without writing a new version. Either way only
+ * while no changed write of the same resource is pending; until that is answered they are written in full.
+ *
+ * With an {@link IdentifierStore}, the ids the server reports for conditional writes are remembered, and later writes
+ * of and references to the same resource use Patient/123 instead of making the server search for the identifier.
+ * {@link IdentifierCache} remembers recent ones on the heap, {@link IdentifierIndex} all of them on disk.
+ *
+ * Resources are encoded on the submitting thread. Bundles are assembled and sent one at a time, in submission order,
+ * by a single sender thread, so writes for the same resource are never reordered. The listener is told, per message,
+ * the responses to its entries or why they failed. If a transaction with several messages is rejected with a 4xx,
+ * each message is resent in its own transaction so that only the offending message fails.
+ */
+public class FhirBatchWriter implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(FhirBatchWriter.class);
+
+    /**
+     * An exception thrown by a listener method is logged, and the sender goes on with the next message.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the sender thread with the responses to the message's entries, in the order of
+         * {@link ConversionResult#getResources()}. Unchanged resources that were not sent get a 304 Not Modified.
+         */
+        void onDelivered(ConversionResult result, List<Bundle.BundleEntryResponseComponent> responses);
+
+        void onFailed(ConversionResult result, DeliveryException e);
+    }
+
+    private static final Submission FLUSH = new Submission(null, null, null, null, new String[0], new int[0]);
+    private static final Submission END = new Submission(null, null, null, null, new String[0], new int[0]);
+
+    private final DeliveryController controller;
+    private final Listener listener;
+    private final Bundle.BundleType type;
+    private final int maxEntries;
+    private final int maxBytes;
+    private final long maxDelayNanos;
+    private final IdentifierStore cache;
+    private final PipelineMetrics metrics = PipelineMetrics.getInstance();
+
+    private final ThreadLocal<IParser> parser;
+    private final BlockingQueue<Submission> queue;
+    private final Thread sender;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong storeFailures = new AtomicLong();
+
+    // conditional URL -> changed writes of it encoded and not yet answered
+    private final Map<String, Integer> pending = new ConcurrentHashMap<>();
+
+    /**
+     * @param type          TRANSACTION or BATCH
+     * @param queueCapacity messages waiting for the sender before submit blocks
+     */
+    public FhirBatchWriter(IGenericClient client, Listener listener, Bundle.BundleType type,
+                           int maxEntries, int maxBytes, long maxDelayMillis, int queueCapacity) {
+        this(client, listener, type, maxEntries, maxBytes, maxDelayMillis, queueCapacity, null);
+    }
+
+    /**
+     * @param cache learns the ids conditional URLs resolve to from the responses, and is used to write and reference
+     *              resources with a known id directly as Type/id; may be null
+     */
+    public FhirBatchWriter(IGenericClient client, Listener listener, Bundle.BundleType type,
+                           int maxEntries, int maxBytes, long maxDelayMillis, int queueCapacity,
+                           IdentifierStore cache) {
+        this(DeliveryController.direct(client), listener, type, maxEntries, maxBytes, maxDelayMillis, queueCapacity,
+                cache);
+    }
+
+    /**
+     * @param controller limits concurrent requests and retries transient failures; a rejected entry in a batch is not
+     *                   retried, since the server has answered
+     */
+    public FhirBatchWriter(DeliveryController controller, Listener listener, Bundle.BundleType type,
+                           int maxEntries, int maxBytes, long maxDelayMillis, int queueCapacity,
+                           IdentifierStore cache) {
+
+        if (type != Bundle.BundleType.TRANSACTION && type != Bundle.BundleType.BATCH) {
+            throw new IllegalArgumentException("Bundle type must be transaction or batch, not " + type);
+        }
+
+        this.controller = controller;
+        this.listener = listener;
+        this.type = type;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.cache = cache;
+
+        FhirContext ctx = controller.getClient().getFhirContext();
+        this.parser = ThreadLocal.withInitial(ctx::newJsonParser);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.sender = new Thread(this::run, "fhir-batch-writer");
+        this.sender.start();
+    }
+
+    /**
+     * Encodes the message's resources and queues them, blocking while the queue is full.
+     */
+    public void submit(ConversionResult result) throws InterruptedException {
+        queue.put(encode(result));
+    }
+
+    /**
+     * Sends whatever has been submitted so far without waiting for the batch to fill.
+     */
+    public void flush() throws InterruptedException {
+        queue.put(FLUSH);
+    }
+
+    /** Transactions or batches sent, including resends of single messages. */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /** Lookups and changes the identifier store threw on, each taken as a miss. */
+    public long getStoreFailures() {
+        return storeFailures.get();
+    }
+
+    /**
+     * May be null.
+     */
+    public IdentifierStore getIdentifierCache() {
+        return cache;
+    }
+
+    /**
+     * Sends everything submitted so far and stops the sender thread.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        queue.put(END);
+        sender.join();
+    }
+
+    private Submission encode(ConversionResult result) {
+
+        long start = metrics.now();
+        // the result's own resources are left as they are; ids and references go on copies, in this list
+        List<Resource> originals = result.getResources();
+        List<Resource> resources = new ArrayList<>(originals);
+        String[] keys = new String[resources.size()];
+        String[] urls = new String[resources.size()];
+        boolean[] unchanged = new boolean[resources.size()];
+        String[] entries = new String[resources.size()];
+        int[] sizes = new int[resources.size()];
+
+        for (int i = 0; i < resources.size(); i++) {
+            Resource resource = originals.get(i);
+            keys[i] = ConditionalUrls.requestUrl(resource);
+            urls[i] = resolve(keys[i]);
+            // an unchanged resource is only left out or shared while no changed write of it is pending, which
+            // could otherwise land after the state it matches, or fail
+            unchanged[i] = keys[i] != null && result.isUnchanged(resource) && !pending.containsKey(keys[i]);
+            if (keys[i] != null && !unchanged[i]) {
+                pending.merge(keys[i], 1, Integer::sum);
+            }
+            if (urls[i] != null && !urls[i].equals(keys[i])) {
+                // a PUT to Type/id must carry the same id in the body
+                Resource copy = resource.copy();
+                copy.setId(urls[i].substring(urls[i].indexOf('/') + 1));
+                resources.set(i, copy);
+            }
+        }
+        link(result, originals, resources, keys, urls, unchanged);
+
+        for (int i = 0; i < resources.size(); i++) {
+            if (unchanged[i] && urls[i].indexOf('?') < 0) {
+                // nothing to write, and references already point at Type/id
+                continue;
+            }
+            Resource resource = resources.get(i);
+            StringBuilder entry = new StringBuilder(512);
+            entry.append("{\"fullUrl\":");
+            quote(entry, fullUrl(keys[i]));
+            entry.append(",\"resource\":").append(parser.get().encodeResourceToString(resource));
+            if (unchanged[i]) {
+                // create it if the server somehow does not have it, but do not make a new version
+                entry.append(",\"request\":{\"method\":\"POST\",\"url\":");
+                quote(entry, resource.fhirType());
+                entry.append(",\"ifNoneExist\":");
+                quote(entry, urls[i].substring(urls[i].indexOf('?') + 1));
+            }
+            else {
+                entry.append(",\"request\":{\"method\":\"").append(urls[i] != null ? "PUT" : "POST").append("\",\"url\":");
+                quote(entry, urls[i] != null ? urls[i] : resource.fhirType());
+            }
+            entry.append("}}");
+            entries[i] = entry.toString();
+            sizes[i] = utf8Length(entries[i]);
+        }
+        metrics.record(PipelineMetrics.Stage.ENCODE, result, metrics.now() - start);
+        return new Submission(result, keys, urls, unchanged, entries, sizes);
+    }
+
+    /**
+     * The URL to write the resource to: Type/id if the cache knows what its conditional URL resolves to, else the
+     * conditional URL itself.
+     */
+    private String resolve(String key) {
+        if (cache == null || key == null || key.indexOf('?') < 0) {
+            return key;
+        }
+        String id;
+        try {
+            id = cache.get(key);
+        } catch (RuntimeException e) {
+            storeFailed(e);
+            id = null;
+        }
+        return id != null ? id : key;
+    }
+
+    /**
+     * The same request URL always gets the same fullUrl, so references from messages merged into one Bundle agree.
+     */
+    private static String fullUrl(String url) {
+        if (url == null) {
+            return IdType.newRandomUuid().getValue();
+        }
+        return "urn:uuid:" + UUID.nameUUIDFromBytes(url.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Points the Encounter and ServiceRequest at the other resources of the message, where not already set. Any it
+     * changes are copied first.
+     */
+    private void link(ConversionResult result, List<Resource> originals, List<Resource> resources, String[] keys,
+                      String[] urls, boolean[] unchanged) {
+
+        Reference patient = reference(result.getPatient(), originals, keys, urls, unchanged);
+        Reference encounter = reference(result.getEncounter(), originals, keys, urls, unchanged);
+        Reference practitioner = reference(result.getPractitioner(), originals, keys, urls, unchanged);
+        Reference facility = reference(result.getFacility(), originals, keys, urls, unchanged);
+
+        int e = originals.indexOf(result.getEncounter());
+        if (e >= 0) {
+            Encounter original = result.getEncounter();
+            boolean subject = !original.hasSubject() && patient != null;
+            boolean participant = !original.hasParticipant() && practitioner != null;
+            boolean location = !original.hasLocation() && facility != null;
+            if (subject || participant || location) {
+                Encounter copy = (Encounter) copy(originals, resources, e);
+                if (subject) {
+                    copy.setSubject(patient);
+                }
+                if (participant) {
+                    copy.addParticipant().setIndividual(practitioner);
+                }
+                if (location) {
+                    copy.addLocation().setLocation(facility);
+                }
+            }
+        }
+
+        int o = originals.indexOf(result.getServiceRequest());
+        if (o >= 0) {
+            ServiceRequest original = result.getServiceRequest();
+            boolean subject = !original.hasSubject() && patient != null;
+            boolean context = !original.hasEncounter() && encounter != null;
+            boolean requester = !original.hasRequester() && practitioner != null;
+            if (subject || context || requester) {
+                ServiceRequest copy = (ServiceRequest) copy(originals, resources, o);
+                if (subject) {
+                    copy.setSubject(patient);
+                }
+                if (context) {
+                    copy.setEncounter(encounter);
+                }
+                if (requester) {
+                    copy.setRequester(practitioner);
+                }
+            }
+        }
+    }
+
+    /**
+     * The copy of resource i to change, made now unless encode already made one.
+     */
+    private static Resource copy(List<Resource> originals, List<Resource> resources, int i) {
+        Resource resource = resources.get(i);
+        if (resource == originals.get(i)) {
+            resource = resource.copy();
+            resources.set(i, resource);
+        }
+        return resource;
+    }
+
+    /**
+     * Type/id if the cache knew the resource's id or it is not written at all. Otherwise, in a transaction, the
+     * entry's fullUrl, which the server resolves even if the resource is created by the same transaction. A batch has
+     * no such resolution, so there the conditional URL is used as a conditional reference.
+     */
+    private Reference reference(Resource resource, List<Resource> originals, String[] keys, String[] urls,
+                                boolean[] unchanged) {
+        int i = originals.indexOf(resource);
+        if (resource == null || i < 0 || keys[i] == null) {
+            return null;
+        }
+        if (!urls[i].equals(keys[i]) || unchanged[i] && urls[i].indexOf('?') < 0) {
+            return new Reference(urls[i]);
+        }
+        return new Reference(type == Bundle.BundleType.TRANSACTION ? fullUrl(keys[i]) : keys[i]);
+    }
+
+    private void run() {
+
+        Batch batch = new Batch();
+        try {
+            while (true) {
+                Submission submission;
+                if (batch.isEmpty()) {
+                    submission = queue.take();
+                }
+                else {
+                    long wait = batch.started + maxDelayNanos - System.nanoTime();
+                    submission = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                }
+
+                if (submission == null || submission == FLUSH || submission == END) {
+                    if (!batch.isEmpty()) {
+                        send(batch);
+                        batch = new Batch();
+                    }
+                    if (submission == END) {
+                        return;
+                    }
+                    continue;
+                }
+
+                if (!batch.isEmpty() && (batch.entries.size() + submission.entries.length > maxEntries
+                        || batch.bytes + submission.bytes > maxBytes)) {
+                    send(batch);
+                    batch = new Batch();
+                }
+                batch.add(submission);
+                if (batch.entries.size() >= maxEntries || batch.bytes >= maxBytes) {
+                    send(batch);
+                    batch = new Batch();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void send(Batch batch) {
+
+        requests.incrementAndGet();
+        Bundle response;
+        try {
+            String bundle = batch.encode(type);
+            String body = controller.execute(c -> c.transaction().withBundle(bundle).execute(),
+                    batch.isIdempotent());
+            response = (Bundle) EncodingEnum.detectEncoding(body).newParser(controller.getClient().getFhirContext()).parseResource(body);
+        } catch (DeliveryException e) {
+            if (e.getStatus() >= 400 && e.getStatus() < 500) {
+                forget(batch);
+            }
+            if (type == Bundle.BundleType.TRANSACTION && batch.submissions.size() > 1
+                    && e.getStatus() >= 400 && e.getStatus() < 500 && !e.isTransient()) {
+                log.debug("Transaction of {} messages rejected with {}, resending one by one",
+                        batch.submissions.size(), e.getStatus());
+                for (Submission submission : batch.submissions) {
+                    Batch single = new Batch();
+                    single.add(submission);
+                    send(single);
+                }
+                return;
+            }
+            failAll(batch, e);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failAll(batch, new DeliveryException(0, "Interrupted", null, e));
+            return;
+        } catch (RuntimeException e) {
+            failAll(batch, new DeliveryException(0, e.getMessage(), null, e));
+            return;
+        }
+
+        List<Bundle.BundleEntryComponent> entries = response.getEntry();
+        if (entries.size() != batch.entries.size()) {
+            failAll(batch, new DeliveryException(0, "Sent " + batch.entries.size() + " entries but got "
+                    + entries.size() + " responses", null, null));
+            return;
+        }
+
+        learn(batch, entries);
+
+        for (int s = 0; s < batch.submissions.size(); s++) {
+            Submission submission = batch.submissions.get(s);
+            int[] indexes = batch.indexes.get(s);
+
+            List<Bundle.BundleEntryResponseComponent> responses = new ArrayList<>(indexes.length);
+            DeliveryException error = null;
+            for (int i = 0; i < indexes.length; i++) {
+                if (indexes[i] < 0) {
+                    responses.add(new Bundle.BundleEntryResponseComponent()
+                            .setStatus("304 Not Modified").setLocation(submission.urls[i]));
+                    continue;
+                }
+                Bundle.BundleEntryResponseComponent entry = entries.get(indexes[i]).getResponse();
+                responses.add(entry);
+                int status = status(entry.getStatus());
+                if (error == null && (status < 200 || status >= 300)) {
+                    error = new DeliveryException(status, entry.getStatus() + " for " + batch.urls.get(indexes[i]),
+                            entry.getOutcome() instanceof OperationOutcome ? (OperationOutcome) entry.getOutcome() : null, null);
+                }
+            }
+
+            settle(submission);
+            if (error == null) {
+                delivered.incrementAndGet();
+                delivered(submission.result, responses);
+            }
+            else {
+                failed.incrementAndGet();
+                failed(submission.result, error);
+            }
+        }
+    }
+
+    /**
+     * Caches the ids of the resources written through conditional URLs, and forgets those of failed direct writes, in
+     * case the cached id is what made them fail.
+     */
+    private void learn(Batch batch, List<Bundle.BundleEntryComponent> entries) {
+        if (cache == null) {
+            return;
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            String key = batch.keys.get(i);
+            if (key == null || key.indexOf('?') < 0) {
+                continue;
+            }
+            Bundle.BundleEntryResponseComponent response = entries.get(i).getResponse();
+            int status = status(response.getStatus());
+            if (status >= 200 && status < 300 && response.hasLocation()) {
+                IdType id = new IdType(response.getLocation());
+                if (id.hasResourceType() && id.hasIdPart()) {
+                    try {
+                        cache.put(key, id.getResourceType() + "/" + id.getIdPart());
+                    } catch (RuntimeException e) {
+                        storeFailed(e);
+                    }
+                }
+            }
+            else if (status >= 400 && !key.equals(batch.urls.get(i))) {
+                invalidate(key);
+            }
+        }
+    }
+
+    private void forget(Batch batch) {
+        if (cache == null) {
+            return;
+        }
+        for (int i = 0; i < batch.keys.size(); i++) {
+            String key = batch.keys.get(i);
+            if (key != null && !key.equals(batch.urls.get(i))) {
+                invalidate(key);
+            }
+        }
+    }
+
+    private void invalidate(String key) {
+        try {
+            cache.invalidate(key);
+        } catch (RuntimeException e) {
+            // the id stays, and is tried again and invalidated again if it is still wrong
+            storeFailed(e);
+        }
+    }
+
+    /**
+     * A failing store is only a cache that misses, so the write goes on.
+     */
+    private void storeFailed(RuntimeException e) {
+        storeFailures.incrementAndGet();
+        log.warn("Identifier store failed, treating it as a miss: {}", e.toString());
+    }
+
+    /**
+     * Ends the submission's changed writes, now that they have been answered.
+     */
+    private void settle(Submission submission) {
+        for (int i = 0; i < submission.keys.length; i++) {
+            if (submission.keys[i] != null && !submission.unchanged[i]) {
+                pending.computeIfPresent(submission.keys[i], (k, n) -> n == 1 ? null : n - 1);
+            }
+        }
+    }
+
+    /**
+     * Tells the listener, which must not stop the sender by throwing.
+     */
+    private void delivered(ConversionResult result, List<Bundle.BundleEntryResponseComponent> responses) {
+        try {
+            listener.onDelivered(result, responses);
+        } catch (RuntimeException e) {
+            log.warn("Listener failed on delivery of {}", result.getControlId(), e);
+        }
+    }
+
+    private void failed(ConversionResult result, DeliveryException error) {
+        try {
+            listener.onFailed(result, error);
+        } catch (RuntimeException e) {
+            log.warn("Listener failed on failure of {}", result.getControlId(), e);
+        }
+    }
+
+    private void failAll(Batch batch, DeliveryException e) {
+        for (Submission submission : batch.submissions) {
+            settle(submission);
+            failed.incrementAndGet();
+            failed(submission.result, e);
+        }
+    }
+
+    /**
+     * The status code at the start of e.g. "201 Created", or 0.
+     */
+    private static int status(String status) {
+        int code = 0;
+        for (int i = 0; status != null && i < status.length() && Character.isDigit(status.charAt(i)); i++) {
+            code = code * 10 + (status.charAt(i) - '0');
+        }
+        return code;
+    }
+
+    private static void quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private static int utf8Length(String s) {
+        int length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800) {
+                length += Character.isSurrogate(c) ? 1 : 2;
+            }
+            else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * The encoded entries of one message.
+     */
+    private static class Submission {
+
+        private final ConversionResult result;
+        private final String[] keys;
+        private final String[] urls;
+        private final boolean[] unchanged;
+        private final String[] entries;
+        private final int[] sizes;
+        private final int bytes;
+
+        /**
+         * @param keys the URL identifying each resource, conditional where it has an identifier
+         * @param urls the URL each resource is written to, which is Type/id if the key's id is known
+         * @param entries null for an unchanged resource that is not sent at all
+         */
+        Submission(ConversionResult result, String[] keys, String[] urls, boolean[] unchanged, String[] entries,
+                   int[] sizes) {
+            this.result = result;
+            this.keys = keys;
+            this.urls = urls;
+            this.unchanged = unchanged;
+            this.entries = entries;
+            this.sizes = sizes;
+
+            int bytes = 0;
+            for (int size : sizes) {
+                bytes += size;
+            }
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * The entries of the Bundle being filled, and for each message the positions of its entries.
+     */
+    private static class Batch {
+
+        private final List<String> entries = new ArrayList<>();
+        private final List<String> keys = new ArrayList<>();
+        private final List<String> urls = new ArrayList<>();
+        private final List<Integer> sizes = new ArrayList<>();
+        private final Map<String, Integer> byKey = new HashMap<>();
+
+        private final List<Submission> submissions = new ArrayList<>();
+        private final List<int[]> indexes = new ArrayList<>();
+
+        private int bytes;
+        private long started;
+
+        boolean isEmpty() {
+            return submissions.isEmpty();
+        }
+
+        /**
+         * False if any entry is a plain POST, which a repeated request would create again.
+         */
+        boolean isIdempotent() {
+            return !keys.contains(null);
+        }
+
+        void add(Submission submission) {
+
+            if (isEmpty()) {
+                started = System.nanoTime();
+            }
+
+            int[] positions = new int[submission.entries.length];
+            for (int i = 0; i < positions.length; i++) {
+                String key = submission.keys[i];
+                Integer existing = key != null ? byKey.get(key) : null;
+                if (submission.entries[i] == null) {
+                    positions[i] = -1;
+                }
+                else if (existing != null && submission.unchanged[i]) {
+                    positions[i] = existing;
+                }
+                else if (existing != null) {
+                    bytes += submission.sizes[i] - sizes.get(existing);
+                    entries.set(existing, submission.entries[i]);
+                    sizes.set(existing, submission.sizes[i]);
+                    urls.set(existing, submission.urls[i]);
+                    positions[i] = existing;
+                }
+                else {
+                    positions[i] = entries.size();
+                    if (key != null) {
+                        byKey.put(key, entries.size());
+                    }
+                    entries.add(submission.entries[i]);
+                    keys.add(key);
+                    urls.add(key != null ? submission.urls[i] : "POST");
+                    sizes.add(submission.sizes[i]);
+                    bytes += submission.sizes[i];
+                }
+            }
+            submissions.add(submission);
+            indexes.add(positions);
+        }
+
+        String encode(Bundle.BundleType type) {
+            StringBuilder json = new StringBuilder(bytes + 64 + entries.size());
+            json.append("{\"resourceType\":\"Bundle\",\"type\":\"").append(type.toCode()).append("\",\"entry\":[");
+            for (int i = 0; i < entries.size(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append(entries.get(i));
+            }
+            return json.append("]}").toString();
+        }
+    }
+
+    /**
+     * Usage: FhirBatchWriter [file ...] [--repeat n] [--latency ms] [--reject text] [--fingerprints file]
+     *
+     * Converts the files (ADT-2 by default) and delivers them to a {@link StubFhirServer} four times: with one
+     * transaction per message, batched, batched with an {@link IdentifierCache}, and batched with the cache and a
+     * {@link ChangeDetector}. Logs the number of requests, conditional URLs the stub had to resolve, versions it had
+     * to create and messages/s for each. --latency delays every request to the stub, --reject makes it reject entries
+     * whose URL contains the text, and --fingerprints keeps the change detector's table in a file across runs.
+     */
+    public static void main(String[] args) throws Exception {
+
+        List<Path> files = new ArrayList<>();
+        int repeat = 20;
+        long latency = 5;
+        String reject = null;
+        Path fingerprints = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--repeat".equals(args[i])) {
+                repeat = Integer.parseInt(args[++i]);
+            }
+            else if ("--latency".equals(args[i])) {
+                latency = Long.parseLong(args[++i]);
+            }
+            else if ("--reject".equals(args[i])) {
+                reject = args[++i];
+            }
+            else if ("--fingerprints".equals(args[i])) {
+                fingerprints = Paths.get(args[++i]);
+            }
+            else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            files.add(Paths.get("./src/main/resources/ADT-2.hl7"));
+        }
+
+        HL7Converter converter = HL7Converter.getInstance();
+        List<String> messages = new ArrayList<>();
+        for (int r = 0; r < repeat; r++) {
+            for (Path file : files) {
+                try (HL7BatchReader reader = new HL7BatchReader(file)) {
+                    reader.forEachRemaining(messages::add);
+                }
+            }
+        }
+
+        try (StubFhirServer server = new StubFhirServer(converter.getFhirContext(), 0, latency)) {
+            server.setReject(reject);
+            IGenericClient client = converter.getFhirContext().newRestfulGenericClient(server.getBaseUrl());
+
+            String[] runs = { "one transaction per message", "batched", "batched with identifier cache",
+                    "batched with identifier cache and change detection" };
+            for (int run = 0; run < runs.length; run++) {
+                IdentifierCache cache = run >= 2 ? new IdentifierCache(10_000, TimeUnit.MINUTES.toMillis(10)) : null;
+                ChangeDetector detector = run >= 3
+                        ? new ChangeDetector(converter.getFhirContext(), fingerprints, 1 << 16) : null;
+
+                Listener listener = new Listener() {
+                    @Override
+                    public void onDelivered(ConversionResult result, List<Bundle.BundleEntryResponseComponent> responses) {
+                        log.debug("{} delivered: {}", result.getControlId(), responses.get(0).getLocation());
+                        if (detector != null) {
+                            detector.commit(result);
+                        }
+                    }
+
+                    @Override
+                    public void onFailed(ConversionResult result, DeliveryException e) {
+                        log.warn("{} failed with {}: {}", result.getControlId(), e.getStatus(), e.getMessage());
+                        if (detector != null) {
+                            detector.invalidate(result);
+                        }
+                    }
+                };
+
+                long requests = server.getRequestCount();
+                long searches = server.getSearchCount();
+                long versions = server.getVersionCount();
+                long start = System.nanoTime();
+
+                FhirBatchWriter writer = new FhirBatchWriter(client, listener, Bundle.BundleType.TRANSACTION,
+                        run == 0 ? 1 : 500, 1 << 20, 50, 1024, cache);
+                try {
+                    for (String message : messages) {
+                        ConversionResult result = converter.convert(message);
+                        if (detector != null) {
+                            detector.check(result);
+                        }
+                        writer.submit(result);
+                    }
+                } finally {
+                    writer.close();
+                }
+                long elapsed = System.nanoTime() - start;
+
+                log.info("{}: {} messages ({} failed) in {} requests with {} searches and {} new versions, {} ms, "
+                                + "{} messages/s", runs[run], writer.getDelivered() + writer.getFailed(),
+                        writer.getFailed(), server.getRequestCount() - requests, server.getSearchCount() - searches,
+                        server.getVersionCount() - versions, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                        messages.size() * TimeUnit.SECONDS.toNanos(1) / elapsed);
+                if (cache != null) {
+                    log.info("Identifier cache: {}", cache);
+                }
+                if (detector != null) {
+                    log.info("Change detection: {} of {} resources unchanged", detector.getSuppressed(),
+                            detector.getChecked());
+                    detector.close();
+                }
+            }
+        }
+    }
+}
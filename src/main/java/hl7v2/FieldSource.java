@@ -0,0 +1,40 @@
+package hl7v2;
+
+/**
+ * Field values of an HL7 v2 message, addressed by segment index, field and component.
+ *
+ * Segment indexes refer to the segment names the source was created with, e.g. {@link ADTParser#SEGMENTS}. Field and
+ * component numbers are one-based, as in HL7. Only the first repetition of a segment or field is visible, and only
+ * the first sub-component of a component, which matches what Terser returns for a path such as "PID-11-3".
+ */
+public interface FieldSource {
+
+    /**
+     * Whether the message contained the segment.
+     */
+    boolean contains(int segment);
+
+    /**
+     * Same as Terser "SEG-field-component". Returns null for empty values.
+     */
+    String get(int segment, int field, int component);
+
+    /**
+     * Same as Terser "SEG-field", i.e. the first component of the field.
+     */
+    default String get(int segment, int field) {
+        return get(segment, field, 1);
+    }
+
+    /**
+     * Whether any of the components from first to last (inclusive) has a value.
+     */
+    default boolean any(int segment, int field, int first, int last) {
+        for (int component = first; component <= last; component++) {
+            if (get(segment, field, component) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,214 @@
+package hl7v2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads a file of concatenated HL7 v2 messages one message at a time.
+ *
+ * A new message starts at every MSH segment. FHS/BHS/BTS/FTS batch envelope segments end the current message and are
+ * dropped, as are blank lines and MLLP framing bytes. Segments may be separated by CR, LF or CRLF; returned messages
+ * always use CR. The file is read through a fixed-size buffer, so memory use is bounded by the largest single message
+ * rather than the size of the file.
+ */
+public class HL7BatchReader implements Iterator<String>, Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(HL7BatchReader.class);
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte START_BLOCK = 0x0b;
+    private static final byte END_BLOCK = 0x1c;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final Charset charset;
+    private final int maxMessageSize;
+
+    private byte[] line = new byte[1024];
+    private int lineLength;
+
+    private byte[] message = new byte[4096];
+    private int messageLength;
+
+    private String ready;
+    private boolean eof;
+    private long messageCount;
+
+    public HL7BatchReader(Path path) throws IOException {
+        this(FileChannel.open(path, StandardOpenOption.READ), StandardCharsets.UTF_8, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    public HL7BatchReader(FileChannel channel, Charset charset, int bufferSize, int maxMessageSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.buffer.flip();
+        this.charset = charset;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (ready == null) {
+            try {
+                ready = readMessage();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return ready != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String next = ready;
+        ready = null;
+        messageCount++;
+        return next;
+    }
+
+    /**
+     * Number of messages returned by {@link #next()} so far.
+     */
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    private String readMessage() throws IOException {
+
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                if (eof || !fill()) {
+                    // end of file also ends the last line and message
+                    String completed = endLine();
+                    return completed != null ? completed : takeMessage();
+                }
+            }
+
+            byte b = buffer.get();
+            if (b == CR || b == LF || b == END_BLOCK) {
+                String completed = endLine();
+                if (completed != null) {
+                    return completed;
+                }
+            }
+            else if (b != START_BLOCK) {
+                if (lineLength == line.length) {
+                    // a file with no line breaks would otherwise grow the line until memory runs out
+                    if (lineLength >= maxMessageSize) {
+                        throw new IOException("HL7 segment exceeds " + maxMessageSize + " bytes");
+                    }
+                    line = grow(line);
+                }
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    private boolean fill() throws IOException {
+        buffer.clear();
+        int read = channel.read(buffer);
+        buffer.flip();
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Classifies the line just read. Returns the previous message if this line completed it.
+     */
+    private String endLine() throws IOException {
+
+        if (lineLength == 0) {
+            return null;
+        }
+
+        String completed = null;
+        if (startsWith("MSH")) {
+            completed = takeMessage();
+        }
+        else if (startsWith("FHS") || startsWith("BHS") || startsWith("BTS") || startsWith("FTS")) {
+            lineLength = 0;
+            return takeMessage();
+        }
+        else if (messageLength == 0) {
+            log.warn("Skipping segment outside of a message: {}", new String(line, 0, Math.min(lineLength, 3), charset));
+            lineLength = 0;
+            return null;
+        }
+
+        if (messageLength + lineLength + 1 > maxMessageSize) {
+            throw new IOException("HL7 message exceeds " + maxMessageSize + " bytes");
+        }
+        while (messageLength + lineLength + 1 > message.length) {
+            message = grow(message);
+        }
+        System.arraycopy(line, 0, message, messageLength, lineLength);
+        messageLength += lineLength;
+        message[messageLength++] = CR;
+        lineLength = 0;
+
+        return completed;
+    }
+
+    private String takeMessage() {
+        if (messageLength == 0) {
+            return null;
+        }
+        String completed = new String(message, 0, messageLength, charset);
+        messageLength = 0;
+        return completed;
+    }
+
+    private boolean startsWith(String segment) {
+        // the segment name must be followed by a field separator, so MSHX| is not an MSH segment
+        return lineLength > 3 && line[0] == segment.charAt(0) && line[1] == segment.charAt(1)
+                && line[2] == segment.charAt(2) && !Character.isLetterOrDigit(line[3]);
+    }
+
+    private static byte[] grow(byte[] bytes) {
+        return Arrays.copyOf(bytes, bytes.length * 2);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Path path = Paths.get(args.length > 0 ? args[0] : "./src/main/resources/ADT-2.hl7");
+        HL7Converter converter = HL7Converter.getInstance();
+
+        try (HL7BatchReader reader = new HL7BatchReader(path)) {
+            while (reader.hasNext()) {
+                ConversionResult result = converter.convert(reader.next());
+                log.info("{} {}^{} converted to {} resources", result.getControlId(), result.getMessageType(),
+                        result.getTriggerEvent(), result.getResources().size());
+            }
+            log.info("Converted {} messages from {}", reader.getMessageCount(), path);
+        }
+    }
+}
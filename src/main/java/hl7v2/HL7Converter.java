@@ -0,0 +1,201 @@
+package hl7v2;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.Parser;
+import ca.uhn.hl7v2.util.Terser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Converts HL7 v2 messages to FHIR R4 resources.
+ *
+ * Building a HapiContext or FhirContext is expensive (class loading and reflection scanning), so a converter
+ * holds one of each for its lifetime. Instances are thread-safe; most callers should share {@link #getInstance()}.
+ *
+ * A converter created with fastPath set reads fields straight from the message text with {@link TokenizedMessage}
+ * instead of building the HAPI object model. The shared instance uses the fast path when the hl7v2.fastPath system
+ * property is true.
+ */
+public class HL7Converter {
+
+    private static final Logger log = LoggerFactory.getLogger(HL7Converter.class);
+
+    private static class Holder {
+        private static final HL7Converter INSTANCE = new HL7Converter(Boolean.getBoolean("hl7v2.fastPath"));
+    }
+
+    private final HapiContext hapiContext;
+    private final Parser parser;
+    private final FhirContext fhirContext;
+    private final boolean fastPath;
+    private final PipelineMetrics metrics = PipelineMetrics.getInstance();
+
+    // IParser instances are cheap but not thread-safe
+    private final ThreadLocal<IParser> compactParser;
+    private final ThreadLocal<IParser> prettyParser;
+
+    public HL7Converter() {
+        this(false);
+    }
+
+    public HL7Converter(boolean fastPath) {
+        this(new DefaultHapiContext(), FhirContext.forR4(), fastPath);
+    }
+
+    public HL7Converter(HapiContext hapiContext, FhirContext fhirContext, boolean fastPath) {
+        this.hapiContext = hapiContext;
+        this.parser = hapiContext.getGenericParser();
+        this.fhirContext = fhirContext;
+        this.fastPath = fastPath;
+        this.compactParser = ThreadLocal.withInitial(() -> fhirContext.newJsonParser());
+        this.prettyParser = ThreadLocal.withInitial(() -> fhirContext.newJsonParser().setPrettyPrint(true));
+
+        // scan the resource definitions now rather than on the first message
+        fhirContext.getResourceDefinition(Location.class);
+        fhirContext.getResourceDefinition(Patient.class);
+        fhirContext.getResourceDefinition(Encounter.class);
+        fhirContext.getResourceDefinition(Practitioner.class);
+        fhirContext.getResourceDefinition(ServiceRequest.class);
+    }
+
+    public static HL7Converter getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    public HapiContext getHapiContext() {
+        return hapiContext;
+    }
+
+    public FhirContext getFhirContext() {
+        return fhirContext;
+    }
+
+    public boolean isFastPath() {
+        return fastPath;
+    }
+
+    /**
+     * Parses a message into the HAPI object model. Segments may be separated by CR, LF or CRLF.
+     */
+    public Message parse(String hl7) throws HL7Exception {
+        return parser.parse(normalize(hl7));
+    }
+
+    public ConversionResult convert(String hl7) throws Exception {
+        long start = metrics.now();
+        ConversionResult result;
+        if (fastPath) {
+            TokenizedMessage tokens = TokenizedMessage.tokenize(hl7);
+            long parsed = metrics.now();
+            result = convert(tokens);
+            metrics.record(PipelineMetrics.Stage.PARSE, result, parsed - start);
+        }
+        else {
+            Message hapiMsg = parse(hl7);
+            long parsed = metrics.now();
+            result = convert(hapiMsg);
+            metrics.record(PipelineMetrics.Stage.PARSE, result, parsed - start);
+        }
+        return result;
+    }
+
+    public ConversionResult convert(TokenizedMessage tokens) throws Exception {
+
+        long start = metrics.now();
+        FieldSource msh = tokens.select("MSH");
+        String messageType = msh.get(0, 9, 1);
+        String triggerEvent = msh.get(0, 9, 2);
+        String controlId = msh.get(0, 10);
+        String sendingFacility = msh.get(0, 4);
+
+        if ("ADT".equals(messageType)) {
+            FieldSource source = tokens.select(ADTParser.SEGMENTS);
+            long extracted = metrics.now();
+            ADTParser adt = new ADTParser(source);
+            return recorded(ConversionResult.of(messageType, triggerEvent, controlId, sendingFacility, adt),
+                    start, extracted);
+        }
+        else if ("ORM".equals(messageType)) {
+            FieldSource source = tokens.select(ORMParser.SEGMENTS);
+            long extracted = metrics.now();
+            ORMParser orm = new ORMParser(source);
+            return recorded(ConversionResult.of(messageType, triggerEvent, controlId, sendingFacility, orm),
+                    start, extracted);
+        }
+        throw new HL7Exception("Unsupported message type: " + messageType);
+    }
+
+    public ConversionResult convert(Message hapiMsg) throws Exception {
+
+        long start = metrics.now();
+        Terser terser = new Terser(hapiMsg);
+        String messageType = terser.get("MSH-9-1");
+        String triggerEvent = terser.get("MSH-9-2");
+        String controlId = terser.get("MSH-10");
+        String sendingFacility = terser.get("MSH-4");
+
+        if ("ADT".equals(messageType)) {
+            SegmentSnapshot source = new SegmentSnapshot(hapiMsg, ADTParser.SEGMENTS);
+            long extracted = metrics.now();
+            ADTParser adt = new ADTParser(source);
+            return recorded(ConversionResult.of(messageType, triggerEvent, controlId, sendingFacility, adt),
+                    start, extracted);
+        }
+        else if ("ORM".equals(messageType)) {
+            SegmentSnapshot source = new SegmentSnapshot(hapiMsg, ORMParser.SEGMENTS);
+            long extracted = metrics.now();
+            ORMParser orm = new ORMParser(source);
+            return recorded(ConversionResult.of(messageType, triggerEvent, controlId, sendingFacility, orm),
+                    start, extracted);
+        }
+        throw new HL7Exception("Unsupported message type: " + messageType);
+    }
+
+    /**
+     * Records the extraction (from start to extracted) and mapping (from extracted to now) stages of a conversion.
+     */
+    private ConversionResult recorded(ConversionResult result, long start, long extracted) {
+        metrics.record(PipelineMetrics.Stage.EXTRACT, result, extracted - start);
+        metrics.record(PipelineMetrics.Stage.MAP, result, metrics.now() - extracted);
+        return result;
+    }
+
+    public String encode(IBaseResource resource, boolean prettyPrint) {
+        return (prettyPrint ? prettyParser : compactParser).get().encodeResourceToString(resource);
+    }
+
+    /**
+     * HAPI only recognizes CR as a segment separator, but files edited on other platforms often use LF or CRLF.
+     */
+    static String normalize(String hl7) {
+        if (hl7.indexOf('\n') < 0) {
+            return hl7;
+        }
+        return hl7.replace("\r\n", "\r").replace('\n', '\r');
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        HL7Converter converter = HL7Converter.getInstance();
+
+        for (String file : new String[] { "./src/main/resources/ADT-1.hl7", "./src/main/resources/ORM-1.hl7" }) {
+            String message = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+
+            ConversionResult result = converter.convert(message);
+            for (Resource resource : result.getResources()) {
+                log.info(converter.encode(resource, true));
+            }
+        }
+    }
+}
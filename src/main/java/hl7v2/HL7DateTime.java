@@ -0,0 +1,248 @@
+package hl7v2;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDateTime;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Parses HL7 v2 DTM/TS values (YYYY[MM[DD[HH[MM[SS[.S[S[S[S]]]]]]]]][+/-ZZZZ]) into FHIR date types.
+ *
+ * Values are parsed by hand rather than with a formatter, so a malformed value costs no exception: it returns null
+ * and is logged, at most once while it stays in the cache. Admit and order timestamps repeat heavily in batch feeds,
+ * so recent values are kept in a small lock-free cache. Instances are thread-safe.
+ *
+ * FHIR has no hour or minute precision for dateTime, so values precise to the hour or minute get SECOND precision
+ * with the missing parts set to zero. Values without an offset are taken to be in the default zone.
+ */
+public class HL7DateTime {
+
+    private static final Logger log = LoggerFactory.getLogger(HL7DateTime.class);
+
+    private static final int DEFAULT_CACHE_SIZE = 4096;
+
+    private static class Holder {
+        private static final HL7DateTime INSTANCE = new HL7DateTime(ZoneId.systemDefault(), DEFAULT_CACHE_SIZE);
+    }
+
+    private static final Parsed INVALID = new Parsed(0, null, null, 0, null);
+
+    private static class Parsed {
+
+        private final long dateTimeMillis;
+        private final TemporalPrecisionEnum dateTimePrecision;
+        private final TimeZone timeZone;
+
+        private final long dateMillis;
+        private final TemporalPrecisionEnum datePrecision;
+
+        Parsed(long dateTimeMillis, TemporalPrecisionEnum dateTimePrecision, TimeZone timeZone,
+               long dateMillis, TemporalPrecisionEnum datePrecision) {
+            this.dateTimeMillis = dateTimeMillis;
+            this.dateTimePrecision = dateTimePrecision;
+            this.timeZone = timeZone;
+            this.dateMillis = dateMillis;
+            this.datePrecision = datePrecision;
+        }
+    }
+
+    private static class Entry {
+
+        private final String key;
+        private final Parsed value;
+
+        Entry(String key, Parsed value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final ZoneId defaultZone;
+    private final TimeZone defaultTimeZone;
+
+    // direct-mapped: a value lives in the slot picked by its hash and replaces whatever was there
+    private final AtomicReferenceArray<Entry> cache;
+    private final int mask;
+
+    /**
+     * @param cacheSize rounded up to a power of two
+     */
+    public HL7DateTime(ZoneId defaultZone, int cacheSize) {
+        this.defaultZone = defaultZone;
+        this.defaultTimeZone = TimeZone.getTimeZone(defaultZone);
+
+        int size = Integer.highestOneBit(Math.max(1, cacheSize - 1)) << 1;
+        this.cache = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    public static HL7DateTime getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Returns null if the value is empty or malformed.
+     */
+    public DateTimeType toDateTime(String value) {
+        Parsed parsed = lookup(value);
+        if (parsed == null) {
+            return null;
+        }
+        return new DateTimeType(new Date(parsed.dateTimeMillis), parsed.dateTimePrecision, parsed.timeZone);
+    }
+
+    /**
+     * Any time of day is dropped. Returns null if the value is empty or malformed.
+     */
+    public DateType toDate(String value) {
+        Parsed parsed = lookup(value);
+        if (parsed == null) {
+            return null;
+        }
+        return new DateType(new Date(parsed.dateMillis), parsed.datePrecision);
+    }
+
+    private Parsed lookup(String value) {
+
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+
+        int slot = value.hashCode() & mask;
+        Entry entry = cache.get(slot);
+        if (entry == null || !entry.key.equals(value)) {
+            Parsed parsed = parse(value);
+            if (parsed == INVALID) {
+                log.warn("Invalid HL7 date/time {}", value);
+            }
+            entry = new Entry(value, parsed);
+            cache.set(slot, entry);
+        }
+        return entry.value == INVALID ? null : entry.value;
+    }
+
+    private Parsed parse(String value) {
+
+        int length = value.length();
+        int offsetStart = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '+' || c == '-') {
+                offsetStart = i;
+                break;
+            }
+        }
+
+        // the date and time part, without fractional seconds
+        int fractionStart = value.indexOf('.');
+        int digits = fractionStart >= 0 && fractionStart < offsetStart ? fractionStart : offsetStart;
+        if (digits != 4 && digits != 6 && digits != 8 && digits != 10 && digits != 12 && digits != 14) {
+            return INVALID;
+        }
+        if (fractionStart >= 0 && (fractionStart > offsetStart || digits != 14)) {
+            return INVALID;
+        }
+
+        int year = number(value, 0, 4);
+        int month = digits >= 6 ? number(value, 4, 6) : 1;
+        int day = digits >= 8 ? number(value, 6, 8) : 1;
+        int hour = digits >= 10 ? number(value, 8, 10) : 0;
+        int minute = digits >= 12 ? number(value, 10, 12) : 0;
+        int second = digits >= 14 ? number(value, 12, 14) : 0;
+        if (year < 0 || month < 1 || month > 12 || day < 1 || hour < 0 || hour > 23 || minute < 0 || minute > 59
+                || second < 0 || second > 59) {
+            return INVALID;
+        }
+        if (day > YearMonth.of(year, month).lengthOfMonth()) {
+            return INVALID;
+        }
+
+        int nanos = 0;
+        if (fractionStart >= 0) {
+            int fractionDigits = offsetStart - fractionStart - 1;
+            if (fractionDigits < 1 || fractionDigits > 4) {
+                return INVALID;
+            }
+            int fraction = number(value, fractionStart + 1, offsetStart);
+            if (fraction < 0) {
+                return INVALID;
+            }
+            for (int i = fractionDigits; i < 9; i++) {
+                fraction *= 10;
+            }
+            nanos = fraction;
+        }
+
+        ZoneId zone = defaultZone;
+        TimeZone timeZone = defaultTimeZone;
+        if (offsetStart < length) {
+            int offsetLength = length - offsetStart - 1;
+            if (offsetLength != 2 && offsetLength != 4) {
+                return INVALID;
+            }
+            int offsetHours = number(value, offsetStart + 1, offsetStart + 3);
+            int offsetMinutes = offsetLength == 4 ? number(value, offsetStart + 3, length) : 0;
+            if (offsetHours < 0 || offsetHours > 18 || offsetMinutes < 0 || offsetMinutes > 59) {
+                return INVALID;
+            }
+            int seconds = (offsetHours * 3600 + offsetMinutes * 60) * (value.charAt(offsetStart) == '-' ? -1 : 1);
+            if (Math.abs(seconds) > 18 * 3600) {
+                return INVALID;
+            }
+            ZoneOffset offset = ZoneOffset.ofTotalSeconds(seconds);
+            zone = offset;
+            timeZone = TimeZone.getTimeZone(offset);
+        }
+
+        TemporalPrecisionEnum precision;
+        TemporalPrecisionEnum datePrecision;
+        switch (digits) {
+            case 4:
+                precision = datePrecision = TemporalPrecisionEnum.YEAR;
+                break;
+            case 6:
+                precision = datePrecision = TemporalPrecisionEnum.MONTH;
+                break;
+            case 8:
+                precision = datePrecision = TemporalPrecisionEnum.DAY;
+                break;
+            default:
+                precision = fractionStart >= 0 ? TemporalPrecisionEnum.MILLI : TemporalPrecisionEnum.SECOND;
+                datePrecision = TemporalPrecisionEnum.DAY;
+        }
+
+        long dateTimeMillis = LocalDateTime.of(year, month, day, hour, minute, second, nanos)
+                .atZone(zone).toInstant().toEpochMilli();
+
+        // DateType renders in the JVM default zone, so the date is placed at midnight there
+        long dateMillis = Year.of(year).atMonth(month).atDay(day).atStartOfDay(ZoneId.systemDefault())
+                .toInstant().toEpochMilli();
+
+        return new Parsed(dateTimeMillis, precision, timeZone, dateMillis, datePrecision);
+    }
+
+    /**
+     * The decimal value of value[start, end), or -1 if it contains anything but digits.
+     */
+    private static int number(String value, int start, int end) {
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+}
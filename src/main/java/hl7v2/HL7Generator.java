@@ -0,0 +1,586 @@
+package hl7v2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates synthetic ADT^A01, ADT^A03, ADT^A08 and ORM^O01 messages shaped like the bundled ADT-2 and ORM-1 samples,
+ * for tests that need many distinct patients and visits.
+ *
+ * The output is a function of the seed: the same seed and settings give the same messages, byte for byte. Each patient
+ * and each visit has its own demographics and details, derived from the seed and its number alone, so every message
+ * about a patient agrees with the others, except the A08s that change the phone number. Such a change is not kept:
+ * the patient's next message has the old phone again, so each one reads as a change to the Patient. Patients are drawn
+ * with a Zipf skew, patient 1 the most often: with skew 0 all are equally likely, with skew 1 the 30 most frequent of
+ * a million patients account for a quarter of the messages. Each patient has a fixed number of visits, drawn
+ * uniformly, and a home facility. NK1 is sent for a given fraction of patients and PV2 in a given fraction of ADT
+ * messages.
+ *
+ * Messages are written straight into a StringBuilder, without formatting or intermediate strings, so the generator
+ * writes well over a hundred thousand messages a second on one core.
+ */
+public class HL7Generator implements Iterator<String> {
+
+    private static final Logger log = LoggerFactory.getLogger(HL7Generator.class);
+
+    private static final long START = LocalDateTime.of(2019, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+    private static final long DAY = TimeUnit.DAYS.toSeconds(1);
+
+    private static final String[] FACILITIES = { "FRNK", "MTAA", "BSTN", "NASH", "CHAT", "KNOX", "MEMP", "JACK" };
+    private static final String[] FAMILY = { "SMITH", "JOHNSON", "WILLIAMS", "BROWN", "JONES", "GARCIA", "MILLER",
+            "DAVIS", "RODRIGUEZ", "MARTINEZ", "HERNANDEZ", "LOPEZ", "GONZALEZ", "WILSON", "ANDERSON", "THOMAS",
+            "TAYLOR", "MOORE", "JACKSON", "MARTIN", "LEE", "PEREZ", "THOMPSON", "WHITE", "HARRIS", "SANCHEZ", "CLARK",
+            "RAMIREZ", "LEWIS", "ROBINSON", "WALKER", "YOUNG", "ALLEN", "KING", "WRIGHT", "SCOTT", "TORRES", "NGUYEN",
+            "HILL", "FLORES", "GREEN", "ADAMS", "NELSON", "BAKER", "HALL", "RIVERA", "CAMPBELL", "MITCHELL" };
+    private static final String[] MALE = { "JAMES", "JOHN", "ROBERT", "MICHAEL", "WILLIAM", "DAVID", "RICHARD",
+            "JOSEPH", "THOMAS", "CHARLES", "DANIEL", "MATTHEW", "ANTHONY", "MARK", "PAUL", "STEVEN", "ANDREW", "KEVIN" };
+    private static final String[] FEMALE = { "MARY", "PATRICIA", "JENNIFER", "LINDA", "ELIZABETH", "BARBARA", "SUSAN",
+            "JESSICA", "SARAH", "KAREN", "NANCY", "LISA", "BETTY", "MARGARET", "SANDRA", "ASHLEY", "EMILY", "DONNA" };
+    private static final String[] STREETS = { "Main Street", "Oak Ave", "Campfire Road", "Elm St", "Maple Dr",
+            "Church St", "Park Ave", "Hillcrest Rd", "Lake View Dr", "Cedar Ln", "Washington Blvd", "Mill Rd" };
+    // city, state, zip prefix, county
+    private static final String[][] CITIES = { { "BOSTON", "MA", "021", "TN165" }, { "FRANKFORT", "KY", "406", "TN165" },
+            { "HALIFAX", "MA", "023", "TN165" }, { "FRANKLIN", "TN", "370", "TN187" },
+            { "HENDERSONVILLE", "TN", "370", "TN165" }, { "NASHVILLE", "TN", "372", "TN037" },
+            { "KNOXVILLE", "TN", "379", "TN093" }, { "MEMPHIS", "TN", "381", "TN157" } };
+    private static final String[] REASONS = { "Fever", "stomach ache", "FLU SYMPTOMS", "Chest pain",
+            "Shortness of breath", "Fall", "Headache", "Back pain", "Dizziness", "Laceration" };
+    private static final String[] RELATIONS = { "MO^Mother", "FA^Father", "SP^Spouse", "CH^Child", "SI^Sibling" };
+    private static final String[] ORDERS = { "CBCA^CBC w Automated Differential^L^HEMA^Hematology^L",
+            "BMP^Basic Metabolic Panel^L^CHEM^Chemistry^L", "CMP^Comprehensive Metabolic Panel^L^CHEM^Chemistry^L",
+            "UA^Urinalysis^L^URIN^Urinalysis^L", "PT^Prothrombin Time^L^COAG^Coagulation^L",
+            "CXR^Chest X-Ray 2 Views^L^RAD^Radiology^L", "TROP^Troponin I^L^CHEM^Chemistry^L" };
+    private static final String[] SERVICES = { "MED", "SUR", "CAR", "OBS", "ORT" };
+    // PV1-2 patient class, PV1-4 admission type and PV1-18 patient type go together
+    private static final String[][] CLASSES = { { "I", "UR", "IN" }, { "E", "EM", "ER" }, { "O", "EL", "OP" } };
+
+    private final long seed;
+    private final int patients;
+    private final int visitsPerPatient;
+    private final int facilities;
+    private final double skew;
+
+    private final SplittableRandom random;
+    private final StringBuilder message = new StringBuilder(1024);
+    private double[] mix = { 0.3, 0.15, 0.4, 0.15 };
+    private double nk1Rate = 0.3;
+    private double pv2Rate = 1;
+    private double changeRate = 0.2;
+    private long count;
+    private long clock = START;
+
+    /**
+     * @param patients         distinct patients, numbered from 1
+     * @param visitsPerPatient distinct visits of each patient
+     * @param facilities       facilities the patients are spread over, at most 8
+     * @param skew             Zipf exponent of how often each patient is drawn, 0 for uniform
+     */
+    public HL7Generator(long seed, int patients, int visitsPerPatient, int facilities, double skew) {
+        if (facilities < 1 || facilities > FACILITIES.length) {
+            throw new IllegalArgumentException("Facilities must be between 1 and " + FACILITIES.length);
+        }
+        this.seed = seed;
+        this.patients = patients;
+        this.visitsPerPatient = visitsPerPatient;
+        this.facilities = facilities;
+        this.skew = skew;
+        this.random = new SplittableRandom(seed);
+    }
+
+    /**
+     * Relative frequencies of A01, A03, A08 and O01 messages.
+     */
+    public void setMix(double a01, double a03, double a08, double o01) {
+        double total = a01 + a03 + a08 + o01;
+        this.mix = new double[] { a01 / total, a03 / total, a08 / total, o01 / total };
+    }
+
+    /** Fraction of patients with a next of kin, sent in NK1. */
+    public void setNk1Rate(double nk1Rate) {
+        this.nk1Rate = nk1Rate;
+    }
+
+    /** Fraction of ADT messages with a PV2 segment. */
+    public void setPv2Rate(double pv2Rate) {
+        this.pv2Rate = pv2Rate;
+    }
+
+    /** Fraction of A08s that change the patient's phone number, for that message only. */
+    public void setChangeRate(double changeRate) {
+        this.changeRate = changeRate;
+    }
+
+    /** Messages generated so far. */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return true;
+    }
+
+    @Override
+    public String next() {
+        return generate().toString();
+    }
+
+    /**
+     * Generates the next message into a builder that is reused by the next call, with segments separated by LF as in
+     * the bundled samples.
+     */
+    public CharSequence generate() {
+        message.setLength(0);
+        count++;
+        clock += 1 + random.nextInt(10);
+
+        int patient = patient(random.nextDouble());
+        int visit = random.nextInt(visitsPerPatient);
+        double type = random.nextDouble();
+        if (type < mix[0]) {
+            adt("A01", "ADT_A01", patient, visit, false);
+        }
+        else if (type < mix[0] + mix[1]) {
+            adt("A03", "ADT_A03", patient, visit, false);
+        }
+        else if (type < mix[0] + mix[1] + mix[2]) {
+            adt("A08", "ADT_A01", patient, visit, random.nextDouble() < changeRate);
+        }
+        else {
+            orm(patient, visit);
+        }
+        return message;
+    }
+
+    /**
+     * Draws a patient number from 1 to patients by inverting the continuous approximation of the Zipf distribution.
+     */
+    private int patient(double u) {
+        double rank;
+        if (skew == 0) {
+            rank = 1 + u * patients;
+        }
+        else if (skew == 1) {
+            rank = Math.pow(patients + 1, u);
+        }
+        else {
+            double exponent = 1 - skew;
+            rank = Math.pow((Math.pow(patients + 1, exponent) - 1) * u + 1, 1 / exponent);
+        }
+        return (int) Math.min(Math.max(1, (long) rank), patients);
+    }
+
+    private void adt(String event, String structure, int patient, int visit, boolean changed) {
+        SplittableRandom details = details(patient, 0);
+        String facility = FACILITIES[(patient - 1) % facilities];
+
+        msh("REG", facility, "ADT^" + event + "^" + structure);
+        message.append("EVN|").append(event).append('|');
+        timestamp(clock - 120);
+        message.append("||ENADMIN|KDU8305^Tinch^Rhonda^M^^^^^^^^^XX|");
+        timestamp(clock - 840);
+        message.append("|\n");
+
+        message.append("PID|1||");
+        mrn(patient);
+        message.append("^^^^MR^").append(facility).append('~');
+        urn(patient);
+        message.append("^^^^PI^").append(facility).append('|');
+        urn(patient);
+        message.append('|');
+        patient(details, changed ? random.split() : null);
+        message.append(facility, 0, 2);
+        visitNumber(patient, visit);
+        message.append("||||NOTHISPLAT|\n");
+
+        if (details.nextDouble() < nk1Rate) {
+            nk1(details);
+        }
+
+        SplittableRandom visitDetails = details(patient, visit + 1);
+        pv1(facility, visitDetails, "A03".equals(event));
+        if (random.nextDouble() < pv2Rate) {
+            message.append("PV2|1||").append(pick(visitDetails, REASONS)).append('\n');
+        }
+    }
+
+    private void orm(int patient, int visit) {
+        SplittableRandom details = details(patient, 0);
+        String facility = FACILITIES[(patient - 1) % facilities];
+
+        msh("OM", facility, "ORM^O01");
+        message.append("PID||");
+        emr(patient);
+        message.append('|');
+        mrn(patient);
+        message.append("^^^MTAA^MR^").append(facility).append('~');
+        urn(patient);
+        message.append("^^^MTAA^PI^").append(facility).append('~');
+        emr(patient);
+        message.append("^^^MTAA^EMR^").append(facility).append("||");
+        patient(details, null);
+        message.append(facility, 0, 2);
+        visitNumber(patient, visit);
+        message.append("||\n");
+
+        SplittableRandom visitDetails = details(patient, visit + 1);
+        pv1(facility, visitDetails, false);
+
+        String user = "LYI" + (1000 + random.nextInt(9000));
+        String unit = facility.substring(0, 2) + "." + (1 + random.nextInt(6)) + "W";
+        String order = ORDERS[random.nextInt(ORDERS.length)];
+        int doctor = 1 + random.nextInt(20);
+        long due = clock + DAY + random.nextInt((int) DAY);
+
+        message.append("ORC|NW||");
+        orderNumber(facility, 0);
+        message.append("||IP|N|1^0500^^");
+        timestamp(due);
+        message.append("^^Routine||");
+        timestamp(clock - 360);
+        message.append('|').append(user).append("||");
+        doctor(doctor, "ADM", "Admitting");
+        message.append('|').append(unit).append("||");
+        timestamp(due);
+        message.append("|||XRDCWPMGTPKM01|").append(user).append("||").append(facility)
+                .append("||||Verified^^L|||||W^^L|\n");
+
+        message.append("OBR|1||");
+        orderNumber(facility, 0);
+        message.append('|').append(order).append("|||||||L|K31010050A^Isolation^L^ ^^L||||");
+        doctor(doctor, "ADM", "Admitting");
+        message.append("|||||||||||1^0500^^");
+        timestamp(due);
+        message.append("^^Routine||");
+        orderNumber(facility, 4);
+        message.append("|\n");
+
+        // ZOA-2 is the order's time stamp as yyMMdd-HHmmssSSS, made unique by the message number
+        message.append("ZOA||");
+        LocalDateTime time = LocalDateTime.ofEpochSecond(clock, 0, ZoneOffset.UTC);
+        digits(time.getYear() % 100, 2);
+        digits(time.getMonthValue(), 2);
+        digits(time.getDayOfMonth(), 2);
+        message.append('-');
+        digits(count % 1_000_000_000L, 9);
+        message.append('|').append(user).append('|');
+        timestamp(clock - 360);
+        message.append('\n');
+    }
+
+    private void msh(String application, String facility, String type) {
+        message.append("MSH|^~\\&|").append(application).append('|').append(facility).append("^HCACRP.TEST.N|||");
+        timestamp(clock);
+        message.append("||").append(type).append('|').append(count).append("|D|2.4|||AL|NE|\n");
+    }
+
+    /**
+     * PID-5 to PID-17 from the patient's details; a phone from the given generator instead if not null. The details'
+     * phone is drawn either way, so that what follows from them is the same.
+     */
+    private void patient(SplittableRandom details, SplittableRandom phone) {
+        boolean female = details.nextBoolean();
+        message.append(pick(details, FAMILY)).append('^').append(pick(details, female ? FEMALE : MALE))
+                .append("^^^^^L||");
+        LocalDate birth = LocalDate.ofEpochDay(details.nextInt(-25_000, 18_000));
+        digits(birth.getYear(), 4);
+        digits(birth.getMonthValue(), 2);
+        digits(birth.getDayOfMonth(), 2);
+        message.append('|').append(female ? 'F' : 'M').append("||W|");
+        String[] city = address(details);
+        message.append('^').append(city[3]).append("~^^^^^^C||");
+        int start = message.length();
+        phone(details);
+        if (phone != null) {
+            message.setLength(start);
+            phone(phone);
+        }
+        message.append("^CELL||ENG|").append(details.nextBoolean() ? 'S' : 'M').append("|COM|");
+    }
+
+    private String[] address(SplittableRandom details) {
+        String[] city = CITIES[details.nextInt(CITIES.length)];
+        message.append(1 + details.nextInt(9999)).append(' ').append(pick(details, STREETS)).append("^^")
+                .append(city[0]).append('^').append(city[1]).append('^').append(city[2]);
+        digits(details.nextInt(100), 2);
+        message.append("^US^P^");
+        return city;
+    }
+
+    private void nk1(SplittableRandom details) {
+        message.append("NK1|1|").append(pick(details, FAMILY)).append('^')
+                .append(pick(details, details.nextBoolean() ? FEMALE : MALE)).append('|')
+                .append(pick(details, RELATIONS)).append('|');
+        String[] city = address(details);
+        message.append('^').append(city[3]).append('|');
+        phone(details);
+        message.append("^PRN^CELL||NOK|\n");
+    }
+
+    /**
+     * PV1 from the visit's details; a discharge sets the account status to DIS and adds the discharge time.
+     */
+    private void pv1(String facility, SplittableRandom visit, boolean discharged) {
+        String[] type = CLASSES[visit.nextInt(CLASSES.length)];
+        int doctor = 1 + visit.nextInt(20);
+        long admitted = START + visit.nextInt(365) * DAY + visit.nextInt((int) DAY) / 60 * 60;
+        long stay = (1 + visit.nextInt(240)) * 3600L;
+        String unit = facility.substring(0, 2) + "." + (1 + visit.nextInt(6)) + (char) ('A' + visit.nextInt(4));
+
+        message.append("PV1|1|").append(type[0]).append('|').append(unit).append('^').append(unit)
+                .append(1 + visit.nextInt(40)).append('^').append((char) ('A' + visit.nextInt(2))).append('|')
+                .append(type[1]).append("|||");
+        doctor(doctor, "ATND", "Attending");
+        message.append("|||").append(pick(visit, SERVICES)).append("||||CR|||");
+        doctor(doctor, "ATND", "Attending");
+        message.append('|').append(type[2]).append("||08|||||||||||||||||||").append(facility).append("||")
+                .append(discharged ? "DIS" : "ADM").append("|||");
+        timestamp(admitted);
+        message.append('|');
+        if (discharged) {
+            timestamp(admitted + stay);
+        }
+        message.append("|\n");
+    }
+
+    private void doctor(int number, String role, String name) {
+        message.append("DR.").append(role);
+        digits(number, 2);
+        message.append('^').append(name);
+        digits(number, 2);
+        message.append("^Provider^^^^^^^^^^XX");
+    }
+
+    private void mrn(int patient) {
+        message.append('K');
+        digits(patient, 9);
+    }
+
+    private void emr(int patient) {
+        message.append('A');
+        digits(patient, 8);
+    }
+
+    private void urn(int patient) {
+        message.append("A1-B2017");
+        digits(patient, 13);
+    }
+
+    private void visitNumber(int patient, int visit) {
+        digits((long) (patient - 1) * visitsPerPatient + visit + 1, 10);
+    }
+
+    private void orderNumber(String facility, int suffix) {
+        message.append(facility, 0, 2).append("0-B");
+        digits(count * 10 + suffix, 17);
+    }
+
+    private void phone(SplittableRandom random) {
+        message.append('(');
+        digits(200 + random.nextInt(800), 3);
+        message.append(')');
+        digits(200 + random.nextInt(800), 3);
+        message.append('-');
+        digits(random.nextInt(10_000), 4);
+    }
+
+    /**
+     * yyyyMMddHHmm of the given epoch second.
+     */
+    private void timestamp(long epochSecond) {
+        LocalDateTime time = LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+        digits(time.getYear(), 4);
+        digits(time.getMonthValue(), 2);
+        digits(time.getDayOfMonth(), 2);
+        digits(time.getHour(), 2);
+        digits(time.getMinute(), 2);
+    }
+
+    /**
+     * Appends the value zero-padded to the given width.
+     */
+    private void digits(long value, int width) {
+        int start = message.length();
+        message.setLength(start + width);
+        for (int i = start + width - 1; i >= start; i--) {
+            message.setCharAt(i, (char) ('0' + value % 10));
+            value /= 10;
+        }
+    }
+
+    /**
+     * A generator for the patient's details (visit 0) or one of its visits', the same every time.
+     */
+    private SplittableRandom details(int patient, int visit) {
+        return new SplittableRandom(seed * 0x9E3779B97F4A7C15L + ((long) patient << 20) + visit);
+    }
+
+    private static String pick(SplittableRandom random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    /**
+     * Writes the given number of messages to the file.
+     *
+     * @return bytes written
+     */
+    public long write(Path file, long messages) throws IOException {
+        long bytes = 0;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file),
+                StandardCharsets.US_ASCII), 1 << 16)) {
+            for (long i = 0; i < messages; i++) {
+                CharSequence next = generate();
+                writer.append(next);
+                bytes += next.length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Usage: HL7Generator [--messages n] [--patients n] [--visits n] [--facilities n] [--skew s] [--seed n]
+     * [--mix a01,a03,a08,o01] [--nk1 f] [--pv2 f] [--changes f] [--files n] [--out dir] [--check n]
+     *
+     * Writes --messages messages (1,000,000 by default) for --patients patients (100,000) with --visits visits each
+     * (3) at --facilities facilities (2), drawn with Zipf --skew (1.0) from --seed (1), split over --files files (1)
+     * named synthetic-n.hl7 in --out (target/synthetic). --mix is the relative frequency of each message type
+     * (30,15,40,15), --nk1 the fraction of patients with a next of kin (0.3), --pv2 the fraction of ADT messages with
+     * PV2 (1) and --changes the fraction of A08s that change the patient (0.2). Logs the rate written, then converts
+     * the first --check messages (1000) of the first file and logs how many failed and how many distinct patients,
+     * visits and messages they had.
+     */
+    public static void main(String[] args) throws Exception {
+
+        long messages = 1_000_000;
+        int patients = 100_000;
+        int visits = 3;
+        int facilities = 2;
+        double skew = 1.0;
+        long seed = 1;
+        double[] mix = null;
+        double nk1 = 0.3;
+        double pv2 = 1;
+        double changes = 0.2;
+        int files = 1;
+        Path out = Paths.get("target/synthetic");
+        int check = 1000;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--messages".equals(args[i])) {
+                messages = Long.parseLong(args[++i]);
+            }
+            else if ("--patients".equals(args[i])) {
+                patients = Integer.parseInt(args[++i]);
+            }
+            else if ("--visits".equals(args[i])) {
+                visits = Integer.parseInt(args[++i]);
+            }
+            else if ("--facilities".equals(args[i])) {
+                facilities = Integer.parseInt(args[++i]);
+            }
+            else if ("--skew".equals(args[i])) {
+                skew = Double.parseDouble(args[++i]);
+            }
+            else if ("--seed".equals(args[i])) {
+                seed = Long.parseLong(args[++i]);
+            }
+            else if ("--mix".equals(args[i])) {
+                String[] parts = args[++i].split(",");
+                mix = new double[4];
+                for (int j = 0; j < 4; j++) {
+                    mix[j] = Double.parseDouble(parts[j]);
+                }
+            }
+            else if ("--nk1".equals(args[i])) {
+                nk1 = Double.parseDouble(args[++i]);
+            }
+            else if ("--pv2".equals(args[i])) {
+                pv2 = Double.parseDouble(args[++i]);
+            }
+            else if ("--changes".equals(args[i])) {
+                changes = Double.parseDouble(args[++i]);
+            }
+            else if ("--files".equals(args[i])) {
+                files = Integer.parseInt(args[++i]);
+            }
+            else if ("--out".equals(args[i])) {
+                out = Paths.get(args[++i]);
+            }
+            else if ("--check".equals(args[i])) {
+                check = Integer.parseInt(args[++i]);
+            }
+            else {
+                throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        HL7Generator generator = new HL7Generator(seed, patients, visits, facilities, skew);
+        if (mix != null) {
+            generator.setMix(mix[0], mix[1], mix[2], mix[3]);
+        }
+        generator.setNk1Rate(nk1);
+        generator.setPv2Rate(pv2);
+        generator.setChangeRate(changes);
+
+        Files.createDirectories(out);
+        List<Path> written = new ArrayList<>();
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int f = 0; f < files; f++) {
+            Path file = out.resolve("synthetic-" + f + ".hl7");
+            bytes += generator.write(file, messages * (f + 1) / files - messages * f / files);
+            written.add(file);
+        }
+        long elapsed = System.nanoTime() - start;
+        log.info("Wrote {} messages, {} MB in {} files in {} ms: {} messages/s, {} MB/s", generator.getCount(),
+                bytes >> 20, files, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                generator.getCount() * TimeUnit.SECONDS.toNanos(1) / elapsed,
+                String.format("%.1f", bytes * 1e9 / elapsed / (1 << 20)));
+
+        if (check > 0) {
+            HL7Converter converter = HL7Converter.getInstance();
+            Set<String> mrns = new HashSet<>();
+            Set<String> visitNumbers = new HashSet<>();
+            Map<String, Integer> types = new TreeMap<>();
+            int failed = 0;
+            try (HL7BatchReader reader = new HL7BatchReader(written.get(0))) {
+                for (int i = 0; i < check && reader.hasNext(); i++) {
+                    try {
+                        ConversionResult result = converter.convert(reader.next());
+                        types.merge(result.getMessageType() + "^" + result.getTriggerEvent(), 1, Integer::sum);
+                        mrns.add(result.getPatient().getIdentifierFirstRep().getValue());
+                        if (result.getEncounter() != null) {
+                            visitNumbers.add(result.getEncounter().getIdentifierFirstRep().getValue());
+                        }
+                    } catch (Exception e) {
+                        log.warn("Message {} failed to convert: {}", i + 1, e.getMessage());
+                        failed++;
+                    }
+                }
+            }
+            log.info("Converted the first {} messages, {} failed: {} patients, {} visits, {}", check, failed,
+                    mrns.size(), visitNumbers.size(), types);
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package hl7v2;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A declarative HL7 v2 to FHIR mapping, compiled once into pre-resolved field accessors and setter lambdas.
+ *
+ * A mapping file has one statement per line; blank lines and lines starting with # are ignored.
+ *
+ * <pre>
+ * resource Encounter when=PID-18
+ * Encounter  class  PV1-2  map=I:IMP,E:EMER,O:AMB  system=http://terminology.hl7.org/CodeSystem/v3-ActCode
+ * </pre>
+ *
+ * A resource statement declares a resource the mapping produces and, with when=, the fields of which at least one
+ * must have a value for it to be created. Resources are created in the order they are declared.
+ *
+ * A rule names a resource type, a target element (see {@link MappingTargets}), and a source, which is either a field
+ * path (SEG-field or SEG-field-component) or a quoted constant. A rule is skipped when its source has no value, or
+ * when none of the fields listed in its when= option has a value. Rules run in file order, which is the order that
+ * repeating elements such as given names and codings are added in.
+ *
+ * map= translates the source value, ignoring case; * matches anything not listed, and a rule whose value is not
+ * listed and has no * entry is skipped. Any other option (system=, use=, url=, display=) is passed to the target and
+ * may embed field values as {SEG-field-component}.
+ *
+ * Field paths are resolved to segment, field and component indexes when the mapping is compiled, so applying a
+ * mapping to a message involves no path parsing, lookups by name or reflection.
+ */
+public class HL7Mapping {
+
+    private static final Logger log = LoggerFactory.getLogger(HL7Mapping.class);
+
+    private static final Pattern PATH = Pattern.compile("([A-Z][A-Z0-9]{2})-(\\d+)(?:-(\\d+))?");
+
+    private final String name;
+    private final String version;
+    private final String[] segments;
+    private final String[] resourceTypes;
+    private final ResourcePlan[] resources;
+    private final Rule[] rules;
+
+    private HL7Mapping(String name, String version, List<String> segments, List<ResourcePlan> resources,
+                       List<Rule> rules) {
+        this.name = name;
+        this.version = version;
+        this.segments = segments.toArray(new String[0]);
+        this.resources = resources.toArray(new ResourcePlan[0]);
+        this.rules = rules.toArray(new Rule[0]);
+        this.resourceTypes = new String[this.resources.length];
+        for (int i = 0; i < this.resources.length; i++) {
+            resourceTypes[i] = this.resources[i].type;
+        }
+    }
+
+    /**
+     * Loads the mapping with the given name, e.g. ADT. The file named by the hl7v2.mapping.&lt;name&gt; system
+     * property is used if set, otherwise /mappings/&lt;name&gt;.map on the classpath.
+     */
+    public static HL7Mapping load(String name) {
+
+        String file = System.getProperty("hl7v2.mapping." + name);
+        try {
+            if (file != null) {
+                log.info("Loading {} mapping from {}", name, file);
+                try (Reader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+                    return compile(name, reader);
+                }
+            }
+
+            InputStream in = HL7Mapping.class.getResourceAsStream("/mappings/" + name + ".map");
+            if (in == null) {
+                throw new IllegalArgumentException("No mapping named " + name);
+            }
+            try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+                return compile(name, reader);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static HL7Mapping compile(String name, Reader reader) throws IOException {
+        return new Compiler(name).compile(new BufferedReader(reader));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * A hash of the mapping's statements, which changes whenever a statement does but not with comments or blank
+     * lines.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * The segments the mapping reads, in the order a {@link FieldSource} passed to {@link #apply} must index them.
+     */
+    public String[] getSegments() {
+        return segments.clone();
+    }
+
+    public Result apply(FieldSource source) {
+
+        Resource[] created = new Resource[resources.length];
+        for (int i = 0; i < resources.length; i++) {
+            if (resources[i].when == null || resources[i].when.test(source)) {
+                created[i] = resources[i].factory.get();
+            }
+        }
+
+        for (Rule rule : rules) {
+            rule.apply(source, created);
+        }
+
+        return new Result(resourceTypes, created);
+    }
+
+    /**
+     * The resources created by applying a mapping to one message.
+     */
+    public static class Result {
+
+        private final String[] types;
+        private final Resource[] resources;
+
+        private Result(String[] types, Resource[] resources) {
+            this.types = types;
+            this.resources = resources;
+        }
+
+        /**
+         * The first resource of the given type, or null if the message did not produce one.
+         */
+        public <T extends Resource> T get(Class<T> type) {
+            for (int i = 0; i < resources.length; i++) {
+                if (types[i].equals(type.getSimpleName())) {
+                    return type.cast(resources[i]);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A pre-resolved reference to SEG-field-component.
+     */
+    private static class Accessor {
+
+        private final int segment;
+        private final int field;
+        private final int component;
+
+        Accessor(int segment, int field, int component) {
+            this.segment = segment;
+            this.field = field;
+            this.component = component;
+        }
+
+        String get(FieldSource source) {
+            return source.get(segment, field, component);
+        }
+    }
+
+    /**
+     * True if any of the accessors has a value.
+     */
+    private static class Condition {
+
+        private final Accessor[] any;
+
+        Condition(Accessor[] any) {
+            this.any = any;
+        }
+
+        boolean test(FieldSource source) {
+            for (Accessor accessor : any) {
+                if (accessor.get(source) != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Literal text with embedded {SEG-field-component} references.
+     */
+    static class Template {
+
+        static final Template EMPTY = new Template(new String[0], new Accessor[0]);
+
+        // parts[i] is followed by accessors[i], if there is one
+        private final String[] parts;
+        private final Accessor[] accessors;
+
+        private Template(String[] parts, Accessor[] accessors) {
+            this.parts = parts;
+            this.accessors = accessors;
+        }
+
+        boolean isConstant() {
+            return accessors.length == 0;
+        }
+
+        /**
+         * Empty references render as nothing; a template that renders to nothing returns null.
+         */
+        String render(FieldSource source) {
+            if (accessors.length == 0) {
+                return parts.length == 0 ? null : parts[0];
+            }
+
+            StringBuilder value = new StringBuilder();
+            for (int i = 0; i < parts.length; i++) {
+                value.append(parts[i]);
+                if (i < accessors.length) {
+                    String field = accessors[i].get(source);
+                    if (field != null) {
+                        value.append(field);
+                    }
+                }
+            }
+            return value.length() == 0 ? null : value.toString();
+        }
+    }
+
+    private static class ResourcePlan {
+
+        private final String type;
+        private final Supplier<Resource> factory;
+        private final Condition when;
+
+        ResourcePlan(String type, Supplier<Resource> factory, Condition when) {
+            this.type = type;
+            this.factory = factory;
+            this.when = when;
+        }
+    }
+
+    private static class Rule {
+
+        private final int resource;
+        private final Accessor source;
+        private final String constant;
+        private final String[] from;
+        private final String[] to;
+        private final String otherwise;
+        private final Condition when;
+        private final MappingTargets.Setter<Resource> setter;
+
+        Rule(int resource, Accessor source, String constant, String[] from, String[] to, String otherwise,
+             Condition when, MappingTargets.Setter<Resource> setter) {
+            this.resource = resource;
+            this.source = source;
+            this.constant = constant;
+            this.from = from;
+            this.to = to;
+            this.otherwise = otherwise;
+            this.when = when;
+            this.setter = setter;
+        }
+
+        void apply(FieldSource fields, Resource[] resources) {
+
+            Resource target = resources[resource];
+            if (target == null || (when != null && !when.test(fields))) {
+                return;
+            }
+
+            String value = source != null ? source.get(fields) : constant;
+            if (value == null) {
+                return;
+            }
+
+            if (from != null) {
+                value = translate(value);
+                if (value == null) {
+                    return;
+                }
+            }
+
+            setter.set(target, value, fields);
+        }
+
+        private String translate(String value) {
+            for (int i = 0; i < from.length; i++) {
+                if (from[i].equalsIgnoreCase(value)) {
+                    return to[i];
+                }
+            }
+            return otherwise;
+        }
+    }
+
+    private static class Compiler {
+
+        private final String name;
+        private final List<String> segments = new ArrayList<>();
+        private final List<ResourcePlan> resources = new ArrayList<>();
+        private final List<Rule> rules = new ArrayList<>();
+        private final MessageDigest digest;
+
+        private int lineNumber;
+
+        Compiler(String name) {
+            this.name = name;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        HL7Mapping compile(BufferedReader reader) throws IOException {
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                digest.update((line + "\n").getBytes(StandardCharsets.UTF_8));
+
+                try {
+                    String[] tokens = line.split("\\s+");
+                    if ("resource".equals(tokens[0])) {
+                        resource(tokens);
+                    }
+                    else {
+                        rule(tokens);
+                    }
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException(name + " mapping line " + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+
+            StringBuilder version = new StringBuilder();
+            for (byte b : Arrays.copyOf(digest.digest(), 8)) {
+                version.append(String.format("%02x", b));
+            }
+            return new HL7Mapping(name, version.toString(), segments, resources, rules);
+        }
+
+        private void resource(String[] tokens) {
+
+            if (tokens.length < 2) {
+                throw new IllegalArgumentException("resource needs a type");
+            }
+            Condition when = null;
+            for (int i = 2; i < tokens.length; i++) {
+                if (tokens[i].startsWith("when=")) {
+                    when = condition(tokens[i].substring(5));
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown option " + tokens[i]);
+                }
+            }
+            resources.add(new ResourcePlan(tokens[1], MappingTargets.resource(tokens[1]), when));
+        }
+
+        private void rule(String[] tokens) {
+
+            if (tokens.length < 3) {
+                throw new IllegalArgumentException("A rule needs a resource type, target and source");
+            }
+
+            int resource = -1;
+            for (int i = 0; i < resources.size(); i++) {
+                if (resources.get(i).type.equals(tokens[0])) {
+                    resource = i;
+                }
+            }
+            if (resource < 0) {
+                throw new IllegalArgumentException("Resource " + tokens[0] + " has not been declared");
+            }
+
+            Accessor source = null;
+            String constant = null;
+            if (tokens[2].startsWith("'") && tokens[2].endsWith("'") && tokens[2].length() >= 2) {
+                constant = tokens[2].substring(1, tokens[2].length() - 1);
+            }
+            else {
+                source = accessor(tokens[2]);
+            }
+
+            String[] from = null;
+            String[] to = null;
+            String otherwise = null;
+            Condition when = null;
+            Map<String, Template> options = new HashMap<>();
+
+            for (int i = 3; i < tokens.length; i++) {
+                int equals = tokens[i].indexOf('=');
+                if (equals <= 0) {
+                    throw new IllegalArgumentException("Expected key=value but found " + tokens[i]);
+                }
+                String key = tokens[i].substring(0, equals);
+                String value = tokens[i].substring(equals + 1);
+
+                if ("map".equals(key)) {
+                    String[] entries = value.split(",");
+                    List<String> fromList = new ArrayList<>();
+                    List<String> toList = new ArrayList<>();
+                    for (String entry : entries) {
+                        int colon = entry.indexOf(':');
+                        if (colon <= 0) {
+                            throw new IllegalArgumentException("Expected from:to but found " + entry);
+                        }
+                        if ("*".equals(entry.substring(0, colon))) {
+                            otherwise = entry.substring(colon + 1);
+                        }
+                        else {
+                            fromList.add(entry.substring(0, colon));
+                            toList.add(entry.substring(colon + 1));
+                        }
+                    }
+                    from = fromList.toArray(new String[0]);
+                    to = toList.toArray(new String[0]);
+                }
+                else if ("when".equals(key)) {
+                    when = condition(value);
+                }
+                else {
+                    options.put(key, template(value));
+                }
+            }
+
+            MappingTargets.Setter<Resource> setter =
+                    MappingTargets.target(tokens[0], tokens[1], new MappingTargets.Options(options));
+            rules.add(new Rule(resource, source, constant, from, to, otherwise, when, setter));
+        }
+
+        private Condition condition(String paths) {
+            String[] split = paths.split(",");
+            Accessor[] accessors = new Accessor[split.length];
+            for (int i = 0; i < split.length; i++) {
+                accessors[i] = accessor(split[i]);
+            }
+            return new Condition(accessors);
+        }
+
+        private Template template(String text) {
+
+            List<String> parts = new ArrayList<>();
+            List<Accessor> accessors = new ArrayList<>();
+
+            int start = 0;
+            int open;
+            while ((open = text.indexOf('{', start)) >= 0) {
+                int close = text.indexOf('}', open);
+                if (close < 0) {
+                    throw new IllegalArgumentException("Unclosed { in " + text);
+                }
+                parts.add(text.substring(start, open));
+                accessors.add(accessor(text.substring(open + 1, close)));
+                start = close + 1;
+            }
+            parts.add(text.substring(start));
+
+            return new Template(parts.toArray(new String[0]), accessors.toArray(new Accessor[0]));
+        }
+
+        private Accessor accessor(String path) {
+
+            Matcher matcher = PATH.matcher(path);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Invalid field path " + path);
+            }
+
+            String segment = matcher.group(1);
+            int index = segments.indexOf(segment);
+            if (index < 0) {
+                index = segments.size();
+                segments.add(segment);
+            }
+
+            int field = Integer.parseInt(matcher.group(2));
+            int component = matcher.group(3) != null ? Integer.parseInt(matcher.group(3)) : 1;
+            return new Accessor(index, field, component);
+        }
+    }
+}
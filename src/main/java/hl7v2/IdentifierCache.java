@@ -0,0 +1,128 @@
+package hl7v2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers which server resource a conditional URL such as Patient?identifier=system|value resolved to, so later
+ * writes can address Patient/123 directly instead of making the server search for it again.
+ *
+ * The cache holds at most maxSize URLs, dropping the least recently used, and forgets an id after the TTL so that
+ * merges or deletes on the server are eventually picked up. Thread-safe.
+ */
+public class IdentifierCache implements IdentifierStore {
+
+    private static class Entry {
+
+        private final String id;
+        private final long expires;
+
+        Entry(String id, long expires) {
+            this.id = id;
+            this.expires = expires;
+        }
+    }
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final Map<String, Entry> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    public IdentifierCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<String, Entry>(Math.min(maxSize, 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > IdentifierCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The versionless Type/id the URL resolved to, or null if not known or expired.
+     */
+    @Override
+    public synchronized String get(String conditionalUrl) {
+        Entry entry = entries.get(conditionalUrl);
+        if (entry != null && entry.expires - System.nanoTime() < 0) {
+            entries.remove(conditionalUrl);
+            expirations++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.id;
+    }
+
+    @Override
+    public synchronized void put(String conditionalUrl, String id) {
+        entries.put(conditionalUrl, new Entry(id, System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * Forgets the URL, e.g. after a write to the id it resolved to failed.
+     */
+    @Override
+    public synchronized void invalidate(String conditionalUrl) {
+        entries.remove(conditionalUrl);
+    }
+
+    /**
+     * Drops expired entries now rather than when they are next looked up.
+     */
+    public synchronized void purge() {
+        long now = System.nanoTime();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().expires - now < 0) {
+                it.remove();
+                expirations++;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /** Entries dropped to stay within maxSize. */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** Entries dropped because their TTL had passed. */
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions, %d expirations",
+                entries.size(), hits, misses, getHitRate() * 100, evictions, expirations);
+    }
+}
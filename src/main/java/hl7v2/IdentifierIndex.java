@@ -0,0 +1,1074 @@
+package hl7v2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent {@link IdentifierStore} that keeps every conditional URL the server has resolved, off the heap, so
+ * that the delivery path can address Patient/123 and Encounter/456 directly for millions of MRNs and visit numbers
+ * without searching, and without losing what it knew on a restart.
+ *
+ * Every change is appended to a log of memory-mapped chunk files. A record is its length, a CRC32 of its bytes and
+ * the bytes: whether it sets or removes the key, the key, and the id and the second it was set. Lookups go through an
+ * open-addressing hash table in another memory-mapped file, whose slots each hold 24 bits of the key's hash and the
+ * offset of its latest record in the log, so a slot is 8 bytes however long the key. The table is only a cache of the
+ * log. It is marked dirty on disk before the first change after each {@link #sync()}, and an index opened dirty,
+ * after a crash, is rebuilt by replaying the log up to the first record that fails its CRC.
+ *
+ * Keys are stored compactly. The URL up to the identifier value (Patient?identifier=system|) is replaced by a
+ * two-byte number, from a dictionary kept in a small file that is forced to disk before any record uses a new entry.
+ * A value such as K000123456 is stored as its non-numeric part and its trailing digits as a variable-length integer.
+ * An id of the key's resource type keeps only the part after Type/, encoded the same way. A typical MRN or visit
+ * number entry takes about 24 bytes of log and, at the table's maximum load of 0.7, 12 or more bytes of table.
+ *
+ * Like {@link IdentifierCache}, the index forgets an id after the TTL, so that merges or deletes on the server are
+ * eventually picked up; the next write of the key is conditional again and sets it afresh. The ids are those of one
+ * server. An index must not be used with another server, or with one that was emptied or restored since, as ids it
+ * knows would then be written to resources that are not the same ones.
+ *
+ * Lookups take no lock and may run on any number of threads. Changes are serialized, and publish a record by
+ * writing its slot and then advancing a volatile end of log; a lookup ignores slots that point past the end it read,
+ * so it never sees a record before its bytes. A lookup that races a change to its key may therefore miss, even if the
+ * key had an id before, which costs a conditional write. When the table fills up, a table twice the size is built
+ * alongside it and swapped in. Changes since the last sync survive a crash of the process but not necessarily of the
+ * machine. That is safe for a cache of server ids: a lost entry costs a conditional write, and the writer invalidates
+ * an id that the server rejects.
+ */
+public class IdentifierIndex implements IdentifierStore, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(IdentifierIndex.class);
+
+    private static final String TABLE = "index.table";
+    private static final String NAMESPACES = "namespaces";
+    private static final String SUFFIX = ".log";
+
+    // table header, in the first page of the table file
+    private static final long MAGIC = 0x484c374944580001L;
+    private static final int HEADER_BYTES = 4096;
+    private static final int H_MAGIC = 0;
+    private static final int H_CAPACITY = 8;
+    private static final int H_LOG_END = 16;
+    private static final int H_SIZE = 24;
+    private static final int H_USED = 32;
+    private static final int H_DIRTY = 40;
+
+    // a table page maps 2^27 slots (1 GB); a log chunk is 256 MB
+    private static final int PAGE_SHIFT = 27;
+    private static final int CHUNK_SHIFT = 28;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final double MAX_LOAD = 0.7;
+    private static final int MIN_CAPACITY = 1024;
+
+    // a slot is the top 24 bits of the hash and 1 + the record's offset, so 0 is empty
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private static final int HEADER = 8;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    // written where a record does not fit in what is left of a chunk
+    private static final int SKIP = -1;
+
+    // an id stored whole, or as the id part of Type/id with the key's type
+    private static final byte ID_WHOLE = 0;
+    private static final byte ID_TYPED = 1;
+
+    private final Path dir;
+    private final long ttlSeconds;
+    private final FileChannel namespaceFile;
+    private final Map<String, Integer> namespaces = new ConcurrentHashMap<>();
+    private volatile String[] types = new String[0];
+
+    private volatile Table table;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    // end of the records lookups may read
+    private volatile long logEnd;
+
+    // changed by the writer only, with the lock held
+    private long size;
+    private long used;
+    private long synced;
+    private boolean dirty;
+    private boolean closed;
+    private final CRC32 crc = new CRC32();
+    private final Buffer body = new Buffer();
+
+    private final ThreadLocal<Buffer> keys = ThreadLocal.withInitial(Buffer::new);
+
+    /**
+     * Opens the index in dir, creating it if need be and rebuilding the table from the log if it was not closed.
+     *
+     * @param expectedEntries sizes a new table, so that it does not have to grow while filling
+     * @param ttlMillis       how long an id is used for after it was set; rounded down to seconds
+     */
+    public IdentifierIndex(Path dir, long expectedEntries, long ttlMillis) throws IOException {
+        this.dir = dir;
+        this.ttlSeconds = TimeUnit.MILLISECONDS.toSeconds(ttlMillis);
+        Files.createDirectories(dir);
+
+        namespaceFile = FileChannel.open(dir.resolve(NAMESPACES), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        readNamespaces();
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        files.sort(null);
+        for (int i = 0; i < files.size(); i++) {
+            if (!files.get(i).getFileName().toString().equals(chunkName(i))) {
+                throw new IOException("Log chunk " + chunkName(i) + " is missing in " + dir);
+            }
+            addChunk(i);
+        }
+
+        Path tableFile = dir.resolve(TABLE);
+        Table existing = Files.exists(tableFile) ? Table.open(tableFile) : null;
+        if (existing != null && existing.header.getLong(H_MAGIC) == MAGIC && existing.header.getInt(H_DIRTY) == 0
+                && existing.header.getLong(H_LOG_END) <= (long) chunks.length << CHUNK_SHIFT) {
+            table = existing;
+            logEnd = existing.header.getLong(H_LOG_END);
+            size = existing.header.getLong(H_SIZE);
+            used = existing.header.getLong(H_USED);
+            synced = logEnd;
+            log.info("Identifier index {} open with {} entries, {} MB of log", dir, size, logEnd >> 20);
+        }
+        else if (existing == null && chunks.length == 0) {
+            rebuild(expectedEntries);
+            log.info("Identifier index {} created with {} slots", dir, table.capacity);
+        }
+        else {
+            if (existing != null) {
+                existing.close();
+            }
+            long start = System.nanoTime();
+            rebuild(expectedEntries);
+            log.info("Identifier index {} rebuilt from the log in {} ms: {} entries, {} MB of log", dir,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), size, logEnd >> 20);
+        }
+    }
+
+    @Override
+    public String get(String conditionalUrl) {
+        // the end first, so that every record before it is visible
+        long end = logEnd;
+        Table t = table;
+        Buffer key = keys.get();
+        if (!encodeKey(conditionalUrl, key)) {
+            return null;
+        }
+        long hash = hash(key.bytes, key.length);
+        long fingerprint = hash >>> OFFSET_BITS;
+        for (long i = hash & t.mask; ; i = (i + 1) & t.mask) {
+            long slot = t.slot(i);
+            if (slot == 0) {
+                return null;
+            }
+            if (slot >>> OFFSET_BITS == fingerprint) {
+                long offset = (slot & OFFSET_MASK) - 1;
+                // a slot pointing past the end is a change made since, which replaced the record that was there
+                // before, so the key is missed
+                if (offset < end && matches(offset, key.bytes, key.length)) {
+                    return expired(offset) ? null : id(offset, key.length);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void put(String conditionalUrl, String id) {
+        try {
+            checkOpen();
+            Buffer key = keys.get();
+            encodeKey(conditionalUrl, key, true);
+            long hash = hash(key.bytes, key.length);
+            long i = find(table, key.bytes, key.length, hash);
+            long slot = table.slot(i);
+            boolean live = slot != 0 && kind(slot) == PUT;
+            long previous = (slot & OFFSET_MASK) - 1;
+            if (live && !expired(previous) && id.equals(id(previous, key.length))) {
+                return;
+            }
+
+            body.length = 0;
+            body.put(PUT);
+            body.put(key.bytes, 0, key.length);
+            String type = types[namespace(key.bytes)];
+            if (type != null && id.length() > type.length() + 1 && id.startsWith(type)
+                    && id.charAt(type.length()) == '/') {
+                body.put(ID_TYPED);
+                body.putCompact(id, type.length() + 1);
+            }
+            else {
+                body.put(ID_WHOLE);
+                body.putCompact(id, 0);
+            }
+            body.putInt((int) now());
+            write(i, hash, body);
+            if (slot == 0) {
+                used++;
+            }
+            if (!live) {
+                size++;
+            }
+            if (used > table.capacity * MAX_LOAD) {
+                grow();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void invalidate(String conditionalUrl) {
+        try {
+            checkOpen();
+            Buffer key = keys.get();
+            if (!encodeKey(conditionalUrl, key)) {
+                return;
+            }
+            long hash = hash(key.bytes, key.length);
+            long i = find(table, key.bytes, key.length, hash);
+            long slot = table.slot(i);
+            if (slot == 0 || kind(slot) != PUT) {
+                return;
+            }
+            body.length = 0;
+            body.put(REMOVE);
+            body.put(key.bytes, 0, key.length);
+            write(i, hash, body);
+            size--;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Forces the log and the table to disk and marks the table clean, so the next open need not rebuild it.
+     */
+    public synchronized void sync() throws IOException {
+        checkOpen();
+        if (!dirty) {
+            return;
+        }
+        MappedByteBuffer[] current = chunks;
+        for (int c = (int) (synced >>> CHUNK_SHIFT); c < current.length; c++) {
+            current[c].force();
+        }
+        synced = logEnd;
+        table.force(logEnd, size, used);
+        dirty = false;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        sync();
+        closed = true;
+        table.close();
+        namespaceFile.close();
+    }
+
+    /** Keys with an id. */
+    public synchronized long size() {
+        return size;
+    }
+
+    public long getLogBytes() {
+        return logEnd;
+    }
+
+    public long getTableBytes() {
+        return table.capacity * 8;
+    }
+
+    public long getCapacity() {
+        return table.capacity;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Identifier index " + dir + " is closed");
+        }
+    }
+
+    /**
+     * Appends the record and points slot i at it. The table is marked dirty on disk first, so that if the record
+     * reaches the disk and the table does not, the table is rebuilt.
+     */
+    private void write(long i, long hash, Buffer record) throws IOException {
+        if (!dirty) {
+            table.markDirty();
+            dirty = true;
+        }
+        long offset = append(record);
+        table.set(i, (hash >>> OFFSET_BITS) << OFFSET_BITS | (offset + 1));
+        logEnd = offset + HEADER + record.length;
+    }
+
+    private long append(Buffer record) throws IOException {
+        long offset = logEnd;
+        int within = (int) (offset & (CHUNK_SIZE - 1));
+        // leave room for a skip marker at the end of every chunk
+        if (within + HEADER + record.length + 4 > CHUNK_SIZE) {
+            chunks[(int) (offset >>> CHUNK_SHIFT)].putInt(within, SKIP);
+            offset = (offset | (CHUNK_SIZE - 1)) + 1;
+            within = 0;
+        }
+        if (offset >>> OFFSET_BITS != 0) {
+            throw new IOException("Identifier index log is full");
+        }
+        int c = (int) (offset >>> CHUNK_SHIFT);
+        if (c == chunks.length) {
+            addChunk(c);
+        }
+        MappedByteBuffer chunk = chunks[c];
+        crc.reset();
+        crc.update(record.bytes, 0, record.length);
+        ByteBuffer target = chunk.duplicate();
+        target.position(within + HEADER);
+        target.put(record.bytes, 0, record.length);
+        chunk.putInt(within + 4, (int) crc.getValue());
+        chunk.putInt(within, record.length);
+        return offset;
+    }
+
+    private void addChunk(int c) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.resolve(chunkName(c)), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer[] grown = Arrays.copyOf(chunks, c + 1);
+            grown[c] = channel.map(FileChannel.MapMode.READ_WRITE, 0, CHUNK_SIZE);
+            chunks = grown;
+        }
+    }
+
+    private static String chunkName(int c) {
+        return String.format("%05d", c) + SUFFIX;
+    }
+
+    /**
+     * The slot holding the key, or the empty slot where it would go.
+     */
+    private long find(Table t, byte[] key, int length, long hash) {
+        long fingerprint = hash >>> OFFSET_BITS;
+        for (long i = hash & t.mask; ; i = (i + 1) & t.mask) {
+            long slot = t.slot(i);
+            if (slot == 0 || slot >>> OFFSET_BITS == fingerprint && matches((slot & OFFSET_MASK) - 1, key, length)) {
+                return i;
+            }
+        }
+    }
+
+    private boolean matches(long offset, byte[] key, int length) {
+        MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_SHIFT)];
+        int within = (int) (offset & (CHUNK_SIZE - 1));
+        if (chunk.getInt(within) < 1 + length) {
+            return false;
+        }
+        int start = within + HEADER + 1;
+        for (int i = 0; i < length; i++) {
+            if (chunk.get(start + i) != key[i]) {
+                return false;
+            }
+        }
+        // the record's key may be longer, with this key as a prefix
+        return keyLength(chunk, start) == length;
+    }
+
+    private byte kind(long slot) {
+        long offset = (slot & OFFSET_MASK) - 1;
+        return chunks[(int) (offset >>> CHUNK_SHIFT)].get((int) (offset & (CHUNK_SIZE - 1)) + HEADER);
+    }
+
+    /**
+     * The id in the record, or null if it removes the key.
+     */
+    private String id(long offset, int keyLength) {
+        MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_SHIFT)];
+        int within = (int) (offset & (CHUNK_SIZE - 1));
+        if (chunk.get(within + HEADER) != PUT) {
+            return null;
+        }
+        int start = within + HEADER + 1;
+        int position = start + keyLength;
+        byte form = chunk.get(position++);
+        StringBuilder id = new StringBuilder(32);
+        if (form == ID_TYPED) {
+            id.append(types[(chunk.get(start) & 0xff) << 8 | chunk.get(start + 1) & 0xff]).append('/');
+        }
+        getCompact(chunk, position, id);
+        return id.toString();
+    }
+
+    /**
+     * True if the record sets an id longer ago than the TTL.
+     */
+    private boolean expired(long offset) {
+        MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_SHIFT)];
+        int within = (int) (offset & (CHUNK_SIZE - 1));
+        if (chunk.get(within + HEADER) != PUT) {
+            return false;
+        }
+        // the last four bytes of the record
+        long set = chunk.getInt(within + HEADER + chunk.getInt(within) - 4) & 0xffffffffL;
+        return now() - set >= ttlSeconds;
+    }
+
+    private static long now() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+    }
+
+    // ---- key encoding
+
+    /**
+     * Encodes the URL's namespace number and compact value into key. Returns false if the namespace is not known and
+     * create is false.
+     */
+    private boolean encodeKey(String url, Buffer key, boolean create) throws IOException {
+        int cut = url.lastIndexOf('|') + 1;
+        if (cut == 0) {
+            cut = url.indexOf('=') + 1;
+        }
+        String prefix = url.substring(0, cut);
+        Integer namespace = namespaces.get(prefix);
+        if (namespace == null) {
+            if (!create) {
+                return false;
+            }
+            namespace = addNamespace(prefix);
+        }
+        key.length = 0;
+        key.put((byte) (namespace >>> 8));
+        key.put((byte) (int) namespace);
+        key.putCompact(url, cut);
+        return true;
+    }
+
+    /**
+     * Encodes the key for a lookup, which never adds a namespace.
+     */
+    private boolean encodeKey(String url, Buffer key) {
+        try {
+            return encodeKey(url, key, false);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int namespace(byte[] key) {
+        return (key[0] & 0xff) << 8 | key[1] & 0xff;
+    }
+
+    /**
+     * The length of the encoded key starting at position: the namespace, then the value as written by
+     * {@link Buffer#putCompact}.
+     */
+    private static int keyLength(ByteBuffer buffer, int position) {
+        int start = position;
+        position += 2;
+        int tag = buffer.get(position++) & 0xff;
+        if (tag == 0 || tag > 32) {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get(position++);
+                length |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            position += length;
+        }
+        if (tag != 0) {
+            while (buffer.get(position++) < 0) {
+                // continuation bytes of the number
+            }
+        }
+        return position - start;
+    }
+
+    /**
+     * Appends the value written by {@link Buffer#putCompact} at position to out.
+     */
+    private static void getCompact(ByteBuffer buffer, int position, StringBuilder out) {
+        int tag = buffer.get(position++) & 0xff;
+        if (tag == 0 || tag > 32) {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get(position++);
+                length |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(position++);
+            }
+            out.append(new String(bytes, StandardCharsets.UTF_8));
+        }
+        if (tag != 0) {
+            long number = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get(position++);
+                number |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            String digits = Long.toString(number);
+            for (int i = digits.length(); i < (tag > 32 ? tag - 32 : tag); i++) {
+                out.append('0');
+            }
+            out.append(digits);
+        }
+    }
+
+    private int addNamespace(String prefix) throws IOException {
+        int number = types.length;
+        if (number > 0xffff || prefix.indexOf('\n') >= 0) {
+            throw new IOException("Cannot add namespace " + prefix);
+        }
+        // on disk before any record uses it; a line cut short by a crash was never used, and is ignored
+        namespaceFile.write(ByteBuffer.wrap((prefix + "\n").getBytes(StandardCharsets.UTF_8)), namespaceFile.size());
+        namespaceFile.force(false);
+        registerNamespace(prefix);
+        return number;
+    }
+
+    private void registerNamespace(String prefix) {
+        int question = prefix.indexOf('?');
+        String[] grown = Arrays.copyOf(types, types.length + 1);
+        grown[types.length] = question > 0 ? prefix.substring(0, question) : null;
+        types = grown;
+        namespaces.put(prefix, types.length - 1);
+    }
+
+    private void readNamespaces() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) namespaceFile.size());
+        namespaceFile.read(buffer, 0);
+        String text = new String(buffer.array(), StandardCharsets.UTF_8);
+        int start = 0;
+        for (int end; (end = text.indexOf('\n', start)) >= 0; start = end + 1) {
+            registerNamespace(text.substring(start, end));
+        }
+        if (start < buffer.capacity()) {
+            namespaceFile.truncate(text.substring(0, start).getBytes(StandardCharsets.UTF_8).length);
+        }
+    }
+
+    // ---- the table
+
+    private static long capacityFor(long entries) {
+        long capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD < entries) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Builds a table twice the size from the slots of the current one, and swaps it in.
+     */
+    private void grow() throws IOException {
+        long start = System.nanoTime();
+        Table old = table;
+        Table grown = Table.create(dir.resolve(TABLE + ".tmp"), old.capacity * 2);
+        Buffer key = new Buffer();
+        for (long i = 0; i < old.capacity; i++) {
+            long slot = old.slot(i);
+            if (slot != 0) {
+                long hash = hash(recordKey((slot & OFFSET_MASK) - 1, key), key.length);
+                long j = hash & grown.mask;
+                while (grown.slot(j) != 0) {
+                    j = (j + 1) & grown.mask;
+                }
+                grown.set(j, slot);
+            }
+        }
+        swap(grown);
+        old.close();
+        log.info("Identifier index {} grew to {} slots in {} ms", dir, grown.capacity,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Replays the log into a new table, stopping at the first record that fails its CRC and clearing what is after
+     * it, then syncs.
+     */
+    private void rebuild(long expectedEntries) throws IOException {
+        Table fresh = Table.create(dir.resolve(TABLE + ".tmp"), capacityFor(expectedEntries));
+        table = fresh;
+        dirty = true;
+        size = 0;
+        used = 0;
+        Buffer key = new Buffer();
+        CRC32 check = new CRC32();
+        byte[] bytes = new byte[256];
+        long offset = 0;
+
+        while ((offset >>> CHUNK_SHIFT) < chunks.length) {
+            MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_SHIFT)];
+            int within = (int) (offset & (CHUNK_SIZE - 1));
+            int length = chunk.getInt(within);
+            if (length == SKIP) {
+                offset = (offset | (CHUNK_SIZE - 1)) + 1;
+                continue;
+            }
+            if (length < 3 || within + HEADER + length + 4 > CHUNK_SIZE) {
+                break;
+            }
+            if (bytes.length < length) {
+                bytes = new byte[length * 2];
+            }
+            ByteBuffer source = chunk.duplicate();
+            source.position(within + HEADER);
+            source.get(bytes, 0, length);
+            check.reset();
+            check.update(bytes, 0, length);
+            if ((int) check.getValue() != chunk.getInt(within + 4)) {
+                break;
+            }
+
+            long hash = hash(recordKey(offset, key), key.length);
+            long i = find(table, key.bytes, key.length, hash);
+            long slot = table.slot(i);
+            boolean live = slot != 0 && kind(slot) == PUT;
+            if (bytes[0] == PUT || slot != 0) {
+                table.set(i, (hash >>> OFFSET_BITS) << OFFSET_BITS | (offset + 1));
+                used += slot == 0 ? 1 : 0;
+                size += (bytes[0] == PUT ? 1 : 0) - (live ? 1 : 0);
+            }
+            offset += HEADER + length;
+            // the end of log too, as recordKey and find read records before it
+            logEnd = offset;
+            if (used > table.capacity * MAX_LOAD) {
+                grow();
+            }
+        }
+
+        // anything after the last good record is a write cut short by the crash; clear it so it is not taken for
+        // records once new ones are appended in front of it
+        logEnd = offset;
+        int c = (int) (offset >>> CHUNK_SHIFT);
+        if (c < chunks.length) {
+            ByteBuffer clear = chunks[c].duplicate();
+            clear.position((int) (offset & (CHUNK_SIZE - 1)));
+            byte[] zeros = new byte[1 << 16];
+            while (clear.hasRemaining()) {
+                clear.put(zeros, 0, Math.min(zeros.length, clear.remaining()));
+            }
+            chunks[c].force();
+            for (int later = c + 1; later < chunks.length; later++) {
+                Files.delete(dir.resolve(chunkName(later)));
+            }
+            chunks = Arrays.copyOf(chunks, c + 1);
+        }
+        synced = 0;
+        if (table == fresh) {
+            // else grow has already swapped in a bigger one
+            swap(fresh);
+        }
+        sync();
+    }
+
+    /**
+     * Copies the record's key into key and returns its bytes.
+     */
+    private byte[] recordKey(long offset, Buffer key) {
+        MappedByteBuffer chunk = chunks[(int) (offset >>> CHUNK_SHIFT)];
+        int start = (int) (offset & (CHUNK_SIZE - 1)) + HEADER + 1;
+        key.length = 0;
+        int length = keyLength(chunk, start);
+        for (int i = 0; i < length; i++) {
+            key.put(chunk.get(start + i));
+        }
+        return key.bytes;
+    }
+
+    /**
+     * Makes the table, written to the temporary file, the index's table file.
+     */
+    private void swap(Table replacement) throws IOException {
+        replacement.header.putLong(H_LOG_END, logEnd);
+        replacement.header.putLong(H_SIZE, size);
+        replacement.header.putLong(H_USED, used);
+        replacement.markDirty();
+        dirty = true;
+        Files.move(dir.resolve(TABLE + ".tmp"), dir.resolve(TABLE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        table = replacement;
+    }
+
+    /**
+     * FNV-1a, then the MurmurHash3 finalizer so that both the low bits (the slot) and the high bits (the
+     * fingerprint) depend on every byte.
+     */
+    static long hash(byte[] bytes, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            h ^= bytes[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final class Table {
+
+        private final FileChannel channel;
+        private final MappedByteBuffer header;
+        private final MappedByteBuffer[] pages;
+        private final long capacity;
+        private final long mask;
+        private final long pageMask;
+
+        private Table(FileChannel channel, long capacity) throws IOException {
+            this.channel = channel;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            long slotsPerPage = Math.min(capacity, 1L << PAGE_SHIFT);
+            this.pageMask = slotsPerPage - 1;
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            this.pages = new MappedByteBuffer[(int) (capacity / slotsPerPage)];
+            for (int p = 0; p < pages.length; p++) {
+                pages[p] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + p * slotsPerPage * 8,
+                        slotsPerPage * 8);
+            }
+        }
+
+        static Table create(Path file, long capacity) throws IOException {
+            Files.deleteIfExists(file);
+            Table table = new Table(FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE), capacity);
+            table.header.putLong(H_MAGIC, MAGIC);
+            table.header.putLong(H_CAPACITY, capacity);
+            return table;
+        }
+
+        /**
+         * The table in file, or null if it is not one.
+         */
+        static Table open(Path file) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(16);
+            channel.read(header, 0);
+            long capacity = header.getLong(H_CAPACITY);
+            if (header.getLong(H_MAGIC) != MAGIC || Long.bitCount(capacity) != 1
+                    || channel.size() < HEADER_BYTES + capacity * 8) {
+                channel.close();
+                return null;
+            }
+            return new Table(channel, capacity);
+        }
+
+        long slot(long i) {
+            return pages[(int) (i >>> PAGE_SHIFT)].getLong((int) (i & pageMask) << 3);
+        }
+
+        void set(long i, long slot) {
+            pages[(int) (i >>> PAGE_SHIFT)].putLong((int) (i & pageMask) << 3, slot);
+        }
+
+        void markDirty() {
+            header.putInt(H_DIRTY, 1);
+            header.force();
+        }
+
+        void force(long logEnd, long size, long used) {
+            for (MappedByteBuffer page : pages) {
+                page.force();
+            }
+            header.putLong(H_LOG_END, logEnd);
+            header.putLong(H_SIZE, size);
+            header.putLong(H_USED, used);
+            header.putInt(H_DIRTY, 0);
+            header.force();
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * A growable byte array for encoding keys and records.
+     */
+    private static final class Buffer {
+
+        private byte[] bytes = new byte[128];
+        private int length;
+
+        void put(byte b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = b;
+        }
+
+        void putInt(int value) {
+            put((byte) (value >>> 24));
+            put((byte) (value >>> 16));
+            put((byte) (value >>> 8));
+            put((byte) value);
+        }
+
+        void put(byte[] source, int offset, int count) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(length + count, length * 2));
+            }
+            System.arraycopy(source, offset, bytes, length, count);
+            length += count;
+        }
+
+        void putVarLong(long value) {
+            while ((value & ~0x7fL) != 0) {
+                put((byte) (value & 0x7f | 0x80));
+                value >>>= 7;
+            }
+            put((byte) value);
+        }
+
+        /**
+         * Writes s from start on. Trailing digits, up to 18 of them, are written as a number after a tag giving how
+         * many there were: tag n for n digits and nothing else, tag 32 + n after the rest of the text, tag 0 for text
+         * with no trailing digits. Text is written as its length and its UTF-8 bytes.
+         */
+        void putCompact(String s, int start) {
+            int digits = 0;
+            while (digits < 18 && s.length() - digits > start && isDigit(s.charAt(s.length() - digits - 1))) {
+                digits++;
+            }
+            int textEnd = s.length() - digits;
+            if (digits > 0 && textEnd == start) {
+                put((byte) digits);
+            }
+            else {
+                put((byte) (digits > 0 ? 32 + digits : 0));
+                int mark = length;
+                boolean ascii = true;
+                for (int i = start; i < textEnd && ascii; i++) {
+                    ascii = s.charAt(i) < 0x80;
+                }
+                if (ascii) {
+                    putVarLong(textEnd - start);
+                    for (int i = start; i < textEnd; i++) {
+                        put((byte) s.charAt(i));
+                    }
+                }
+                else {
+                    byte[] utf8 = s.substring(start, textEnd).getBytes(StandardCharsets.UTF_8);
+                    length = mark;
+                    putVarLong(utf8.length);
+                    put(utf8, 0, utf8.length);
+                }
+            }
+            if (digits > 0) {
+                putVarLong(Long.parseLong(s.substring(textEnd)));
+            }
+        }
+
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+    }
+
+    /**
+     * Usage: IdentifierIndex [--entries n,n,...] [--lookups n] [--dir path] [--heap n]
+     *
+     * For each --entries count (1000000,10000000), fills a new index in --dir (target/identifier-index) with that
+     * many identifiers, one MRN for every ten visit numbers spread over four facilities, and logs the fill rate and
+     * bytes per entry on disk. Then times --lookups (1000000) random lookups, of which a tenth miss, reopens the
+     * index after closing it and after abandoning it unsynced, and checks the entries are all still there, and that
+     * none is used when reopened with a TTL of 0. Finally fills a HashMap with --heap (1000000) of the same entries to
+     * compare the heap it takes.
+     */
+    public static void main(String[] args) throws Exception {
+
+        long[] counts = { 1_000_000, 10_000_000 };
+        int lookups = 1_000_000;
+        Path root = Paths.get("target/identifier-index");
+        int heap = 1_000_000;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--entries".equals(args[i])) {
+                counts = Arrays.stream(args[++i].split(",")).mapToLong(Long::parseLong).toArray();
+            }
+            else if ("--lookups".equals(args[i])) {
+                lookups = Integer.parseInt(args[++i]);
+            }
+            else if ("--dir".equals(args[i])) {
+                root = Paths.get(args[++i]);
+            }
+            else if ("--heap".equals(args[i])) {
+                heap = Integer.parseInt(args[++i]);
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        String[] mrnPrefixes = new String[4];
+        String[] visitPrefixes = new String[4];
+        for (int f = 0; f < 4; f++) {
+            // as ConditionalUrls.requestUrl writes them, without the value
+            mrnPrefixes[f] = "Patient?identifier=https://fhir.experiments.com/System/MeditechMrn/FAC" + f + "|";
+            visitPrefixes[f] = "Encounter?identifier=https://fhir.experiments.com/System/MeditechVisitNumber/FAC"
+                    + f + "|";
+        }
+
+        for (long count : counts) {
+            Path dir = root.resolve(Long.toString(count));
+            if (Files.exists(dir)) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path file : stream) {
+                        Files.delete(file);
+                    }
+                }
+            }
+
+            long start = System.nanoTime();
+            try (IdentifierIndex index = new IdentifierIndex(dir, count, TimeUnit.DAYS.toMillis(1))) {
+                for (long n = 0; n < count; n++) {
+                    index.put(key(n, mrnPrefixes, visitPrefixes), id(n));
+                }
+                index.sync();
+                long elapsed = System.nanoTime() - start;
+                log.info("{} entries filled in {} ms ({} per second): log {} MB, table {} MB ({} slots), "
+                                + "{} bytes per entry", count, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                        String.format("%.0f", count * 1e9 / elapsed), index.getLogBytes() >> 20,
+                        index.getTableBytes() >> 20, index.getCapacity(),
+                        String.format("%.1f", (index.getLogBytes() + index.getTableBytes()) / (double) count));
+
+                SplittableRandom random = new SplittableRandom(count);
+                for (int round = 0; round < 3; round++) {
+                    long[] latencies = new long[lookups];
+                    long found = 0;
+                    long lookupStart = System.nanoTime();
+                    for (int i = 0; i < lookups; i++) {
+                        // one in ten past the end, so a miss
+                        long n = random.nextLong(count + count / 10);
+                        String key = key(n, mrnPrefixes, visitPrefixes);
+                        long t0 = System.nanoTime();
+                        String id = index.get(key);
+                        latencies[i] = System.nanoTime() - t0;
+                        if (id != null) {
+                            found++;
+                            if (!id.equals(id(n))) {
+                                throw new IllegalStateException(key + " gave " + id + ", not " + id(n));
+                            }
+                        }
+                        else if (n < count) {
+                            throw new IllegalStateException(key + " not found");
+                        }
+                    }
+                    long lookupElapsed = System.nanoTime() - lookupStart;
+                    Arrays.sort(latencies);
+                    log.info("{} lookups ({} found) in {} ms: p50 {} ns, p99 {} ns, p999 {} ns, max {} us", lookups,
+                            found, TimeUnit.NANOSECONDS.toMillis(lookupElapsed), latencies[lookups / 2],
+                            latencies[(int) (lookups * 0.99)], latencies[(int) (lookups * 0.999)],
+                            latencies[lookups - 1] / 1000);
+                }
+            }
+
+            start = System.nanoTime();
+            IdentifierIndex reopened = new IdentifierIndex(dir, count, TimeUnit.DAYS.toMillis(1));
+            log.info("Reopened after close in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            // changed and then abandoned without a sync, as if the process had died
+            for (long n = 0; n < 1000; n++) {
+                reopened.put(key(n, mrnPrefixes, visitPrefixes), "Patient/moved-" + n);
+            }
+            reopened.invalidate(key(1000, mrnPrefixes, visitPrefixes));
+            reopened.table.close();
+            reopened.namespaceFile.close();
+
+            start = System.nanoTime();
+            try (IdentifierIndex recovered = new IdentifierIndex(dir, count, TimeUnit.DAYS.toMillis(1))) {
+                log.info("Reopened after a crash in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                for (long n = 0; n < count; n++) {
+                    String expected = n < 1000 ? "Patient/moved-" + n : n == 1000 ? null : id(n);
+                    String id = recovered.get(key(n, mrnPrefixes, visitPrefixes));
+                    if (expected == null ? id != null : !expected.equals(id)) {
+                        throw new IllegalStateException("Entry " + n + " is " + id + " after recovery, not "
+                                + expected);
+                    }
+                }
+                log.info("All {} entries checked after recovery, {} in the index", count, recovered.size());
+            }
+
+            try (IdentifierIndex expired = new IdentifierIndex(dir, count, 0)) {
+                for (long n = 0; n < Math.min(count, 1000); n++) {
+                    String id = expired.get(key(n, mrnPrefixes, visitPrefixes));
+                    if (id != null) {
+                        throw new IllegalStateException("Entry " + n + " is " + id + " with a TTL of 0");
+                    }
+                }
+            }
+        }
+
+        if (heap == 0) {
+            return;
+        }
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        Map<String, String> map = new HashMap<>();
+        for (long n = 0; n < heap; n++) {
+            map.put(key(n, mrnPrefixes, visitPrefixes), id(n));
+        }
+        System.gc();
+        long after = runtime.totalMemory() - runtime.freeMemory();
+        log.info("HashMap of {} entries: {} bytes per entry on the heap", map.size(),
+                String.format("%.0f", (after - before) / (double) map.size()));
+    }
+
+    private static String key(long n, String[] mrnPrefixes, String[] visitPrefixes) {
+        int facility = (int) (n & 3);
+        StringBuilder key = new StringBuilder(96);
+        if (n % 11 == 0) {
+            key.append(mrnPrefixes[facility]).append('K');
+            return pad(key, n / 11, 9).toString();
+        }
+        key.append(visitPrefixes[facility]);
+        return pad(key, n, 10).toString();
+    }
+
+    private static StringBuilder pad(StringBuilder out, long number, int digits) {
+        String text = Long.toString(number);
+        for (int i = text.length(); i < digits; i++) {
+            out.append('0');
+        }
+        return out.append(text);
+    }
+
+    private static String id(long n) {
+        return (n % 11 == 0 ? "Patient/" : "Encounter/") + (n + 1);
+    }
+}
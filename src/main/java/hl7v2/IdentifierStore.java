@@ -0,0 +1,24 @@
+package hl7v2;
+
+/**
+ * Maps conditional URLs such as Patient?identifier=system|value to the versionless Type/id the server resolved them
+ * to. {@link IdentifierCache} keeps a bounded set on the heap; {@link IdentifierIndex} keeps them all on disk.
+ * Implementations are thread-safe.
+ *
+ * A store whose storage fails throws an unchecked exception, an {@link java.io.UncheckedIOException} for I/O. Callers
+ * treat that as a miss: nothing stored is needed for a write to succeed, only to save the server a search.
+ */
+public interface IdentifierStore {
+
+    /**
+     * The Type/id the URL resolved to, or null if not known.
+     */
+    String get(String conditionalUrl);
+
+    void put(String conditionalUrl, String id);
+
+    /**
+     * Forgets the URL, e.g. after a write to the id it resolved to failed.
+     */
+    void invalidate(String conditionalUrl);
+}
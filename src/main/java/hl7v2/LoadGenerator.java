@@ -0,0 +1,297 @@
+package hl7v2;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays HL7 messages through conversion and delivery at a fixed rate and measures how long each takes to be
+ * delivered.
+ *
+ * The load is open: message i is due at start + i / rate whether or not earlier ones have completed, and its latency
+ * is measured from when it was due, not from when it was actually sent. A generator that waits for the system before
+ * sending the next message measures only the messages the system let through, and hides the time the others spend
+ * queued behind a stall; this one counts that time against every message it delays.
+ *
+ * Messages are delivered either one transaction each through {@link AsyncFhirClient}, or batched by
+ * {@link FhirBatchWriter}, both through a {@link DeliveryController} that retries transient failures. Unless a
+ * server URL is given, they go to an in-process {@link StubFhirServer}.
+ */
+public class LoadGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private final long[] latencies;
+    private final CountDownLatch done;
+    private final AtomicLong failed = new AtomicLong();
+    private long start;
+
+    private LoadGenerator(int messages) {
+        this.latencies = new long[messages];
+        this.done = new CountDownLatch(messages);
+    }
+
+    private void completed(int i, long due, boolean ok) {
+        latencies[i] = System.nanoTime() - due;
+        if (!ok) {
+            failed.incrementAndGet();
+        }
+        done.countDown();
+    }
+
+    /**
+     * Waits until the message is due and returns when that was.
+     */
+    private long awaitDue(int i, double rate) {
+        long due = start + (long) (i * TimeUnit.SECONDS.toNanos(1) / rate);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        return due;
+    }
+
+    private void transactions(HL7Converter converter, List<String> messages, double rate,
+                              DeliveryController controller, int window) throws Exception {
+
+        AsyncFhirClient async = new AsyncFhirClient(controller, window);
+        try {
+            start = System.nanoTime();
+            for (int i = 0; i < messages.size(); i++) {
+                long due = awaitDue(i, rate);
+                int index = i;
+                ConversionResult result;
+                try {
+                    result = converter.convert(messages.get(i));
+                } catch (Exception e) {
+                    log.warn("Message {} failed to convert: {}", i, e.getMessage());
+                    completed(i, due, false);
+                    continue;
+                }
+                async.transaction(ConditionalUrls.requestUrls(result), transaction(result))
+                        .whenComplete((response, e) -> completed(index, due, e == null));
+            }
+            done.await();
+        } finally {
+            async.close();
+        }
+    }
+
+    private void batches(HL7Converter converter, List<String> messages, double rate,
+                         DeliveryController controller, long maxDelayMillis, IdentifierStore ids) throws Exception {
+
+        Map<ConversionResult, long[]> pending = new ConcurrentHashMap<>();
+        FhirBatchWriter.Listener listener = new FhirBatchWriter.Listener() {
+            @Override
+            public void onDelivered(ConversionResult result, List<Bundle.BundleEntryResponseComponent> responses) {
+                long[] message = pending.remove(result);
+                completed((int) message[0], message[1], true);
+            }
+
+            @Override
+            public void onFailed(ConversionResult result, DeliveryException e) {
+                long[] message = pending.remove(result);
+                completed((int) message[0], message[1], false);
+            }
+        };
+
+        FhirBatchWriter writer = new FhirBatchWriter(controller, listener, Bundle.BundleType.TRANSACTION, 500,
+                1 << 20, maxDelayMillis, 1024, ids);
+        try {
+            start = System.nanoTime();
+            for (int i = 0; i < messages.size(); i++) {
+                long due = awaitDue(i, rate);
+                ConversionResult result;
+                try {
+                    result = converter.convert(messages.get(i));
+                } catch (Exception e) {
+                    log.warn("Message {} failed to convert: {}", i, e.getMessage());
+                    completed(i, due, false);
+                    continue;
+                }
+                pending.put(result, new long[] { i, due });
+                writer.submit(result);
+            }
+            writer.flush();
+            done.await();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static Bundle transaction(ConversionResult result) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+        for (Resource resource : result.getResources()) {
+            String url = ConditionalUrls.requestUrl(resource);
+            bundle.addEntry()
+                    .setResource(resource)
+                    .getRequest()
+                    .setUrl(url != null ? url : resource.fhirType())
+                    .setMethod(url != null ? Bundle.HTTPVerb.PUT : Bundle.HTTPVerb.POST);
+        }
+        return bundle;
+    }
+
+    private void report(String mode, double rate) {
+        long elapsed = System.nanoTime() - start;
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        log.info("{} at {} msg/s: {} messages ({} failed) in {} ms, {} msg/s; latency p50 {} ms, p99 {} ms, "
+                        + "p999 {} ms, max {} ms", mode, rate, sorted.length, failed.get(),
+                TimeUnit.NANOSECONDS.toMillis(elapsed), String.format("%.1f", sorted.length * 1e9 / elapsed),
+                millis(percentile(sorted, 0.50)), millis(percentile(sorted, 0.99)),
+                millis(percentile(sorted, 0.999)), millis(sorted[sorted.length - 1]));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }
+
+    /**
+     * Usage: LoadGenerator [file ...] [--repeat n] [--rate msg/s] [--mode transaction|batch|both] [--window n]
+     * [--max-delay ms] [--latency ms] [--jitter ms] [--fault-rate f] [--server url] [--index dir]
+     *
+     * Replays the files (ADT-2 by default) --repeat times (25) at --rate messages per second (100), as one transaction
+     * per message with up to --window in flight (16), batched with batches held for at most --max-delay (50 ms), or
+     * both (the default) one after the other. The in-process server answers after --latency (10 ms) plus up to
+     * --jitter (10 ms) and fails a fraction --fault-rate of requests (0) with 503; --server delivers to a real server
+     * instead. Batches remember the ids of written resources in an {@link IdentifierCache}, or with --index in an
+     * {@link IdentifierIndex} in that directory, which needs --server as the index is only valid for one server. Logs
+     * the throughput and latency percentiles of each run.
+     */
+    public static void main(String[] args) throws Exception {
+
+        List<Path> files = new ArrayList<>();
+        int repeat = 25;
+        double rate = 100;
+        String mode = "both";
+        int window = 16;
+        long maxDelay = 50;
+        long latency = 10;
+        long jitter = 10;
+        double faultRate = 0;
+        String url = null;
+        Path index = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--repeat".equals(args[i])) {
+                repeat = Integer.parseInt(args[++i]);
+            }
+            else if ("--rate".equals(args[i])) {
+                rate = Double.parseDouble(args[++i]);
+            }
+            else if ("--mode".equals(args[i])) {
+                mode = args[++i];
+            }
+            else if ("--window".equals(args[i])) {
+                window = Integer.parseInt(args[++i]);
+            }
+            else if ("--max-delay".equals(args[i])) {
+                maxDelay = Long.parseLong(args[++i]);
+            }
+            else if ("--latency".equals(args[i])) {
+                latency = Long.parseLong(args[++i]);
+            }
+            else if ("--jitter".equals(args[i])) {
+                jitter = Long.parseLong(args[++i]);
+            }
+            else if ("--fault-rate".equals(args[i])) {
+                faultRate = Double.parseDouble(args[++i]);
+            }
+            else if ("--server".equals(args[i])) {
+                url = args[++i];
+            }
+            else if ("--index".equals(args[i])) {
+                index = Paths.get(args[++i]);
+            }
+            else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            files.add(Paths.get("./src/main/resources/ADT-2.hl7"));
+        }
+        if (index != null && url == null) {
+            // a new stub hands out the same ids again, so ids kept from an earlier run would name other resources
+            throw new IllegalArgumentException("--index needs --server, as its ids are only valid for one server");
+        }
+
+        HL7Converter converter = HL7Converter.getInstance();
+        FhirContext ctx = converter.getFhirContext();
+        List<String> messages = new ArrayList<>();
+        for (int r = 0; r < repeat; r++) {
+            for (Path file : files) {
+                try (HL7BatchReader reader = new HL7BatchReader(file)) {
+                    reader.forEachRemaining(messages::add);
+                }
+            }
+        }
+        // warm up the conversion path so the first messages do not pay for class loading
+        for (String message : messages.subList(0, Math.min(200, messages.size()))) {
+            converter.convert(message);
+        }
+
+        StubFhirServer server = null;
+        if (url == null) {
+            server = new StubFhirServer(ctx, 0, latency);
+            server.setLatencyJitter(jitter);
+            server.setFaultRate(faultRate);
+            url = server.getBaseUrl();
+        }
+        try {
+            IGenericClient client = ctx.newRestfulGenericClient(url);
+            String[] modes = "both".equals(mode) ? new String[] { "transaction", "batch" } : new String[] { mode };
+            for (String run : modes) {
+                long requests = server != null ? server.getRequestCount() : 0;
+                DeliveryController controller = new DeliveryController(client, window, 1, window, 5_000, 3);
+                LoadGenerator generator = new LoadGenerator(messages.size());
+                if ("transaction".equals(run)) {
+                    generator.transactions(converter, messages, rate, controller, window);
+                }
+                else if ("batch".equals(run) && index != null) {
+                    try (IdentifierIndex ids = new IdentifierIndex(index, 100_000, TimeUnit.MINUTES.toMillis(10))) {
+                        generator.batches(converter, messages, rate, controller, maxDelay, ids);
+                        log.info("Identifier index: {} entries", ids.size());
+                    }
+                }
+                else if ("batch".equals(run)) {
+                    generator.batches(converter, messages, rate, controller, maxDelay,
+                            new IdentifierCache(100_000, TimeUnit.MINUTES.toMillis(10)));
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown mode " + run);
+                }
+                generator.report(run, rate);
+                if (server != null) {
+                    log.info("Server: {} requests, {} resources stored, {} retries",
+                            server.getRequestCount() - requests, server.getResourceCount(), controller.getRetries());
+                }
+            }
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package hl7v2;
+
+import org.hl7.fhir.r4.model.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The FHIR elements a {@link HL7Mapping} rule can write to, keyed by "ResourceType.element".
+ *
+ * Each target is a factory that is called once, when the mapping is compiled, with the rule's options. It returns a
+ * setter lambda with everything that can be resolved up front (enum constants, templates) already captured, so
+ * applying a rule to a message costs one method call.
+ */
+final class MappingTargets {
+
+    interface Setter<R extends Resource> {
+        void set(R resource, String value, FieldSource source);
+    }
+
+    interface Factory<R extends Resource> {
+        Setter<R> create(Options options);
+    }
+
+    /**
+     * The key=value options of a rule, other than map= and when=.
+     */
+    static class Options {
+
+        private final Map<String, HL7Mapping.Template> templates;
+
+        Options(Map<String, HL7Mapping.Template> templates) {
+            this.templates = templates;
+        }
+
+        HL7Mapping.Template template(String name) {
+            HL7Mapping.Template template = templates.get(name);
+            return template != null ? template : HL7Mapping.Template.EMPTY;
+        }
+
+        /**
+         * An option that must not reference any message fields, e.g. an enum code.
+         */
+        String constant(String name) {
+            HL7Mapping.Template template = template(name);
+            if (!template.isConstant()) {
+                throw new IllegalArgumentException("Option " + name + " must be a constant");
+            }
+            return template.render(null);
+        }
+    }
+
+    private static final Map<String, Supplier<Resource>> RESOURCES = new HashMap<>();
+    private static final Map<String, Factory<?>> TARGETS = new HashMap<>();
+
+    static {
+        RESOURCES.put("Location", Location::new);
+        RESOURCES.put("Patient", Patient::new);
+        RESOURCES.put("Encounter", Encounter::new);
+        RESOURCES.put("Practitioner", Practitioner::new);
+        RESOURCES.put("ServiceRequest", ServiceRequest::new);
+
+        register(Location.class, "id", o -> (r, v, s) -> r.setId(v));
+        register(Location.class, "physicalType", o -> {
+            HL7Mapping.Template system = o.template("system");
+            return (r, v, s) -> r.getPhysicalType().addCoding().setCode(v).setSystem(system.render(s));
+        });
+
+        register(Patient.class, "identifier", o -> {
+            HL7Mapping.Template system = o.template("system");
+            return (r, v, s) -> r.addIdentifier().setSystem(system.render(s)).setValue(v);
+        });
+        register(Patient.class, "name.use", o -> (r, v, s) -> r.getNameFirstRep().setUse(HumanName.NameUse.fromCode(v)));
+        register(Patient.class, "name.family", o -> (r, v, s) -> r.getNameFirstRep().setFamily(v));
+        register(Patient.class, "name.given", o -> (r, v, s) -> r.getNameFirstRep().addGiven(v));
+        register(Patient.class, "gender", o -> (r, v, s) -> r.setGender(Enumerations.AdministrativeGender.fromCode(v)));
+        register(Patient.class, "birthDate", o -> (r, v, s) -> {
+            DateType date = HL7DateTime.getInstance().toDate(v);
+            if (date != null) {
+                r.setBirthDateElement(date);
+            }
+        });
+        register(Patient.class, "telecom", o -> {
+            ContactPoint.ContactPointSystem system = ContactPoint.ContactPointSystem.fromCode(o.constant("system"));
+            ContactPoint.ContactPointUse use = ContactPoint.ContactPointUse.fromCode(o.constant("use"));
+            return (r, v, s) -> r.addTelecom().setSystem(system).setUse(use).setValue(v);
+        });
+        register(Patient.class, "address.use", o -> (r, v, s) -> r.getAddressFirstRep().setUse(Address.AddressUse.fromCode(v)));
+        register(Patient.class, "address.line", o -> (r, v, s) -> r.getAddressFirstRep().addLine(v));
+        register(Patient.class, "address.city", o -> (r, v, s) -> r.getAddressFirstRep().setCity(v));
+        register(Patient.class, "address.state", o -> (r, v, s) -> r.getAddressFirstRep().setState(v));
+        register(Patient.class, "address.postalCode", o -> (r, v, s) -> r.getAddressFirstRep().setPostalCode(v));
+        register(Patient.class, "contact.relationship", o -> {
+            HL7Mapping.Template system = o.template("system");
+            return (r, v, s) -> r.getContactFirstRep().addRelationship().addCoding().setCode(v).setSystem(system.render(s));
+        });
+        register(Patient.class, "contact.name.use", o -> (r, v, s) -> r.getContactFirstRep().getName().setUse(HumanName.NameUse.fromCode(v)));
+        register(Patient.class, "contact.name.family", o -> (r, v, s) -> r.getContactFirstRep().getName().setFamily(v));
+        register(Patient.class, "contact.name.given", o -> (r, v, s) -> r.getContactFirstRep().getName().addGiven(v));
+        register(Patient.class, "contact.address.line", o -> (r, v, s) -> r.getContactFirstRep().getAddress().addLine(v));
+        register(Patient.class, "contact.address.city", o -> (r, v, s) -> r.getContactFirstRep().getAddress().setCity(v));
+        register(Patient.class, "contact.address.state", o -> (r, v, s) -> r.getContactFirstRep().getAddress().setState(v));
+        register(Patient.class, "contact.address.postalCode", o -> (r, v, s) -> r.getContactFirstRep().getAddress().setPostalCode(v));
+        register(Patient.class, "contact.telecom", o -> {
+            ContactPoint.ContactPointSystem system = ContactPoint.ContactPointSystem.fromCode(o.constant("system"));
+            ContactPoint.ContactPointUse use = ContactPoint.ContactPointUse.fromCode(o.constant("use"));
+            return (r, v, s) -> r.getContactFirstRep().addTelecom().setSystem(system).setUse(use).setValue(v);
+        });
+
+        register(Encounter.class, "identifier", o -> {
+            HL7Mapping.Template system = o.template("system");
+            return (r, v, s) -> r.addIdentifier().setSystem(system.render(s)).setValue(v);
+        });
+        register(Encounter.class, "status", o -> (r, v, s) -> r.setStatus(Encounter.EncounterStatus.fromCode(v)));
+        register(Encounter.class, "class", o -> {
+            HL7Mapping.Template system = o.template("system");
+            return (r, v, s) -> r.setClass_(new Coding().setSystem(system.render(s)).setCode(v));
+        });
+        register(Encounter.class, "type.coding", o -> {
+            HL7Mapping.Template system = o.template("system");
+            return (r, v, s) -> r.getTypeFirstRep().addCoding().setCode(v).setSystem(system.render(s));
+        });
+        register(Encounter.class, "serviceType", o -> {
+            HL7Mapping.Template system = o.template("system");
+            return (r, v, s) -> r.getServiceType().addCoding().setCode(v).setSystem(system.render(s));
+        });
+        register(Encounter.class, "reasonCode.text", o -> (r, v, s) -> r.addReasonCode().setText(v));
+        register(Encounter.class, "period.start", o -> (r, v, s) -> {
+            DateTimeType date = HL7DateTime.getInstance().toDateTime(v);
+            if (date != null) {
+                r.getPeriod().setStartElement(date);
+            }
+        });
+        register(Encounter.class, "period.end", o -> (r, v, s) -> {
+            DateTimeType date = HL7DateTime.getInstance().toDateTime(v);
+            if (date != null) {
+                r.getPeriod().setEndElement(date);
+            }
+        });
+
+        register(Practitioner.class, "id", o -> (r, v, s) -> r.setId(v));
+        register(Practitioner.class, "name.family", o -> (r, v, s) -> r.getNameFirstRep().setFamily(v));
+        register(Practitioner.class, "name.given", o -> (r, v, s) -> r.getNameFirstRep().addGiven(v));
+
+        register(ServiceRequest.class, "intent", o -> (r, v, s) -> r.setIntent(ServiceRequest.ServiceRequestIntent.fromCode(v)));
+        register(ServiceRequest.class, "status", o -> (r, v, s) -> r.setStatus(ServiceRequest.ServiceRequestStatus.fromCode(v)));
+        register(ServiceRequest.class, "identifier", o -> {
+            HL7Mapping.Template system = o.template("system");
+            return (r, v, s) -> r.addIdentifier().setSystem(system.render(s)).setValue(v);
+        });
+        register(ServiceRequest.class, "extension", o -> {
+            HL7Mapping.Template url = o.template("url");
+            return (r, v, s) -> r.addExtension().setUrl(url.render(s)).setValue(new StringType(v));
+        });
+        register(ServiceRequest.class, "occurrencePeriod.start", o -> (r, v, s) -> {
+            DateTimeType date = HL7DateTime.getInstance().toDateTime(v);
+            if (date != null) {
+                r.getOccurrencePeriod().setStartElement(date);
+            }
+        });
+        register(ServiceRequest.class, "authoredOn", o -> (r, v, s) -> {
+            DateTimeType date = HL7DateTime.getInstance().toDateTime(v);
+            if (date != null) {
+                r.setAuthoredOnElement(date);
+            }
+        });
+        register(ServiceRequest.class, "code.coding", o -> {
+            HL7Mapping.Template system = o.template("system");
+            HL7Mapping.Template display = o.template("display");
+            return (r, v, s) -> r.getCode().addCoding().setSystem(system.render(s)).setCode(v).setDisplay(display.render(s));
+        });
+    }
+
+    private MappingTargets() {
+    }
+
+    private static <R extends Resource> void register(Class<R> type, String element, Factory<R> factory) {
+        TARGETS.put(type.getSimpleName() + "." + element, factory);
+    }
+
+    static Supplier<Resource> resource(String type) {
+        Supplier<Resource> supplier = RESOURCES.get(type);
+        if (supplier == null) {
+            throw new IllegalArgumentException("Unknown resource type " + type);
+        }
+        return supplier;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Setter<Resource> target(String type, String element, Options options) {
+        Factory<Resource> factory = (Factory<Resource>) TARGETS.get(type + "." + element);
+        if (factory == null) {
+            throw new IllegalArgumentException("Unknown target " + type + "." + element);
+        }
+        return factory.create(options);
+    }
+}
@@ -0,0 +1,755 @@
+package hl7v2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Receives HL7 v2 messages over MLLP, converts them and acknowledges each with an ACK built from its MSH.
+ *
+ * One selector thread does all socket I/O: it accepts connections, frames messages (0x0b, message, 0x1c 0x0d) and
+ * writes acks. Framed messages are converted and given to the {@link Handler} on a pool of worker threads, one message
+ * at a time per connection, so acks go back in the order the messages arrived. The ack is AA once the handler has
+ * accepted the result, AE if conversion or the handler failed, and AR, without converting, for a message that is not
+ * an ADT or ORM or has no MSH.
+ *
+ * Nothing is buffered without limit. A connection is not read from while it has maxPending messages waiting for
+ * their acks, or while maxInFlight messages are being worked on over all connections; the unread bytes then fill the
+ * socket buffers and the sender's writes block. A handler that blocks, such as {@link FhirBatchWriter#submit} when
+ * delivery falls behind, therefore slows the senders down to the rate delivery keeps up with.
+ */
+public class MllpServer implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(MllpServer.class);
+
+    static final byte START_BLOCK = 0x0b;
+    static final byte END_BLOCK = 0x1c;
+    static final byte CR = '\r';
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    public interface Handler {
+
+        /**
+         * Called on a worker thread, in arrival order for any one connection. May block to slow the senders down;
+         * an exception sends an AE.
+         */
+        void accept(ConversionResult result) throws Exception;
+    }
+
+    private final HL7Converter converter;
+    private final Handler handler;
+    private final int maxPending;
+    private final int maxInFlight;
+    private final int maxMessageSize;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers;
+    private final Thread selectorThread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // connections not read from because too many messages are in flight, touched only by the selector thread
+    private final Set<Connection> paused = new HashSet<>();
+    private volatile boolean closed;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong pauses = new AtomicLong();
+    private final AtomicLong ackIds = new AtomicLong();
+
+    /**
+     * @param port        0 picks a free port
+     * @param threads     worker threads converting messages and calling the handler
+     * @param maxPending  messages a connection may have waiting for acks before it is no longer read from
+     * @param maxInFlight messages being worked on over all connections before none is read from
+     */
+    public MllpServer(HL7Converter converter, Handler handler, int port, int threads, int maxPending, int maxInFlight)
+            throws IOException {
+
+        this.converter = converter;
+        this.handler = handler;
+        this.maxPending = maxPending;
+        this.maxInFlight = maxInFlight;
+        this.maxMessageSize = HL7BatchReader.DEFAULT_MAX_MESSAGE_SIZE;
+
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress("localhost", port));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "mllp-worker-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.selectorThread = new Thread(this::run, "mllp-selector");
+        this.selectorThread.start();
+        log.info("MLLP server listening on port {}", getPort());
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /** Messages framed. */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /** Messages acked with AA. */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /** Messages acked with AE. */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /** Messages acked with AR. */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /** Times a connection stopped being read from to hold back the sender. */
+    public long getPauses() {
+        return pauses.get();
+    }
+
+    /**
+     * Stops accepting and reading, closes the connections and waits for the workers to finish what they have.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        selector.wakeup();
+        selectorThread.join();
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        log.warn("MLLP selector task failed", e);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException | RuntimeException e) {
+                            // e.g. out of file descriptors; the listening socket stays open
+                            log.warn("MLLP accept failed: {}", e.toString());
+                        }
+                        continue;
+                    }
+                    try {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        log.warn("Closing MLLP connection: {}", e.toString());
+                        if (key.attachment() instanceof Connection) {
+                            ((Connection) key.attachment()).close();
+                        }
+                        else {
+                            key.cancel();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("MLLP selector failed", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                log.warn("Closing MLLP server failed", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        log.debug("MLLP connection from {}", channel.getRemoteAddress());
+    }
+
+    /**
+     * Runs the task on the selector thread.
+     */
+    private void post(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Converts the message, hands it to the handler and returns the ack.
+     */
+    byte[] process(String message) {
+
+        String[] msh = msh(message);
+        if (msh == null) {
+            rejected.incrementAndGet();
+            return ack(null, "AR", "No MSH segment");
+        }
+        String type = component(msh, 9, 1);
+        if (!"ADT".equals(type) && !"ORM".equals(type)) {
+            rejected.incrementAndGet();
+            return ack(msh, "AR", "Unsupported message type " + type);
+        }
+
+        try {
+            handler.accept(converter.convert(message));
+            accepted.incrementAndGet();
+            return ack(msh, "AA", null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            errors.incrementAndGet();
+            return ack(msh, "AE", "Interrupted");
+        } catch (Exception e) {
+            log.warn("Message {} failed: {}", field(msh, 10), e.toString());
+            errors.incrementAndGet();
+            return ack(msh, "AE", e.getMessage());
+        }
+    }
+
+    /**
+     * The fields of the MSH segment, MSH-n at index n, or null if the message does not start with one.
+     */
+    static String[] msh(String message) {
+        if (message.length() < 8 || !message.startsWith("MSH")) {
+            return null;
+        }
+        int end = message.length();
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '\r' || c == '\n') {
+                end = i;
+                break;
+            }
+        }
+        char separator = message.charAt(3);
+        List<String> fields = new ArrayList<>(20);
+        fields.add("MSH");
+        fields.add(String.valueOf(separator));
+        int start = 4;
+        for (int i = 4; i <= end; i++) {
+            if (i == end || message.charAt(i) == separator) {
+                fields.add(message.substring(start, i));
+                start = i + 1;
+            }
+        }
+        return fields.toArray(new String[0]);
+    }
+
+    private static String field(String[] msh, int number) {
+        return msh != null && number < msh.length ? msh[number] : "";
+    }
+
+    private static String component(String[] msh, int number, int component) {
+        String field = field(msh, number);
+        char separator = msh[2].isEmpty() ? '^' : msh[2].charAt(0);
+        int start = 0;
+        for (int i = 1; i < component; i++) {
+            start = field.indexOf(separator, start) + 1;
+            if (start == 0) {
+                return "";
+            }
+        }
+        int end = field.indexOf(separator, start);
+        return end < 0 ? field.substring(start) : field.substring(start, end);
+    }
+
+    /**
+     * An ACK to the message with the given MSH, framed for MLLP: sender and receiver swapped, the trigger event,
+     * processing id and version echoed, and MSA with the code, the message's control id and the error text, if any.
+     */
+    byte[] ack(String[] msh, String code, String text) {
+        String separator = msh != null ? msh[1] : "|";
+        String encoding = msh != null && !msh[2].isEmpty() ? msh[2] : "^~\\&";
+        StringBuilder ack = new StringBuilder(160);
+        ack.append((char) START_BLOCK)
+                .append("MSH").append(separator).append(encoding)
+                .append(separator).append(field(msh, 5))
+                .append(separator).append(field(msh, 6))
+                .append(separator).append(field(msh, 3))
+                .append(separator).append(field(msh, 4))
+                .append(separator).append(LocalDateTime.now().format(TIMESTAMP))
+                .append(separator)
+                .append(separator).append("ACK").append(encoding.charAt(0))
+                .append(msh != null ? component(msh, 9, 2) : "").append(encoding.charAt(0)).append("ACK")
+                .append(separator).append(ackIds.incrementAndGet())
+                .append(separator).append(msh != null ? field(msh, 11) : "P")
+                .append(separator).append(msh != null ? field(msh, 12) : "2.4")
+                .append((char) CR)
+                .append("MSA").append(separator).append(code)
+                .append(separator).append(field(msh, 10));
+        if (text != null) {
+            ack.append(separator);
+            // the text must not break the segment
+            for (int i = 0; i < text.length() && i < 80; i++) {
+                char c = text.charAt(i);
+                ack.append(c == '\r' || c == '\n' || separator.indexOf(c) >= 0 || encoding.indexOf(c) >= 0 ? ' ' : c);
+            }
+        }
+        ack.append((char) CR).append((char) END_BLOCK).append((char) CR);
+        return ack.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private class Connection {
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        private byte[] frame = new byte[4096];
+        private int frameLength = -1;
+
+        // messages framed but not yet acked, and acks not yet written; guarded by this
+        private final Queue<String> messages = new ArrayDeque<>();
+        private final Queue<ByteBuffer> out = new ArrayDeque<>();
+        private int pending;
+        private boolean draining;
+        private boolean reading = true;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Reads what is available and dispatches every complete message in it.
+         */
+        void read() throws IOException {
+            int n = channel.read(in);
+            if (n < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            byte[] bytes = in.array();
+            for (int i = in.position(); i < in.limit(); i++) {
+                byte b = bytes[i];
+                if (frameLength < 0) {
+                    // between frames only the start block matters; the CR after an end block is skipped here
+                    if (b == START_BLOCK) {
+                        frameLength = 0;
+                    }
+                }
+                else if (b == END_BLOCK) {
+                    dispatch(new String(frame, 0, frameLength, StandardCharsets.UTF_8));
+                    frameLength = -1;
+                }
+                else {
+                    if (frameLength == frame.length) {
+                        if (frameLength >= maxMessageSize) {
+                            throw new IOException("Message larger than " + maxMessageSize + " bytes");
+                        }
+                        frame = Arrays.copyOf(frame, Math.min(frame.length * 2, maxMessageSize));
+                    }
+                    frame[frameLength++] = b;
+                }
+            }
+            in.clear();
+            updateInterest();
+        }
+
+        private void dispatch(String message) {
+            received.incrementAndGet();
+            inFlight.incrementAndGet();
+            boolean start;
+            synchronized (this) {
+                pending++;
+                messages.add(message);
+                start = !draining;
+                draining = true;
+            }
+            if (start) {
+                workers.execute(this::drain);
+            }
+        }
+
+        /**
+         * Works through the connection's messages in order on a worker thread.
+         */
+        private void drain() {
+            while (true) {
+                String message;
+                synchronized (this) {
+                    message = messages.poll();
+                    if (message == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                byte[] ack = process(message);
+                synchronized (this) {
+                    out.add(ByteBuffer.wrap(ack));
+                    pending--;
+                }
+                boolean wasFull = inFlight.getAndDecrement() >= maxInFlight;
+                post(() -> {
+                    updateInterest();
+                    if (wasFull) {
+                        resumePaused();
+                    }
+                });
+            }
+        }
+
+        void write() throws IOException {
+            synchronized (this) {
+                while (!out.isEmpty()) {
+                    ByteBuffer buffer = out.peek();
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        break;
+                    }
+                    out.poll();
+                }
+            }
+            updateInterest();
+        }
+
+        /**
+         * Reads only while the connection and the server have room, and writes while there are acks; on the selector
+         * thread.
+         */
+        void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            boolean globalRoom = inFlight.get() < maxInFlight;
+            boolean read;
+            boolean write;
+            synchronized (this) {
+                read = pending < maxPending && out.size() < maxPending && globalRoom;
+                write = !out.isEmpty();
+            }
+            if (read != reading) {
+                reading = read;
+                if (!read) {
+                    pauses.incrementAndGet();
+                }
+            }
+            if (!globalRoom) {
+                paused.add(this);
+            }
+            key.interestOps((read ? SelectionKey.OP_READ : 0) | (write ? SelectionKey.OP_WRITE : 0));
+        }
+
+        void close() {
+            paused.remove(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Closing MLLP connection failed", e);
+            }
+        }
+    }
+
+    /**
+     * Resumes reading from the connections held back by the in-flight limit; on the selector thread.
+     */
+    private void resumePaused() {
+        if (inFlight.get() >= maxInFlight || paused.isEmpty()) {
+            return;
+        }
+        List<Connection> connections = new ArrayList<>(paused);
+        paused.clear();
+        for (Connection connection : connections) {
+            connection.updateInterest();
+        }
+    }
+
+    /**
+     * Usage: MllpServer [file ...] [--messages n] [--connections n] [--window n] [--threads n] [--max-pending n]
+     * [--max-in-flight n] [--delivery-rate n] [--queue n]
+     *
+     * Starts a server whose handler queues results for a delivery thread, with --queue places (1000) and taking
+     * --delivery-rate results a second (0, as fast as they come), then sends it the files' messages, or --messages
+     * (20000) from {@link HL7Generator}, over --connections connections (2), each with at most --window messages (1)
+     * waiting for their acks. The server has --threads workers (2), --max-pending (16) and --max-in-flight (64).
+     * Logs the sustained message rate, ack latency percentiles and ack codes, and how often the server stopped reading.
+     */
+    public static void main(String[] args) throws Exception {
+
+        List<Path> files = new ArrayList<>();
+        int generate = 20_000;
+        int connections = 2;
+        int window = 1;
+        int threads = 2;
+        int maxPending = 16;
+        int maxInFlight = 64;
+        int deliveryRate = 0;
+        int queueSize = 1000;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--messages".equals(args[i])) {
+                generate = Integer.parseInt(args[++i]);
+            }
+            else if ("--connections".equals(args[i])) {
+                connections = Integer.parseInt(args[++i]);
+            }
+            else if ("--window".equals(args[i])) {
+                window = Integer.parseInt(args[++i]);
+            }
+            else if ("--threads".equals(args[i])) {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if ("--max-pending".equals(args[i])) {
+                maxPending = Integer.parseInt(args[++i]);
+            }
+            else if ("--max-in-flight".equals(args[i])) {
+                maxInFlight = Integer.parseInt(args[++i]);
+            }
+            else if ("--delivery-rate".equals(args[i])) {
+                deliveryRate = Integer.parseInt(args[++i]);
+            }
+            else if ("--queue".equals(args[i])) {
+                queueSize = Integer.parseInt(args[++i]);
+            }
+            else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+
+        List<String> messages = new ArrayList<>();
+        if (files.isEmpty()) {
+            HL7Generator generator = new HL7Generator(1, 10_000, 3, 2, 1.0);
+            for (int i = 0; i < generate; i++) {
+                messages.add(generator.next());
+            }
+        }
+        else {
+            for (Path file : files) {
+                try (HL7BatchReader reader = new HL7BatchReader(file)) {
+                    reader.forEachRemaining(messages::add);
+                }
+            }
+        }
+
+        // stands in for delivery: a bounded queue taken from at a fixed rate
+        BlockingQueue<ConversionResult> delivery = new ArrayBlockingQueue<>(queueSize);
+        long interval = deliveryRate > 0 ? TimeUnit.SECONDS.toNanos(1) / deliveryRate : 0;
+        Thread deliverer = new Thread(() -> {
+            try {
+                long next = System.nanoTime();
+                while (true) {
+                    delivery.take();
+                    if (interval > 0) {
+                        next = Math.max(next, System.nanoTime()) + interval;
+                        LockSupport.parkNanos(next - System.nanoTime());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "delivery");
+        deliverer.setDaemon(true);
+        deliverer.start();
+
+        HL7Converter converter = HL7Converter.getInstance();
+        for (String message : messages.subList(0, Math.min(200, messages.size()))) {
+            try {
+                converter.convert(message);
+            } catch (Exception e) {
+                // the server will reject it
+            }
+        }
+
+        try (MllpServer server = new MllpServer(converter, delivery::put, 0, threads, maxPending, maxInFlight)) {
+
+            List<Client> clients = new ArrayList<>();
+            for (int c = 0; c < connections; c++) {
+                List<String> share = new ArrayList<>();
+                for (int i = c; i < messages.size(); i += connections) {
+                    share.add(messages.get(i));
+                }
+                clients.add(new Client(server.getPort(), share, window));
+            }
+
+            long start = System.nanoTime();
+            for (Client client : clients) {
+                client.start();
+            }
+            long[] latencies = new long[messages.size()];
+            int n = 0;
+            int[] codes = new int[3];
+            for (Client client : clients) {
+                client.join();
+                if (client.error != null) {
+                    throw client.error;
+                }
+                System.arraycopy(client.latencies, 0, latencies, n, client.latencies.length);
+                n += client.latencies.length;
+                for (int i = 0; i < codes.length; i++) {
+                    codes[i] += client.codes[i];
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+
+            Arrays.sort(latencies);
+            log.info("{} messages over {} connections with window {} in {} ms: {} msg/s; ack latency p50 {} ms, "
+                            + "p99 {} ms, p999 {} ms, max {} ms; {} AA, {} AE, {} AR; reading paused {} times",
+                    messages.size(), connections, window, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                    messages.size() * TimeUnit.SECONDS.toNanos(1) / elapsed,
+                    millis(latencies, 0.50), millis(latencies, 0.99), millis(latencies, 0.999),
+                    millis(latencies, 1.0), codes[0], codes[1], codes[2], server.getPauses());
+        }
+    }
+
+    private static String millis(long[] sorted, double p) {
+        int index = Math.max(0, Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1));
+        return String.format("%.2f", sorted[index] / 1e6);
+    }
+
+    /**
+     * Sends messages over one blocking connection with up to window unacknowledged, and times each ack.
+     */
+    private static class Client extends Thread {
+
+        private final int port;
+        private final List<String> messages;
+        private final Semaphore window;
+        private final long[] sent;
+        final long[] latencies;
+        final int[] codes = new int[3];
+        volatile Exception error;
+
+        Client(int port, List<String> messages, int window) {
+            super("mllp-client");
+            this.port = port;
+            this.messages = messages;
+            this.window = new Semaphore(window);
+            this.sent = new long[messages.size()];
+            this.latencies = new long[messages.size()];
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> readAcks(socket), "mllp-client-acks");
+                reader.start();
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                for (int i = 0; i < messages.size(); i++) {
+                    window.acquire();
+                    byte[] message = messages.get(i).getBytes(StandardCharsets.UTF_8);
+                    sent[i] = System.nanoTime();
+                    out.write(START_BLOCK);
+                    out.write(message);
+                    out.write(END_BLOCK);
+                    out.write(CR);
+                    out.flush();
+                }
+                reader.join();
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+
+        private void readAcks(Socket socket) {
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                StringBuilder ack = new StringBuilder();
+                for (int i = 0; i < messages.size(); i++) {
+                    ack.setLength(0);
+                    int b;
+                    while ((b = in.read()) != START_BLOCK) {
+                        if (b < 0) {
+                            throw new IOException("Connection closed after " + i + " acks");
+                        }
+                    }
+                    while ((b = in.read()) != END_BLOCK) {
+                        if (b < 0) {
+                            throw new IOException("Connection closed in an ack");
+                        }
+                        ack.append((char) b);
+                    }
+                    latencies[i] = System.nanoTime() - sent[i];
+                    window.release();
+                    int msa = ack.indexOf("MSA|");
+                    String code = msa >= 0 ? ack.substring(msa + 4, msa + 6) : "";
+                    codes["AA".equals(code) ? 0 : "AE".equals(code) ? 1 : 2]++;
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package hl7v2;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes converted resources as compact NDJSON, one resource per line and one set of files per resource type, for
+ * loading with the Bulk Data $import operation instead of the REST API.
+ *
+ * Each resource is encoded straight into a buffered stream on its type's current file, with no intermediate String.
+ * A file is closed and the next one started once it reaches maxBytes on disk, and files can be gzip-compressed.
+ * Files are named Type.n.ndjson or Type.n.ndjson.gz, starting at 1.
+ *
+ * Since the resources do not go through a server, the sink gives each one an id if it has none, derived from its
+ * conditional URL so the same identifier always gets the same id (and a random one without an identifier), and points
+ * the Encounter and ServiceRequest at the other resources of the message as Type/id. Ids and references are set on
+ * copies, so the caller's resources are not changed. On close it writes import.json, a Parameters resource for
+ * $import that lists the files by type.
+ */
+public class NdjsonSink implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(NdjsonSink.class);
+
+    private static final int BUFFER = 64 * 1024;
+
+    private final FhirContext ctx;
+    private final IParser parser;
+    private final Path dir;
+    private final long maxBytes;
+    private final boolean gzip;
+
+    private final Map<String, Output> outputs = new LinkedHashMap<>();
+    private final Map<String, List<Path>> files = new LinkedHashMap<>();
+    private long resources;
+
+    /**
+     * @param maxBytes size on disk after which a type's file is rolled over, checked after each resource
+     */
+    public NdjsonSink(FhirContext ctx, Path dir, long maxBytes, boolean gzip) throws IOException {
+        this.ctx = ctx;
+        this.parser = ctx.newJsonParser();
+        this.dir = Files.createDirectories(dir);
+        this.maxBytes = maxBytes;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Writes the message's resources, linked to each other. The result's own resources are left as they are; ids and
+     * references go on copies.
+     */
+    public synchronized void write(ConversionResult result) throws IOException {
+        List<Resource> originals = result.getResources();
+        List<Resource> resources = new ArrayList<>(originals.size());
+        for (Resource resource : originals) {
+            resources.add(withId(resource));
+        }
+        link(result, originals, resources);
+        for (Resource resource : resources) {
+            encode(resource);
+        }
+    }
+
+    /**
+     * Writes one resource, or a copy with an id if it has none.
+     */
+    public synchronized void write(Resource resource) throws IOException {
+        encode(withId(resource));
+    }
+
+    private void encode(Resource resource) throws IOException {
+
+        String type = resource.fhirType();
+        Output output = outputs.get(type);
+        if (output == null) {
+            output = open(type);
+            outputs.put(type, output);
+        }
+
+        parser.encodeResourceToWriter(resource, output.writer);
+        output.writer.write('\n');
+        resources++;
+
+        if (output.written() >= maxBytes) {
+            output.close();
+            outputs.remove(type);
+        }
+    }
+
+    private Output open(String type) throws IOException {
+        List<Path> list = files.computeIfAbsent(type, t -> new ArrayList<>());
+        Path file = dir.resolve(type + "." + (list.size() + 1) + (gzip ? ".ndjson.gz" : ".ndjson"));
+        list.add(file);
+        return new Output(Files.newOutputStream(file), gzip);
+    }
+
+    /**
+     * The resource if it has an id, else a copy with one.
+     */
+    private static Resource withId(Resource resource) {
+        if (resource.hasIdElement() && resource.getIdElement().getIdPart() != null) {
+            return resource;
+        }
+        String url = ConditionalUrls.requestUrl(resource);
+        UUID id = url != null ? UUID.nameUUIDFromBytes(url.getBytes(StandardCharsets.UTF_8)) : UUID.randomUUID();
+        Resource copy = resource.copy();
+        copy.setId(id.toString());
+        return copy;
+    }
+
+    /**
+     * Points the Encounter and ServiceRequest at the other resources of the message, where not already set. Any it
+     * changes are copied first, unless withId already copied them.
+     */
+    private static void link(ConversionResult result, List<Resource> originals, List<Resource> resources) {
+
+        Reference patient = reference(result.getPatient(), originals, resources);
+        Reference encounter = reference(result.getEncounter(), originals, resources);
+        Reference practitioner = reference(result.getPractitioner(), originals, resources);
+        Reference facility = reference(result.getFacility(), originals, resources);
+
+        int e = originals.indexOf(result.getEncounter());
+        if (e >= 0) {
+            Encounter original = result.getEncounter();
+            boolean subject = !original.hasSubject() && patient != null;
+            boolean participant = !original.hasParticipant() && practitioner != null;
+            boolean location = !original.hasLocation() && facility != null;
+            if (subject || participant || location) {
+                Encounter copy = (Encounter) copy(originals, resources, e);
+                if (subject) {
+                    copy.setSubject(patient);
+                }
+                if (participant) {
+                    copy.addParticipant().setIndividual(practitioner);
+                }
+                if (location) {
+                    copy.addLocation().setLocation(facility);
+                }
+            }
+        }
+
+        int o = originals.indexOf(result.getServiceRequest());
+        if (o >= 0) {
+            ServiceRequest original = result.getServiceRequest();
+            boolean subject = !original.hasSubject() && patient != null;
+            boolean context = !original.hasEncounter() && encounter != null;
+            boolean requester = !original.hasRequester() && practitioner != null;
+            if (subject || context || requester) {
+                ServiceRequest copy = (ServiceRequest) copy(originals, resources, o);
+                if (subject) {
+                    copy.setSubject(patient);
+                }
+                if (context) {
+                    copy.setEncounter(encounter);
+                }
+                if (requester) {
+                    copy.setRequester(practitioner);
+                }
+            }
+        }
+    }
+
+    private static Resource copy(List<Resource> originals, List<Resource> resources, int i) {
+        Resource resource = resources.get(i);
+        if (resource == originals.get(i)) {
+            resource = resource.copy();
+            resources.set(i, resource);
+        }
+        return resource;
+    }
+
+    /**
+     * Type/id of the resource as written, from the copy with its id.
+     */
+    private static Reference reference(Resource resource, List<Resource> originals, List<Resource> resources) {
+        int i = originals.indexOf(resource);
+        if (resource == null || i < 0) {
+            return null;
+        }
+        Resource written = resources.get(i);
+        return new Reference(written.fhirType() + "/" + written.getIdElement().getIdPart());
+    }
+
+    /**
+     * The files written so far, by resource type.
+     */
+    public synchronized Map<String, List<Path>> getFiles() {
+        return new LinkedHashMap<>(files);
+    }
+
+    public synchronized long getResourceCount() {
+        return resources;
+    }
+
+    /**
+     * Closes the open files and writes import.json.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (Output output : outputs.values()) {
+            output.close();
+        }
+        outputs.clear();
+
+        Parameters parameters = new Parameters();
+        parameters.addParameter().setName("inputFormat").setValue(new StringType("application/fhir+ndjson"));
+        parameters.addParameter().setName("inputSource").setValue(new UriType(dir.toUri().toString()));
+        for (Map.Entry<String, List<Path>> entry : files.entrySet()) {
+            for (Path file : entry.getValue()) {
+                Parameters.ParametersParameterComponent input = parameters.addParameter().setName("input");
+                input.addPart().setName("type").setValue(new CodeType(entry.getKey()));
+                input.addPart().setName("url").setValue(new UriType(file.toUri().toString()));
+            }
+        }
+        try (Writer writer = Files.newBufferedWriter(dir.resolve("import.json"), StandardCharsets.UTF_8)) {
+            ctx.newJsonParser().setPrettyPrint(true).encodeResourceToWriter(parameters, writer);
+        }
+        log.info("Wrote {} resources to {} files in {}", resources,
+                files.values().stream().mapToInt(List::size).sum(), dir);
+    }
+
+    /**
+     * A type's current file: writer, then gzip if enabled, then a count of the bytes that reach the file.
+     */
+    private static class Output {
+
+        private final Counter counter;
+        private final Writer writer;
+
+        Output(OutputStream file, boolean gzip) throws IOException {
+            this.counter = new Counter(file);
+            OutputStream out = gzip
+                    ? new GZIPOutputStream(counter, BUFFER)
+                    : new BufferedOutputStream(counter, BUFFER);
+            this.writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        }
+
+        /** Bytes on disk, not counting what is still buffered. */
+        long written() {
+            return counter.count;
+        }
+
+        void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    private static class Counter extends FilterOutputStream {
+
+        private long count;
+
+        Counter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Usage: NdjsonSink [file ...] [--repeat n] [--out dir] [--max-bytes n] [--gzip]
+     *
+     * Converts the files (ADT-2 and ORM-1 by default) and writes the resources to --out (target/ndjson by default),
+     * after timing the pretty-printed Strings that ADTParser and ORMParser log for the same resources. Logs the time
+     * and bytes of both.
+     */
+    public static void main(String[] args) throws Exception {
+
+        List<Path> files = new ArrayList<>();
+        int repeat = 50;
+        Path out = Paths.get("target/ndjson");
+        long maxBytes = 16 * 1024 * 1024;
+        boolean gzip = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--repeat".equals(args[i])) {
+                repeat = Integer.parseInt(args[++i]);
+            }
+            else if ("--out".equals(args[i])) {
+                out = Paths.get(args[++i]);
+            }
+            else if ("--max-bytes".equals(args[i])) {
+                maxBytes = Long.parseLong(args[++i]);
+            }
+            else if ("--gzip".equals(args[i])) {
+                gzip = true;
+            }
+            else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            files.add(Paths.get("./src/main/resources/ADT-2.hl7"));
+            files.add(Paths.get("./src/main/resources/ORM-1.hl7"));
+        }
+
+        HL7Converter converter = HL7Converter.getInstance();
+        List<ConversionResult> results = new ArrayList<>();
+        for (int r = 0; r < repeat; r++) {
+            for (Path file : files) {
+                try (HL7BatchReader reader = new HL7BatchReader(file)) {
+                    while (reader.hasNext()) {
+                        results.add(converter.convert(reader.next()));
+                    }
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        long chars = 0;
+        for (ConversionResult result : results) {
+            for (Resource resource : result.getResources()) {
+                chars += converter.encode(resource, true).length();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        log.info("Pretty-printed Strings: {} chars, {} ms", chars, TimeUnit.NANOSECONDS.toMillis(elapsed));
+
+        start = System.nanoTime();
+        NdjsonSink sink = new NdjsonSink(converter.getFhirContext(), out, maxBytes, gzip);
+        try {
+            for (ConversionResult result : results) {
+                sink.write(result);
+            }
+        } finally {
+            sink.close();
+        }
+        elapsed = System.nanoTime() - start;
+
+        long bytes = 0;
+        for (List<Path> typeFiles : sink.getFiles().values()) {
+            for (Path file : typeFiles) {
+                bytes += Files.size(file);
+            }
+        }
+        log.info("NDJSON{}: {} resources, {} bytes, {} ms", gzip ? " (gzip)" : "", sink.getResourceCount(), bytes,
+                TimeUnit.NANOSECONDS.toMillis(elapsed));
+    }
+}
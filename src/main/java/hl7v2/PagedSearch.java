@@ -0,0 +1,247 @@
+package hl7v2;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates over all the resources a search matches, page by page, following the next links of the searchset Bundles.
+ *
+ * Pages are fetched lazily: the first when the search is created, and each next page as soon as the one before it
+ * arrives, in the background while the caller works through the current one, so a caller that takes about as long per
+ * page as the server does is not kept waiting. At most the current page and the next one are held, however many
+ * results there are. Entries that are not matches, such as _include'd resources or an OperationOutcome, are skipped.
+ *
+ * An error fetching a page is thrown from {@link #hasNext()} or {@link #next()} when the iterator reaches that page.
+ */
+public class PagedSearch<T extends Resource> implements Iterator<T>, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(PagedSearch.class);
+
+    private static final AtomicInteger threads = new AtomicInteger();
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "paged-search-" + threads.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final IGenericClient client;
+    private final Class<T> type;
+    private final boolean prefetch;
+
+    private Iterator<Bundle.BundleEntryComponent> entries;
+    private Bundle page;
+    private CompletableFuture<Bundle> nextPage;
+    private T next;
+    private int pages;
+
+    private PagedSearch(IGenericClient client, Class<T> type, Bundle first, boolean prefetch) {
+        this.client = client;
+        this.type = type;
+        this.prefetch = prefetch;
+        open(first);
+    }
+
+    /**
+     * Runs the search and returns an iterator over its matches, prefetching the next page.
+     *
+     * @param count    page size asked for with _count, or 0 for the server's default
+     * @param elements the only elements to return, with _elements; none for whole resources
+     */
+    public static <T extends Resource> PagedSearch<T> of(IGenericClient client, Class<T> type, IQuery<?> query,
+                                                         int count, String... elements) {
+        return of(client, type, query, count, true, elements);
+    }
+
+    /**
+     * @param prefetch false to fetch each page only when the one before it has been consumed
+     */
+    public static <T extends Resource> PagedSearch<T> of(IGenericClient client, Class<T> type, IQuery<?> query,
+                                                         int count, boolean prefetch, String... elements) {
+        IQuery<Bundle> bundleQuery = query.returnBundle(Bundle.class);
+        if (count > 0) {
+            bundleQuery.count(count);
+        }
+        if (elements.length > 0) {
+            bundleQuery.elementsSubset(elements);
+        }
+        return new PagedSearch<>(client, type, bundleQuery.execute(), prefetch);
+    }
+
+    /**
+     * Searches for all resources of the type.
+     */
+    public static <T extends Resource> PagedSearch<T> of(IGenericClient client, Class<T> type, int count,
+                                                         String... elements) {
+        return of(client, type, client.search().forResource(type), count, elements);
+    }
+
+    /**
+     * The matches as a sequential Stream, which closes the search when it is closed.
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL),
+                false).onClose(this::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (entries.hasNext()) {
+                Bundle.BundleEntryComponent entry = entries.next();
+                if (type.isInstance(entry.getResource())
+                        && (!entry.hasSearch() || entry.getSearch().getMode() != Bundle.SearchEntryMode.INCLUDE)) {
+                    next = type.cast(entry.getResource());
+                }
+            }
+            else if (page != null && page.getLink(Bundle.LINK_NEXT) != null) {
+                open(fetchNext());
+            }
+            else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * Pages iterated over so far, including the current one.
+     */
+    public int getPages() {
+        return pages;
+    }
+
+    /**
+     * Abandons the next page if it is still being fetched.
+     */
+    @Override
+    public void close() {
+        if (nextPage != null) {
+            nextPage.cancel(false);
+            nextPage = null;
+        }
+        entries = Collections.emptyIterator();
+        page = null;
+    }
+
+    private void open(Bundle bundle) {
+        pages++;
+        page = bundle;
+        entries = bundle.getEntry().iterator();
+        if (prefetch && bundle.getLink(Bundle.LINK_NEXT) != null) {
+            nextPage = CompletableFuture.supplyAsync(() -> load(bundle), executor);
+        }
+    }
+
+    private Bundle fetchNext() {
+        if (!prefetch) {
+            return load(page);
+        }
+        CompletableFuture<Bundle> future = nextPage;
+        nextPage = null;
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private Bundle load(Bundle bundle) {
+        return client.loadPage().next(bundle).execute();
+    }
+
+    /**
+     * Usage: PagedSearch [--resources n] [--count n] [--latency ms] [--work us]
+     *
+     * Writes --resources Patients (10000 by default) to a {@link StubFhirServer} with --latency per request (20 ms),
+     * then reads them all back in pages of --count (100), spending --work microseconds on each (200), alternately
+     * fetching each page only when needed and prefetching, twice each. Logs the time taken by each pass.
+     */
+    public static void main(String[] args) throws Exception {
+
+        int resources = 10000;
+        int count = 100;
+        long latency = 20;
+        long work = 200;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--resources".equals(args[i])) {
+                resources = Integer.parseInt(args[++i]);
+            }
+            else if ("--count".equals(args[i])) {
+                count = Integer.parseInt(args[++i]);
+            }
+            else if ("--latency".equals(args[i])) {
+                latency = Long.parseLong(args[++i]);
+            }
+            else if ("--work".equals(args[i])) {
+                work = Long.parseLong(args[++i]);
+            }
+            else {
+                throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        HL7Converter converter = HL7Converter.getInstance();
+        try (StubFhirServer server = new StubFhirServer(converter.getFhirContext(), 0, latency)) {
+            IGenericClient client = converter.getFhirContext().newRestfulGenericClient(server.getBaseUrl());
+
+            for (int written = 0; written < resources; ) {
+                Bundle bundle = new Bundle();
+                bundle.setType(Bundle.BundleType.BATCH);
+                for (int i = 0; i < 1000 && written < resources; i++, written++) {
+                    bundle.addEntry().setResource(new Patient()).getRequest()
+                            .setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+                }
+                client.transaction().withBundle(bundle).execute();
+            }
+
+            for (boolean prefetch : new boolean[] { false, true, false, true }) {
+                long start = System.nanoTime();
+                int read = 0;
+                try (PagedSearch<Patient> search = of(client, Patient.class, client.search().forResource(Patient.class),
+                        count, prefetch, "id")) {
+                    while (search.hasNext()) {
+                        search.next();
+                        read++;
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(work));
+                    }
+                    log.info("{}: {} resources in {} pages, {} ms", prefetch ? "prefetching" : "on demand", read,
+                            search.getPages(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package hl7v2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts messages on several threads while keeping messages for the same patient in arrival order.
+ *
+ * Each message is routed to one of a fixed number of lanes by its patient identifier (PID-3), falling back to the
+ * visit number (PID-18) and then the control id (MSH-10). A lane is a single thread with a bounded queue, so an A01
+ * can never be overtaken by a later A03 for the same patient, and a producer that gets ahead of the converters blocks
+ * instead of queueing the whole file in memory.
+ */
+public class ParallelBatchConverter implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelBatchConverter.class);
+
+    /**
+     * An exception thrown by onConverted is passed to onError. One thrown by onError is logged, and the lane goes on
+     * with the next message.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the lane thread, in arrival order for any one patient.
+         */
+        void onConverted(String message, ConversionResult result);
+
+        void onError(String message, Exception e);
+    }
+
+    private static final String END = new String("END");
+
+    private final HL7Converter converter;
+    private final Listener listener;
+    private final List<Lane> lanes;
+
+    private final AtomicLong converted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public ParallelBatchConverter(HL7Converter converter, Listener listener, int threads, int queueCapacity) {
+
+        this.converter = converter;
+        this.listener = listener;
+        this.lanes = new ArrayList<>(threads);
+
+        for (int i = 0; i < threads; i++) {
+            Lane lane = new Lane(queueCapacity);
+            lane.thread.setName("hl7-lane-" + i);
+            lane.thread.start();
+            lanes.add(lane);
+        }
+    }
+
+    /**
+     * Queues a message, blocking while its lane is full.
+     */
+    public void submit(String message) throws InterruptedException {
+        String key = partitionKey(message);
+        int lane = key == null ? 0 : Math.floorMod(key.hashCode(), lanes.size());
+        lanes.get(lane).queue.put(message);
+    }
+
+    public long getConverted() {
+        return converted.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Waits for all queued messages to be converted and stops the lane threads.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        for (Lane lane : lanes) {
+            lane.queue.put(END);
+        }
+        for (Lane lane : lanes) {
+            lane.thread.join();
+        }
+    }
+
+    /**
+     * PID-3-1, else PID-18-1, else MSH-10, read straight from the message text without a full parse.
+     */
+    static String partitionKey(String message) {
+
+        message = HL7Converter.normalize(message);
+        if (message.length() < 8 || !message.startsWith("MSH")) {
+            return null;
+        }
+        char field = message.charAt(3);
+        // MSH-2 holds the other encoding characters: component, repetition, escape and subcomponent
+        char component = message.charAt(4);
+        char repetition = message.charAt(5);
+
+        int pid = message.indexOf("\rPID" + field);
+        if (pid >= 0) {
+            String key = field(message, pid + 1, 3, field, component, repetition);
+            if (key == null) {
+                key = field(message, pid + 1, 18, field, component, repetition);
+            }
+            if (key != null) {
+                return key;
+            }
+        }
+
+        // MSH-1 is the field separator itself, so MSH-10 is the ninth field after the segment name
+        return field(message, 0, 9, field, component, repetition);
+    }
+
+    private static String field(String message, int segmentStart, int number, char field, char component,
+                                char repetition) {
+
+        int end = message.indexOf('\r', segmentStart);
+        if (end < 0) {
+            end = message.length();
+        }
+
+        int start = segmentStart + 3;
+        for (int i = 0; i < number; i++) {
+            start = message.indexOf(field, start);
+            if (start < 0 || start >= end) {
+                return null;
+            }
+            start++;
+        }
+
+        int stop = start;
+        while (stop < end && message.charAt(stop) != field && message.charAt(stop) != component
+                && message.charAt(stop) != repetition) {
+            stop++;
+        }
+        return stop == start ? null : message.substring(start, stop);
+    }
+
+    private class Lane implements Runnable {
+
+        private final BlockingQueue<String> queue;
+        private final Thread thread;
+
+        Lane(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.thread = new Thread(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    String message = queue.take();
+                    if (message == END) {
+                        return;
+                    }
+                    try {
+                        ConversionResult result = converter.convert(message);
+                        converted.incrementAndGet();
+                        listener.onConverted(message, result);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        error(message, e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void error(String message, Exception cause) {
+            try {
+                listener.onError(message, cause);
+            } catch (RuntimeException e) {
+                log.warn("Listener failed on error of {}", partitionKey(message), e);
+            }
+        }
+    }
+
+    /**
+     * Usage: ParallelBatchConverter [file ...] [--threads n] [--repeat n]
+     *
+     * --repeat replays the files n times, which turns the sample files into a load test.
+     */
+    public static void main(String[] args) throws Exception {
+
+        List<Path> files = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int repeat = 1;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--threads".equals(args[i])) {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if ("--repeat".equals(args[i])) {
+                repeat = Integer.parseInt(args[++i]);
+            }
+            else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            files.add(Paths.get("./src/main/resources/ADT-2.hl7"));
+        }
+
+        Listener listener = new Listener() {
+            @Override
+            public void onConverted(String message, ConversionResult result) {
+            }
+
+            @Override
+            public void onError(String message, Exception e) {
+                log.warn("Conversion failed: {}", e.getMessage());
+            }
+        };
+
+        HL7Converter converter = HL7Converter.getInstance();
+        long start = System.nanoTime();
+
+        ParallelBatchConverter batch = new ParallelBatchConverter(converter, listener, threads, 1024);
+        try {
+            for (int r = 0; r < repeat; r++) {
+                for (Path file : files) {
+                    try (HL7BatchReader reader = new HL7BatchReader(file)) {
+                        while (reader.hasNext()) {
+                            batch.submit(reader.next());
+                        }
+                    }
+                }
+            }
+        } finally {
+            batch.close();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long total = batch.getConverted() + batch.getFailed();
+        log.info("{} messages ({} failed) on {} threads in {} ms, {} messages/s", total, batch.getFailed(), threads,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), total * TimeUnit.SECONDS.toNanos(1) / Math.max(elapsed, 1));
+    }
+}
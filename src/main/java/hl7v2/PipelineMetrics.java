@@ -0,0 +1,474 @@
+package hl7v2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and throughput of each stage of the pipeline: parsing (or tokenizing) the message, extracting its fields,
+ * mapping them to resources, encoding the resources as JSON, and the HTTP round trip to the server.
+ *
+ * Each stage keeps a histogram of how long it took, overall and broken down by trigger event and by sending facility.
+ * The histograms are log-linear in the manner of HdrHistogram, 16 buckets to each power of two, so a percentile is
+ * reported to within about 6% of the true value whatever its magnitude. Recording is lock-free: a bucket increment,
+ * an add to a LongAdder and, rarely, a compare-and-set on the maximum.
+ *
+ * The shared instance registers every histogram as an MXBean named hl7v2:type=Stage,stage=parse, with event= or
+ * facility= added for the breakdowns, and logs a line per stage every hl7v2.metricsInterval seconds when that system
+ * property is set. Setting hl7v2.metrics to false turns recording off.
+ */
+public class PipelineMetrics {
+
+    private static final Logger log = LoggerFactory.getLogger(PipelineMetrics.class);
+
+    // breakdowns beyond this many keys (MSH-4 is whatever the sender put there) are counted under "other"
+    private static final int MAX_KEYS = 64;
+
+    // the first 16 buckets hold one value each; after that each power of two is split into 16 buckets of equal width
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private static class Holder {
+        private static final PipelineMetrics INSTANCE = create();
+
+        private static PipelineMetrics create() {
+            PipelineMetrics metrics = new PipelineMetrics(true);
+            metrics.setEnabled(!"false".equals(System.getProperty("hl7v2.metrics")));
+            long interval = Long.getLong("hl7v2.metricsInterval", 0);
+            if (interval > 0) {
+                metrics.startReporting(interval, TimeUnit.SECONDS);
+            }
+            return metrics;
+        }
+    }
+
+    public enum Stage {
+        PARSE, EXTRACT, MAP, ENCODE, HTTP;
+
+        String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * What JMX shows for each histogram. Percentiles and the mean are in microseconds.
+     */
+    public interface HistogramMXBean {
+
+        long getCount();
+
+        double getMeanMicros();
+
+        double getP50Micros();
+
+        double getP99Micros();
+
+        double getP999Micros();
+
+        double getMaxMicros();
+    }
+
+    private final boolean register;
+    private final StageMetrics[] stages = new StageMetrics[Stage.values().length];
+    private volatile boolean enabled = true;
+    private ScheduledExecutorService reporter;
+    private long lastReport = System.nanoTime();
+
+    /**
+     * @param register whether to register the histograms with the platform MBean server
+     */
+    public PipelineMetrics(boolean register) {
+        this.register = register;
+        for (Stage stage : Stage.values()) {
+            stages[stage.ordinal()] = new StageMetrics(stage);
+        }
+    }
+
+    public static PipelineMetrics getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * The time to measure a stage from, or 0 if recording is off, so callers pay nothing for the clock then.
+     */
+    public long now() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records how long a stage took. The event and facility may be null, for stages that handle several messages at
+     * once.
+     */
+    public void record(Stage stage, String event, String facility, long nanos) {
+        if (!enabled) {
+            return;
+        }
+        StageMetrics metrics = stages[stage.ordinal()];
+        metrics.all.record(nanos);
+        if (event != null) {
+            metrics.histogram(metrics.events, "event", event).record(nanos);
+        }
+        if (facility != null) {
+            metrics.histogram(metrics.facilities, "facility", facility).record(nanos);
+        }
+    }
+
+    public void record(Stage stage, ConversionResult result, long nanos) {
+        record(stage, result.getTriggerEvent(), result.getSendingFacility(), nanos);
+    }
+
+    public HistogramMXBean get(Stage stage) {
+        return stages[stage.ordinal()].all;
+    }
+
+    /**
+     * The histogram for one trigger event, or null if the stage has not seen it.
+     */
+    public HistogramMXBean getByEvent(Stage stage, String event) {
+        return stages[stage.ordinal()].events.get(event);
+    }
+
+    /**
+     * The histogram for one sending facility, or null if the stage has not seen it.
+     */
+    public HistogramMXBean getByFacility(Stage stage, String facility) {
+        return stages[stage.ordinal()].facilities.get(facility);
+    }
+
+    /**
+     * Logs a line per stage every period, with the throughput and percentiles since the previous line.
+     */
+    public synchronized void startReporting(long period, TimeUnit unit) {
+        if (reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pipeline-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::report, period, period, unit);
+    }
+
+    public synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdown();
+            reporter = null;
+        }
+    }
+
+    /**
+     * Logs what each stage recorded since the previous report.
+     */
+    public synchronized void report() {
+        long now = System.nanoTime();
+        double seconds = (now - lastReport) / 1e9;
+        lastReport = now;
+
+        for (StageMetrics metrics : stages) {
+            long[] counts = metrics.all.interval();
+            long n = total(counts);
+            if (n == 0) {
+                continue;
+            }
+            StringBuilder line = new StringBuilder();
+            line.append(metrics.stage.label()).append(": ").append(n)
+                    .append(String.format(" (%.1f/s)", n / seconds))
+                    .append(", p50 ").append(duration(percentile(counts, n, 0.50)))
+                    .append(", p99 ").append(duration(percentile(counts, n, 0.99)))
+                    .append(", p999 ").append(duration(percentile(counts, n, 0.999)))
+                    .append(", max ").append(duration(percentile(counts, n, 1)));
+            breakdown(line, metrics.events);
+            breakdown(line, metrics.facilities);
+            log.info(line.toString());
+        }
+    }
+
+    private static void breakdown(StringBuilder line, Map<String, Histogram> histograms) {
+        String separator = "; ";
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            long[] counts = entry.getValue().interval();
+            long n = total(counts);
+            if (n == 0) {
+                continue;
+            }
+            line.append(separator).append(entry.getKey()).append(' ').append(n)
+                    .append(" p99 ").append(duration(percentile(counts, n, 0.99)));
+            separator = ", ";
+        }
+    }
+
+    private static String duration(long nanos) {
+        if (nanos < 1_000) {
+            return nanos + " ns";
+        }
+        if (nanos < 1_000_000) {
+            return String.format("%.1f us", nanos / 1e3);
+        }
+        if (nanos < 1_000_000_000) {
+            return String.format("%.1f ms", nanos / 1e6);
+        }
+        return String.format("%.2f s", nanos / 1e9);
+    }
+
+    private class StageMetrics {
+
+        private final Stage stage;
+        private final Histogram all;
+        private final ConcurrentHashMap<String, Histogram> events = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Histogram> facilities = new ConcurrentHashMap<>();
+
+        StageMetrics(Stage stage) {
+            this.stage = stage;
+            this.all = register(new Histogram(), "stage=" + stage.label());
+        }
+
+        Histogram histogram(ConcurrentHashMap<String, Histogram> histograms, String kind, String key) {
+            Histogram histogram = histograms.get(key);
+            if (histogram != null) {
+                return histogram;
+            }
+            if (histograms.size() >= MAX_KEYS) {
+                key = "other";
+            }
+            return histograms.computeIfAbsent(key, k ->
+                    register(new Histogram(), "stage=" + stage.label() + "," + kind + "=" + ObjectName.quote(k)));
+        }
+    }
+
+    private Histogram register(Histogram histogram, String properties) {
+        if (!register) {
+            return histogram;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("hl7v2:type=Stage," + properties);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(histogram, name);
+        } catch (JMException e) {
+            log.warn("Could not register {} with JMX: {}", properties, e.getMessage());
+        }
+        return histogram;
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long lowest(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    static long highest(int bucket) {
+        return bucket < SUB_BUCKETS ? bucket : lowest(bucket) + (1L << (bucket / SUB_BUCKETS - 1)) - 1;
+    }
+
+    private static long total(long[] counts) {
+        long n = 0;
+        for (long count : counts) {
+            n += count;
+        }
+        return n;
+    }
+
+    /**
+     * The highest value in the bucket holding the p-th quantile, so percentiles err on the slow side.
+     */
+    private static long percentile(long[] counts, long n, double p) {
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highest(i);
+            }
+        }
+        return 0;
+    }
+
+    static class Histogram implements HistogramMXBean {
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+        // counts as of the previous report, touched only by the reporter
+        private final long[] reported = new long[BUCKETS];
+
+        void record(long nanos) {
+            counts.incrementAndGet(bucket(nanos));
+            count.increment();
+            sum.add(nanos);
+            long current;
+            while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+                // another thread raised it; try again against the new value
+            }
+        }
+
+        long[] snapshot() {
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+            }
+            return snapshot;
+        }
+
+        /**
+         * The counts recorded since the previous call.
+         */
+        long[] interval() {
+            long[] snapshot = snapshot();
+            long[] interval = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                interval[i] = snapshot[i] - reported[i];
+                reported[i] = snapshot[i];
+            }
+            return interval;
+        }
+
+        private double micros(double p) {
+            long[] snapshot = snapshot();
+            long n = total(snapshot);
+            return n == 0 ? 0 : Math.min(percentile(snapshot, n, p), max.get()) / 1e3;
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public double getMeanMicros() {
+            long n = count.sum();
+            return n == 0 ? 0 : sum.sum() / 1e3 / n;
+        }
+
+        @Override
+        public double getP50Micros() {
+            return micros(0.50);
+        }
+
+        @Override
+        public double getP99Micros() {
+            return micros(0.99);
+        }
+
+        @Override
+        public double getP999Micros() {
+            return micros(0.999);
+        }
+
+        @Override
+        public double getMaxMicros() {
+            return max.get() / 1e3;
+        }
+    }
+
+    /**
+     * Usage: PipelineMetrics [file ...] [--repeat n] [--rounds n]
+     *
+     * Converts the files (ADT-2 by default) --repeat times (50) per round, alternating rounds with recording on and
+     * off in ABBA order, and logs the time per message each way and what the stages recorded. The difference is
+     * usually within the noise between rounds, so it then times record() on its own.
+     */
+    public static void main(String[] args) throws Exception {
+
+        List<Path> files = new ArrayList<>();
+        int repeat = 50;
+        int rounds = 10;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--repeat".equals(args[i])) {
+                repeat = Integer.parseInt(args[++i]);
+            }
+            else if ("--rounds".equals(args[i])) {
+                rounds = Integer.parseInt(args[++i]);
+            }
+            else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            files.add(Paths.get("./src/main/resources/ADT-2.hl7"));
+        }
+
+        List<String> messages = new ArrayList<>();
+        for (int r = 0; r < repeat; r++) {
+            for (Path file : files) {
+                try (HL7BatchReader reader = new HL7BatchReader(file)) {
+                    reader.forEachRemaining(messages::add);
+                }
+            }
+        }
+
+        PipelineMetrics metrics = getInstance();
+        HL7Converter converter = HL7Converter.getInstance();
+        long[] elapsed = new long[2];
+        for (int round = 0; round < rounds + 2; round++) {
+            // on, off, off, on, ... as whichever runs second in a pair tends to be slower
+            boolean on = (round + round / 2) % 2 == 0;
+            metrics.setEnabled(on);
+            long start = System.nanoTime();
+            for (String message : messages) {
+                converter.convert(message);
+            }
+            // the first two rounds warm up
+            if (round >= 2) {
+                elapsed[on ? 1 : 0] += System.nanoTime() - start;
+            }
+        }
+        metrics.setEnabled(true);
+        long converted = (long) messages.size() * (rounds / 2);
+        double off = elapsed[0] / (double) converted;
+        double on = elapsed[1] / (double) converted;
+        log.info("{} conversions per mode, fast path {}: {} us/msg with metrics off, {} us/msg on ({}%)",
+                converted, converter.isFastPath(), String.format("%.2f", off / 1e3), String.format("%.2f", on / 1e3),
+                String.format("%+.1f", (on - off) * 100 / off));
+        metrics.report();
+
+        PipelineMetrics unregistered = new PipelineMetrics(false);
+        int records = 10_000_000;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < records; i++) {
+                unregistered.record(Stage.MAP, "A01", "FAC", i & 0xFFFFF);
+            }
+            log.info("record(): {} ns per call", String.format("%.1f", (System.nanoTime() - start) / (double) records));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package hl7v2;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.*;
+
+/**
+ * Field values of selected segments, copied out of a HAPI message in a single walk.
+ *
+ * Each {@link ca.uhn.hl7v2.util.Terser#get(String)} call parses its path and searches the message for the segment
+ * again, which adds up when the mapping code reads the same fields several times. A snapshot is taken once and then
+ * read by index.
+ */
+public class SegmentSnapshot implements FieldSource {
+
+    private static final String[] NO_COMPONENTS = new String[0];
+
+    private final String[] names;
+
+    // values[segment][field][component], field and component are zero-based
+    private final String[][][] values;
+
+    /**
+     * @param names the segments to capture; the index of a name in this array is the segment index used by
+     *              {@link #get(int, int, int)}
+     */
+    public SegmentSnapshot(Message message, String... names) throws HL7Exception {
+        this.names = names;
+        this.values = new String[names.length][][];
+        collect(message);
+    }
+
+    private void collect(Group group) throws HL7Exception {
+
+        for (String name : group.getNames()) {
+            Structure[] reps = group.getAll(name);
+            if (reps.length == 0) {
+                continue;
+            }
+
+            if (reps[0] instanceof Group) {
+                collect((Group) reps[0]);
+                continue;
+            }
+
+            int index = indexOf(name);
+            if (index >= 0 && values[index] == null) {
+                values[index] = fields((Segment) reps[0]);
+            }
+        }
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String[][] fields(Segment segment) throws HL7Exception {
+
+        String[][] fields = new String[segment.numFields()][];
+        for (int i = 0; i < fields.length; i++) {
+            Type[] reps = segment.getField(i + 1);
+            fields[i] = reps.length == 0 ? NO_COMPONENTS : components(reps[0]);
+        }
+        return fields;
+    }
+
+    private static String[] components(Type type) {
+
+        if (type instanceof Varies) {
+            type = ((Varies) type).getData();
+        }
+
+        if (type instanceof Composite) {
+            Type[] components = ((Composite) type).getComponents();
+            String[] values = new String[components.length];
+            for (int i = 0; i < components.length; i++) {
+                values[i] = firstValue(components[i]);
+            }
+            return values;
+        }
+
+        return new String[] { firstValue(type) };
+    }
+
+    private static String firstValue(Type type) {
+
+        if (type instanceof Varies) {
+            type = ((Varies) type).getData();
+        }
+
+        if (type instanceof Primitive) {
+            String value = ((Primitive) type).getValue();
+            return value == null || value.isEmpty() ? null : value;
+        }
+
+        if (type instanceof Composite) {
+            Type[] components = ((Composite) type).getComponents();
+            return components.length == 0 ? null : firstValue(components[0]);
+        }
+
+        return null;
+    }
+
+    @Override
+    public boolean contains(int segment) {
+        return values[segment] != null;
+    }
+
+    @Override
+    public String get(int segment, int field, int component) {
+
+        String[][] fields = values[segment];
+        if (fields == null || field > fields.length) {
+            return null;
+        }
+
+        String[] components = fields[field - 1];
+        return component > components.length ? null : components[component - 1];
+    }
+
+    public String getName(int segment) {
+        return names[segment];
+    }
+}
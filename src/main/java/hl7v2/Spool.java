@@ -0,0 +1,527 @@
+package hl7v2;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A durable append-only log of messages between intake and delivery, so that a message can be acknowledged upstream
+ * as soon as it is on disk and delivered, or redelivered after a crash, when the FHIR server can take it.
+ *
+ * Records are appended to segment files of a fixed size, each memory-mapped, named by the offset of their first byte.
+ * A record is its length, a CRC32 of its bytes and the bytes. {@link #append} returns once the record is as durable as
+ * the {@link Sync} policy makes it: MESSAGE forces the segment to disk for every record; BATCH is group commit, where an
+ * appender that finds no force in progress forces everything appended so far and the appenders that arrived meanwhile
+ * wait for it and share its cost; NONE leaves writing back to the operating system, which survives a crash of the
+ * process but not of the machine.
+ *
+ * One consumer reads the records in order with {@link #poll()} and, once they are delivered, commits its position with
+ * {@link #commit(long)}. The position is saved in a checkpoint file, and segments wholly before it are deleted. On
+ * opening, the consumer starts again from the checkpoint, and the last segment is scanned for the end of the log: a
+ * record cut short by a crash fails its CRC, and it and anything after it are discarded.
+ */
+public class Spool implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(Spool.class);
+
+    /** When an appended record is forced to disk. */
+    public enum Sync {
+        NONE, BATCH, MESSAGE
+    }
+
+    private static final int HEADER = 8;
+    private static final String SUFFIX = ".spool";
+    private static final String CHECKPOINT = "checkpoint";
+
+    private final Path dir;
+    private final int segmentSize;
+    private final Sync sync;
+
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private volatile Segment current;
+    private int position;
+    private final CRC32 crc = new CRC32();
+
+    // end of the records appended, and of those forced to disk
+    private volatile long written;
+    private long durable;
+    private boolean forcing;
+    private final Object forceLock = new Object();
+
+    // consumer state, used by the consumer thread only
+    private long readOffset;
+    private long checkpoint;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong forces = new AtomicLong();
+
+    /**
+     * Opens the spool in the directory, creating it if needed, and recovers the end of the log.
+     *
+     * @param segmentSize bytes per segment file; a record may be at most this less 8 bytes
+     */
+    public Spool(Path dir, int segmentSize, Sync sync) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        Files.createDirectories(dir);
+
+        Path checkpointFile = dir.resolve(CHECKPOINT);
+        if (Files.exists(checkpointFile)) {
+            checkpoint = Long.parseLong(new String(Files.readAllBytes(checkpointFile), StandardCharsets.US_ASCII).trim());
+        }
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        files.sort(Comparator.comparing(Path::toString));
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            segments.put(base, new Segment(file, base, segmentSize));
+        }
+
+        if (segments.isEmpty()) {
+            current = newSegment(checkpoint);
+            position = 0;
+        }
+        else {
+            current = segments.lastEntry().getValue();
+            position = recover(current);
+        }
+        written = current.base + position;
+        durable = written;
+        readOffset = Math.max(checkpoint, segments.firstKey());
+        log.info("Spool {} open at offset {}, checkpoint {}, {} segments", dir, written, checkpoint, segments.size());
+    }
+
+    /**
+     * Appends the record and returns its offset once it is as durable as the policy makes it. A record may not be
+     * empty, as a length of 0 marks the end of a segment's records.
+     */
+    public long append(byte[] record) throws IOException {
+        if (record.length == 0) {
+            throw new IllegalArgumentException("Record is empty");
+        }
+        if (record.length > segmentSize - HEADER) {
+            throw new IllegalArgumentException("Record of " + record.length + " bytes is larger than a segment");
+        }
+
+        long offset;
+        long end;
+        synchronized (this) {
+            if (position + HEADER + record.length > segmentSize) {
+                roll();
+            }
+            Segment segment = current;
+            crc.reset();
+            crc.update(record, 0, record.length);
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(position + HEADER);
+            buffer.put(record);
+            buffer.putInt(position + 4, (int) crc.getValue());
+            // the length goes in last, so a record is never seen without its bytes
+            buffer.putInt(position, record.length);
+
+            offset = segment.base + position;
+            position += HEADER + record.length;
+            end = segment.base + position;
+            written = end;
+            appended.incrementAndGet();
+
+            if (sync == Sync.MESSAGE) {
+                segment.buffer.force();
+                forces.incrementAndGet();
+                durable = end;
+            }
+        }
+        if (sync == Sync.BATCH) {
+            awaitDurable(end);
+        }
+        return offset;
+    }
+
+    public long append(String message) throws IOException {
+        return append(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Group commit: forces everything appended so far unless another thread is already doing so, in which case waits
+     * for that force and, if it did not cover the end, the next one.
+     */
+    private void awaitDurable(long end) throws IOException {
+        synchronized (forceLock) {
+            while (durable < end && forcing) {
+                try {
+                    forceLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the spool to be forced", e);
+                }
+            }
+            if (durable >= end) {
+                return;
+            }
+            forcing = true;
+        }
+
+        // outside the lock, so appenders keep appending and queue up for the next force; everything appended until
+        // now, including this thread's record, is covered, since a roll forces the old segment before switching
+        long target = written;
+        Segment segment = current;
+        boolean forced = false;
+        try {
+            segment.buffer.force();
+            forces.incrementAndGet();
+            forced = true;
+        } finally {
+            synchronized (forceLock) {
+                if (forced) {
+                    durable = Math.max(durable, target);
+                }
+                forcing = false;
+                forceLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment, after forcing the current one so that a force of the new one covers all earlier records.
+     */
+    private void roll() throws IOException {
+        if (sync != Sync.NONE) {
+            current.buffer.force();
+            forces.incrementAndGet();
+        }
+        current = newSegment(current.base + position);
+        position = 0;
+    }
+
+    private Segment newSegment(long base) throws IOException {
+        Segment segment = new Segment(dir.resolve(String.format("%020d%s", base, SUFFIX)), base, segmentSize);
+        segments.put(base, segment);
+        return segment;
+    }
+
+    /**
+     * Finds the end of the valid records in the segment, clearing anything after it, and returns its position.
+     */
+    private int recover(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        CRC32 check = new CRC32();
+        int position = 0;
+        long records = 0;
+        while (position + HEADER <= segmentSize) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER + length > segmentSize) {
+                break;
+            }
+            byte[] bytes = read(segment, position + HEADER, length);
+            check.reset();
+            check.update(bytes, 0, length);
+            if ((int) check.getValue() != buffer.getInt(position + 4)) {
+                log.warn("Spool record at offset {} is damaged, discarding it and the rest of {}",
+                        segment.base + position, segment.path.getFileName());
+                break;
+            }
+            position += HEADER + length;
+            records++;
+        }
+        if (position + 4 <= segmentSize && buffer.getInt(position) != 0) {
+            for (int i = position; i < segmentSize; i++) {
+                buffer.put(i, (byte) 0);
+            }
+            buffer.force();
+        }
+        log.debug("Recovered {} records in {}", records, segment.path.getFileName());
+        return position;
+    }
+
+    /**
+     * The next record after the consumer's position, or null if it has read everything appended so far.
+     */
+    public Record poll() {
+        while (readOffset < written) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(readOffset);
+            Segment segment = entry.getValue();
+            int position = (int) (readOffset - segment.base);
+            int length = position + HEADER <= segmentSize ? segment.buffer.getInt(position) : 0;
+            if (length == 0) {
+                // the rest of the segment was too short for the next record
+                Long next = segments.higherKey(segment.base);
+                if (next == null) {
+                    return null;
+                }
+                readOffset = next;
+                continue;
+            }
+            Record record = new Record(readOffset, readOffset + HEADER + length, read(segment, position + HEADER, length));
+            readOffset = record.next;
+            return record;
+        }
+        return null;
+    }
+
+    private static byte[] read(Segment segment, int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(position);
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Records everything before the offset, usually a {@link Record#getNext()}, as delivered: saves the checkpoint and
+     * deletes the segments it has passed.
+     */
+    public void commit(long offset) throws IOException {
+        if (offset <= checkpoint) {
+            return;
+        }
+        Path temporary = dir.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(Long.toString(offset).getBytes(StandardCharsets.US_ASCII)));
+            channel.force(true);
+        }
+        Files.move(temporary, dir.resolve(CHECKPOINT), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        checkpoint = offset;
+
+        // a segment can go once the next one starts at or before the checkpoint
+        for (Map.Entry<Long, Segment> entry : segments.entrySet()) {
+            Long next = segments.higherKey(entry.getKey());
+            if (next == null || next > checkpoint) {
+                break;
+            }
+            segments.remove(entry.getKey());
+            entry.getValue().delete();
+        }
+    }
+
+    /** Offset of the end of the log. */
+    public long getWriteOffset() {
+        return written;
+    }
+
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /** Records appended since the spool was opened. */
+    public long getAppended() {
+        return appended.get();
+    }
+
+    /** Times a segment was forced to disk. */
+    public long getForces() {
+        return forces.get();
+    }
+
+    /**
+     * Forces what has been appended, unless the policy is NONE, and closes the segment files.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (sync != Sync.NONE) {
+            current.buffer.force();
+        }
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+    }
+
+    /**
+     * A record read from the spool.
+     */
+    public static class Record {
+
+        private final long offset;
+        private final long next;
+        private final byte[] bytes;
+
+        Record(long offset, long next, byte[] bytes) {
+            this.offset = offset;
+            this.next = next;
+            this.bytes = bytes;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        /** Offset of the record after this one, to commit once this one is delivered. */
+        public long getNext() {
+            return next;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public String getText() {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class Segment {
+
+        private final Path path;
+        private final long base;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        Segment(Path path, long base, int size) throws IOException {
+            this.path = path;
+            this.base = base;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        /**
+         * Closes and deletes the file; the mapping itself is released when the buffer is garbage collected.
+         */
+        void delete() throws IOException {
+            channel.close();
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * Usage: Spool [--dir dir] [--messages n] [--threads n] [--segment-mb n] [--sync none|batch|message]
+     *
+     * For each policy (all three by default), appends --messages generated messages (20000) to a new spool in --dir
+     * (target/spool) from --threads threads (8) with segments of --segment-mb (4), and logs the rate and the number
+     * of forces. Then reopens the spool as after a crash, consumes half the records and commits, reopens it again,
+     * and checks that exactly the other half is replayed and that the consumed segments were deleted.
+     */
+    public static void main(String[] args) throws Exception {
+
+        Path dir = Paths.get("target/spool");
+        int messages = 20_000;
+        int threads = 8;
+        int segmentMb = 4;
+        List<Sync> policies = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--dir".equals(args[i])) {
+                dir = Paths.get(args[++i]);
+            }
+            else if ("--messages".equals(args[i])) {
+                messages = Integer.parseInt(args[++i]);
+            }
+            else if ("--threads".equals(args[i])) {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if ("--segment-mb".equals(args[i])) {
+                segmentMb = Integer.parseInt(args[++i]);
+            }
+            else if ("--sync".equals(args[i])) {
+                policies.add(Sync.valueOf(args[++i].toUpperCase()));
+            }
+            else {
+                throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        if (policies.isEmpty()) {
+            policies.add(Sync.NONE);
+            policies.add(Sync.BATCH);
+            policies.add(Sync.MESSAGE);
+        }
+
+        HL7Generator generator = new HL7Generator(1, 10_000, 3, 2, 1.0);
+        List<byte[]> records = new ArrayList<>(messages);
+        for (int i = 0; i < messages; i++) {
+            records.add(generator.next().getBytes(StandardCharsets.UTF_8));
+        }
+
+        for (Sync sync : policies) {
+            Path spoolDir = dir.resolve(sync.name().toLowerCase());
+            if (Files.exists(spoolDir)) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(spoolDir)) {
+                    for (Path file : stream) {
+                        Files.delete(file);
+                    }
+                }
+            }
+
+            Spool spool = new Spool(spoolDir, segmentMb << 20, sync);
+            AtomicLong next = new AtomicLong();
+            List<Thread> producers = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                Thread producer = new Thread(() -> {
+                    try {
+                        for (long i = next.getAndIncrement(); i < records.size(); i = next.getAndIncrement()) {
+                            spool.append(records.get((int) i));
+                        }
+                    } catch (IOException e) {
+                        log.error("Append failed", e);
+                    }
+                }, "spool-producer-" + t);
+                producer.start();
+                producers.add(producer);
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            log.info("{}: {} messages, {} MB from {} threads in {} ms, {} msg/s, {} forces ({} messages per force), "
+                            + "{} segments", sync, spool.getAppended(), spool.getWriteOffset() >> 20, threads,
+                    TimeUnit.NANOSECONDS.toMillis(elapsed), spool.getAppended() * TimeUnit.SECONDS.toNanos(1) / elapsed,
+                    spool.getForces(), spool.getForces() == 0 ? "-" : String.format("%.1f", (double) spool.getAppended() / spool.getForces()),
+                    spool.getSegmentCount());
+            spool.close();
+
+            int half = messages / 2;
+            int segmentsBefore;
+            try (Spool reopened = new Spool(spoolDir, segmentMb << 20, sync)) {
+                segmentsBefore = reopened.getSegmentCount();
+                Record record = null;
+                for (int i = 0; i < half; i++) {
+                    record = reopened.poll();
+                }
+                reopened.commit(record.getNext());
+                log.info("{}: consumed and committed {} records, {} of {} segments left", sync, half,
+                        reopened.getSegmentCount(), segmentsBefore);
+            }
+            try (Spool reopened = new Spool(spoolDir, segmentMb << 20, sync)) {
+                int replayed = 0;
+                Record record;
+                while ((record = reopened.poll()) != null) {
+                    if (++replayed % 1000 == 0) {
+                        reopened.commit(record.getNext());
+                    }
+                }
+                reopened.commit(reopened.getWriteOffset());
+                log.info("{}: replayed {} records after reopening (expected {}), {} segments left", sync, replayed,
+                        messages - half, reopened.getSegmentCount());
+            }
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package hl7v2;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the entries of a JSON Bundle, or the resources of an NDJSON file, one at a time, so that memory holds one
+ * entry rather than the whole document.
+ *
+ * The document is tokenized with Jackson's streaming parser. Each entry's JSON is copied out on its own and parsed by
+ * HAPI into a {@link Bundle.BundleEntryComponent}, with its fullUrl, search, request and response; an NDJSON line
+ * becomes an entry with just the resource. Given resource types, entries whose resource is of another type are skipped
+ * as tokens, without being copied or parsed, when resourceType comes first in the resource as HAPI and most servers
+ * write it.
+ *
+ * Bundle fields other than entry, such as total and link, are skipped.
+ */
+public class StreamingBundleReader implements Iterator<Bundle.BundleEntryComponent>, Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamingBundleReader.class);
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    private final IParser parser;
+    private final JsonParser json;
+    private final boolean ndjson;
+    private final Set<String> types;
+
+    private boolean inEntries;
+    private Bundle.BundleEntryComponent next;
+    private long read;
+    private long skipped;
+
+    /**
+     * @param types resource types to return, or empty for all
+     */
+    public StreamingBundleReader(FhirContext ctx, InputStream in, boolean ndjson, Set<String> types) throws IOException {
+        this.parser = ctx.newJsonParser();
+        this.json = factory.createParser(in);
+        this.ndjson = ndjson;
+        this.types = types;
+        if (!ndjson) {
+            if (json.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Not a JSON object at " + json.getCurrentLocation());
+            }
+        }
+    }
+
+    /**
+     * Opens a Bundle, or NDJSON if the name ends in .ndjson or .ndjson.gz; .gz files are decompressed.
+     */
+    public static StreamingBundleReader open(FhirContext ctx, Path file, String... types) throws IOException {
+        String name = file.getFileName().toString();
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024);
+        if (name.endsWith(".gz")) {
+            in = new GZIPInputStream(in, 64 * 1024);
+            name = name.substring(0, name.length() - 3);
+        }
+        return new StreamingBundleReader(ctx, in, name.endsWith(".ndjson"), new HashSet<>(Arrays.asList(types)));
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (next == null) {
+                String entry = ndjson ? nextLine() : nextEntry();
+                if (entry == null) {
+                    return false;
+                }
+                if (!entry.isEmpty()) {
+                    next = parse(entry);
+                    if (next != null) {
+                        read++;
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Bundle.BundleEntryComponent next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Bundle.BundleEntryComponent result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * The next entry's resource, skipping entries without one.
+     */
+    public Resource nextResource() {
+        while (hasNext()) {
+            Resource resource = next().getResource();
+            if (resource != null) {
+                return resource;
+            }
+        }
+        return null;
+    }
+
+    /** Entries returned so far. */
+    public long getRead() {
+        return read;
+    }
+
+    /** Entries skipped because of their resource type. */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        json.close();
+    }
+
+    /**
+     * The JSON of the next entry, "" for a skipped one, or null at the end of the entry array.
+     */
+    private String nextEntry() throws IOException {
+        while (!inEntries) {
+            JsonToken token = json.nextToken();
+            if (token == null || token == JsonToken.END_OBJECT) {
+                return null;
+            }
+            String field = json.getCurrentName();
+            token = json.nextToken();
+            if ("entry".equals(field) && token == JsonToken.START_ARRAY) {
+                inEntries = true;
+            }
+            else {
+                json.skipChildren();
+            }
+        }
+
+        JsonToken token = json.nextToken();
+        if (token == JsonToken.END_ARRAY) {
+            inEntries = false;
+            return nextEntry();
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw new IOException("Expected an entry at " + json.getCurrentLocation());
+        }
+
+        StringWriter out = new StringWriter();
+        try (JsonGenerator generator = factory.createGenerator(out)) {
+            generator.writeStartObject();
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                if ("resource".equals(json.getCurrentName())) {
+                    json.nextToken();
+                    generator.writeFieldName("resource");
+                    if (!copyResource(generator)) {
+                        skipRest();
+                        return "";
+                    }
+                }
+                else {
+                    generator.copyCurrentStructure(json);
+                }
+            }
+            generator.writeEndObject();
+        }
+        return out.toString();
+    }
+
+    /**
+     * The JSON of the next line's resource, "" for a skipped one, or null at the end of the file.
+     */
+    private String nextLine() throws IOException {
+        JsonToken token = json.nextToken();
+        if (token == null) {
+            return null;
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw new IOException("Expected a resource at " + json.getCurrentLocation());
+        }
+        StringWriter out = new StringWriter();
+        try (JsonGenerator generator = factory.createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeFieldName("resource");
+            if (!copyResource(generator)) {
+                return "";
+            }
+            generator.writeEndObject();
+        }
+        return out.toString();
+    }
+
+    /**
+     * Copies the resource object the parser is at, or skips it and returns false if its type is not wanted.
+     */
+    private boolean copyResource(JsonGenerator generator) throws IOException {
+        if (json.nextToken() == JsonToken.FIELD_NAME && "resourceType".equals(json.getCurrentName())) {
+            json.nextToken();
+            String type = json.getText();
+            if (!types.isEmpty() && !types.contains(type)) {
+                skipped++;
+                skipRest();
+                return false;
+            }
+            generator.writeStartObject();
+            generator.writeStringField("resourceType", type);
+        }
+        else {
+            generator.writeStartObject();
+            if (json.currentToken() != JsonToken.FIELD_NAME) {
+                generator.writeEndObject();
+                return true;
+            }
+            generator.copyCurrentStructure(json);
+        }
+        while (json.nextToken() == JsonToken.FIELD_NAME) {
+            generator.copyCurrentStructure(json);
+        }
+        generator.writeEndObject();
+        return true;
+    }
+
+    /**
+     * Skips to the end of the object the parser is in.
+     */
+    private void skipRest() throws IOException {
+        int depth = 1;
+        while (depth > 0) {
+            JsonToken token = json.nextToken();
+            if (token == null) {
+                throw new IOException("Unexpected end of input");
+            }
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                depth++;
+            }
+            else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                depth--;
+            }
+        }
+    }
+
+    private Bundle.BundleEntryComponent parse(String entry) {
+        Bundle bundle = parser.parseResource(Bundle.class,
+                "{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":[" + entry + "]}");
+        Bundle.BundleEntryComponent component = bundle.getEntryFirstRep();
+        Resource resource = component.getResource();
+        if (resource != null && !types.isEmpty() && !types.contains(resource.fhirType())) {
+            // resourceType did not come first, so it could not be filtered before parsing
+            skipped++;
+            return null;
+        }
+        return component;
+    }
+
+    /**
+     * Usage: StreamingBundleReader [file] [--repeat n] [--type t ...]
+     *
+     * Reads the Bundle or NDJSON file, or else a searchset Bundle of the resources converted from ADT-2 --repeat times
+     * (100 by default) written to target/, keeping only the --type resources if given: a Bundle first whole with
+     * parseResource and then entry by entry, NDJSON entry by entry only. Logs the time and allocation of each, and the
+     * heap held by the whole Bundle.
+     */
+    public static void main(String[] args) throws Exception {
+
+        Path file = null;
+        int repeat = 100;
+        List<String> types = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--repeat".equals(args[i])) {
+                repeat = Integer.parseInt(args[++i]);
+            }
+            else if ("--type".equals(args[i])) {
+                types.add(args[++i]);
+            }
+            else {
+                file = Paths.get(args[i]);
+            }
+        }
+
+        HL7Converter converter = HL7Converter.getInstance();
+        FhirContext ctx = converter.getFhirContext();
+        if (file == null) {
+            file = Files.createDirectories(Paths.get("target")).resolve("searchset.json");
+            Bundle bundle = new Bundle();
+            bundle.setType(Bundle.BundleType.SEARCHSET);
+            for (int r = 0; r < repeat; r++) {
+                try (HL7BatchReader reader = new HL7BatchReader(Paths.get("./src/main/resources/ADT-2.hl7"))) {
+                    while (reader.hasNext()) {
+                        for (Resource resource : converter.convert(reader.next()).getResources()) {
+                            bundle.addEntry().setResource(resource).getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+                        }
+                    }
+                }
+            }
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                ctx.newJsonParser().encodeResourceToWriter(bundle, writer);
+            }
+        }
+        log.info("{}: {} bytes", file, Files.size(file));
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int pass = 0; pass < 2; pass++) {
+            long allocated;
+            long start;
+            long elapsed;
+            if (!file.getFileName().toString().contains(".ndjson")) {
+                long heap = usedHeap();
+                allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                start = System.nanoTime();
+                Bundle whole;
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                    whole = ctx.newJsonParser().parseResource(Bundle.class, in);
+                }
+                long kept = 0;
+                for (Bundle.BundleEntryComponent entry : whole.getEntry()) {
+                    if (types.isEmpty() || types.contains(entry.getResource().fhirType())) {
+                        kept++;
+                    }
+                }
+                elapsed = System.nanoTime() - start;
+                allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+                heap = usedHeap() - heap;
+                log.info("parseResource: {} of {} entries, {} ms, {} MB allocated, {} MB held by the Bundle", kept,
+                        whole.getEntry().size(), TimeUnit.NANOSECONDS.toMillis(elapsed), allocated >> 20, heap >> 20);
+            }
+
+            allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            start = System.nanoTime();
+            try (StreamingBundleReader reader = open(ctx, file, types.toArray(new String[0]))) {
+                while (reader.hasNext()) {
+                    reader.next();
+                }
+                elapsed = System.nanoTime() - start;
+                allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+                log.info("streaming: {} entries, {} skipped, {} ms, {} MB allocated", reader.getRead(),
+                        reader.getSkipped(), TimeUnit.NANOSECONDS.toMillis(elapsed), allocated >> 20);
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
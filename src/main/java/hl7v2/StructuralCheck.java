@@ -0,0 +1,200 @@
+package hl7v2;
+
+import org.hl7.fhir.r4.model.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A quick structural check of the resources the converter produces, cheap enough to run on every one.
+ *
+ * It checks the elements that are required in R4 or that the delivery code depends on (identifiers with a system
+ * and value, Encounter status and class, ServiceRequest status and intent), a few invariants (a telecom value needs
+ * a system, a period must not end before it starts), and that the fixed codes the mappings emit come from the code
+ * systems they claim: Encounter.class from v3-ActCode's encounter codes, Location.physicalType from
+ * location-physical-type and Patient.contact.relationship from v2-0131. Cardinality beyond that is enforced by the
+ * model classes themselves.
+ *
+ * It walks the resource's fields directly, with no encoding, lookups by path or terminology service, and builds a list
+ * only for a resource that fails. It is no substitute for the instance validator, which {@link TieredValidator} runs
+ * as well on a sample and on anything this check rejects.
+ */
+public final class StructuralCheck {
+
+    static final String ACT_CODE = "http://terminology.hl7.org/CodeSystem/v3-ActCode";
+    static final String PHYSICAL_TYPE = "http://terminology.hl7.org/CodeSystem/location-physical-type";
+    static final String RELATIONSHIP = "http://terminology.hl7.org/CodeSystem/v2-0131";
+
+    // http://terminology.hl7.org/ValueSet/v3-ActEncounterCode
+    private static final Set<String> ENCOUNTER_CLASSES = new HashSet<>(Arrays.asList(
+            "AMB", "EMER", "FLD", "HH", "IMP", "ACUTE", "NONAC", "OBSENC", "PRENC", "SS", "VR"));
+    private static final Set<String> PHYSICAL_TYPES = new HashSet<>(Arrays.asList(
+            "si", "bu", "wi", "wa", "lvl", "co", "ro", "bd", "ve", "ho", "ca", "rd", "area", "jdn"));
+    private static final Set<String> RELATIONSHIPS = new HashSet<>(Arrays.asList(
+            "BP", "C", "CP", "E", "EP", "F", "I", "N", "O", "PR", "S", "U"));
+
+    private StructuralCheck() {
+    }
+
+    /**
+     * The problems found, or an empty list.
+     */
+    public static List<String> check(Resource resource) {
+        List<String> issues = Collections.emptyList();
+        if (!resource.hasId() && identifiers(resource).isEmpty()) {
+            issues = add(issues, resource.fhirType() + " has neither an id nor an identifier");
+        }
+        for (Identifier identifier : identifiers(resource)) {
+            if (!identifier.hasSystem() || !identifier.hasValue()) {
+                issues = add(issues, resource.fhirType() + ".identifier needs both system and value");
+            }
+        }
+
+        if (resource instanceof Patient) {
+            issues = patient((Patient) resource, issues);
+        }
+        else if (resource instanceof Encounter) {
+            issues = encounter((Encounter) resource, issues);
+        }
+        else if (resource instanceof Location) {
+            issues = location((Location) resource, issues);
+        }
+        else if (resource instanceof Practitioner) {
+            issues = telecoms("Practitioner", ((Practitioner) resource).getTelecom(), issues);
+        }
+        else if (resource instanceof ServiceRequest) {
+            issues = serviceRequest((ServiceRequest) resource, issues);
+        }
+        return issues;
+    }
+
+    private static List<String> patient(Patient patient, List<String> issues) {
+        for (HumanName name : patient.getName()) {
+            if (!name.hasFamily() && !name.hasGiven() && !name.hasText()) {
+                issues = add(issues, "Patient.name is empty");
+            }
+        }
+        issues = telecoms("Patient", patient.getTelecom(), issues);
+        for (Patient.ContactComponent contact : patient.getContact()) {
+            for (CodeableConcept relationship : contact.getRelationship()) {
+                issues = codings("Patient.contact.relationship", relationship, RELATIONSHIP, RELATIONSHIPS, issues);
+            }
+            issues = telecoms("Patient.contact", contact.getTelecom(), issues);
+        }
+        return issues;
+    }
+
+    private static List<String> encounter(Encounter encounter, List<String> issues) {
+        if (encounter.getStatus() == null) {
+            issues = add(issues, "Encounter.status is required");
+        }
+        if (!encounter.hasClass_()) {
+            issues = add(issues, "Encounter.class is required");
+        }
+        else {
+            Coding coding = encounter.getClass_();
+            if (!ACT_CODE.equals(coding.getSystem()) || !ENCOUNTER_CLASSES.contains(coding.getCode())) {
+                issues = add(issues, "Encounter.class " + coding.getSystem() + "|" + coding.getCode()
+                        + " is not an ActEncounterCode");
+            }
+        }
+        if (encounter.hasPeriod()) {
+            issues = period("Encounter.period", encounter.getPeriod(), issues);
+        }
+        return issues;
+    }
+
+    private static List<String> location(Location location, List<String> issues) {
+        if (location.hasPhysicalType()) {
+            issues = codings("Location.physicalType", location.getPhysicalType(), PHYSICAL_TYPE, PHYSICAL_TYPES,
+                    issues);
+        }
+        return telecoms("Location", location.getTelecom(), issues);
+    }
+
+    private static List<String> serviceRequest(ServiceRequest order, List<String> issues) {
+        if (order.getStatus() == null) {
+            issues = add(issues, "ServiceRequest.status is required");
+        }
+        if (order.getIntent() == null) {
+            issues = add(issues, "ServiceRequest.intent is required");
+        }
+        if (order.hasOccurrencePeriod()) {
+            issues = period("ServiceRequest.occurrencePeriod", order.getOccurrencePeriod(), issues);
+        }
+        if (order.hasCode()) {
+            for (Coding coding : order.getCode().getCoding()) {
+                if (!coding.hasSystem() || !coding.hasCode()) {
+                    issues = add(issues, "ServiceRequest.code.coding needs both system and code");
+                }
+            }
+        }
+        return issues;
+    }
+
+    /**
+     * Codings in the given system must have one of the codes; codings in other systems are not checked.
+     */
+    private static List<String> codings(String path, CodeableConcept concept, String system, Set<String> codes,
+                                        List<String> issues) {
+        for (Coding coding : concept.getCoding()) {
+            if (!coding.hasSystem()) {
+                issues = add(issues, path + " coding has no system");
+            }
+            else if (system.equals(coding.getSystem()) && !codes.contains(coding.getCode())) {
+                issues = add(issues, path + " code " + coding.getCode() + " is not in " + system);
+            }
+        }
+        return issues;
+    }
+
+    private static List<String> telecoms(String path, List<ContactPoint> telecoms, List<String> issues) {
+        for (ContactPoint telecom : telecoms) {
+            if (telecom.hasValue() && telecom.getSystem() == null) {
+                issues = add(issues, path + ".telecom with a value needs a system (cpt-2)");
+            }
+        }
+        return issues;
+    }
+
+    private static List<String> period(String path, Period period, List<String> issues) {
+        if (period.hasStart() && period.hasEnd() && period.getEnd().before(period.getStart())) {
+            issues = add(issues, path + " ends before it starts (per-1)");
+        }
+        return issues;
+    }
+
+    /**
+     * Checks hasIdentifier() first, since getIdentifier() creates an empty list.
+     */
+    private static List<Identifier> identifiers(Resource resource) {
+        if (resource instanceof Patient && ((Patient) resource).hasIdentifier()) {
+            return ((Patient) resource).getIdentifier();
+        }
+        if (resource instanceof Encounter && ((Encounter) resource).hasIdentifier()) {
+            return ((Encounter) resource).getIdentifier();
+        }
+        if (resource instanceof Location && ((Location) resource).hasIdentifier()) {
+            return ((Location) resource).getIdentifier();
+        }
+        if (resource instanceof Practitioner && ((Practitioner) resource).hasIdentifier()) {
+            return ((Practitioner) resource).getIdentifier();
+        }
+        if (resource instanceof ServiceRequest && ((ServiceRequest) resource).hasIdentifier()) {
+            return ((ServiceRequest) resource).getIdentifier();
+        }
+        return Collections.emptyList();
+    }
+
+    private static List<String> add(List<String> issues, String issue) {
+        if (issues.isEmpty()) {
+            issues = new ArrayList<>(2);
+        }
+        issues.add(issue);
+        return issues;
+    }
+}
@@ -0,0 +1,612 @@
+package hl7v2;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.hl7.fhir.r4.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory FHIR server on localhost, standing in for a real one so the delivery code can be exercised and
+ * measured offline.
+ *
+ * It supports the operations the converter's output needs: create (POST Type, conditional with If-None-Exist), read
+ * (GET Type/id), update (PUT Type/id, or conditionally PUT Type?identifier=system|value), delete (DELETE Type/id),
+ * search by identifier (GET Type?identifier=system|value), a search listing all resources of a type paged by _count
+ * and _offset, and transaction and batch Bundles of any of these. A conditional create that matches answers 200
+ * without a new version. In a transaction, references to the fullUrl of another entry are rewritten to its Type/id,
+ * and an entry that fails undoes the entries before it and fails the transaction with its own status and outcome.
+ * Resources are kept as JSON and indexed by every identifier they carry.
+ *
+ * Each request can be delayed, by a fixed latency plus a random jitter, to stand in for network and server time.
+ * Errors can be injected: entries whose URL contains a given string are rejected with 422 (a transaction as a whole),
+ * a fraction of requests fail with 503, and at most a given number of requests are worked on at once, with a bounded
+ * queue beyond which requests are throttled with 429.
+ */
+public class StubFhirServer implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(StubFhirServer.class);
+
+    static {
+        // without TCP_NODELAY small responses wait out the client's delayed ACK, ~40 ms per request
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final FhirContext ctx;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+
+    // Type|system|value of an identifier, or another conditional URL -> id
+    private final Map<String, String> ids = new HashMap<>();
+    // Type/id -> current version, including deleted resources
+    private final Map<String, Integer> versions = new LinkedHashMap<>();
+    // Type/id -> JSON of the current version, until deleted
+    private final Map<String, String> resources = new HashMap<>();
+    private long nextId = 1;
+    // while a transaction is processed, what puts its changes back, in the order they were made
+    private List<Runnable> undo;
+
+    private volatile String reject;
+    private volatile long jitterMillis;
+    private volatile double faultRate;
+    private volatile Semaphore capacity;
+    private volatile int maxQueue;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * @param port 0 picks a free port
+     */
+    public StubFhirServer(FhirContext ctx, int port, long latencyMillis) throws IOException {
+        this.ctx = ctx;
+        this.latencyMillis = latencyMillis;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        this.server.createContext("/fhir", this::handle);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "stub-fhir-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server.setExecutor(executor);
+        this.server.start();
+        log.info("Stub FHIR server at {}", getBaseUrl());
+    }
+
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/fhir/";
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Conditional URLs and identifier searches the server had to resolve, each of which is a search on a real server.
+     */
+    public long getSearchCount() {
+        return searches.get();
+    }
+
+    /**
+     * Resource versions created or updated, each of which is a write on a real server.
+     */
+    public long getVersionCount() {
+        return writes.get();
+    }
+
+    /**
+     * Resources stored, not counting deleted ones.
+     */
+    public synchronized int getResourceCount() {
+        return resources.size();
+    }
+
+    /**
+     * Delays each request by a random time up to the given one, on top of the fixed latency.
+     */
+    public void setLatencyJitter(long jitterMillis) {
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Answers the given fraction of requests with 503 and a transient OperationOutcome.
+     */
+    public void setFaultRate(double faultRate) {
+        this.faultRate = faultRate;
+    }
+
+    /**
+     * Works on at most capacity requests at once, queues up to maxQueue more and answers any beyond that with 429.
+     */
+    public void setCapacity(int capacity, int maxQueue) {
+        this.capacity = new Semaphore(capacity);
+        this.maxQueue = maxQueue;
+    }
+
+    /**
+     * Rejects every entry whose request URL contains the given string, or nothing if null.
+     */
+    public void setReject(String reject) {
+        this.reject = reject;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            String relative = path.length() > "/fhir/".length() ? path.substring("/fhir/".length()) : "";
+            if ("GET".equals(method) && "metadata".equals(relative)) {
+                CapabilityStatement capabilities = new CapabilityStatement();
+                capabilities.setStatus(Enumerations.PublicationStatus.ACTIVE);
+                capabilities.setFhirVersion(Enumerations.FHIRVersion._4_0_1);
+                respond(exchange, 200, capabilities);
+                return;
+            }
+
+            requests.incrementAndGet();
+            if (faultRate > 0 && ThreadLocalRandom.current().nextDouble() < faultRate) {
+                respond(exchange, 503, outcome(OperationOutcome.IssueType.TRANSIENT, "Injected fault"));
+                return;
+            }
+
+            Semaphore capacity = this.capacity;
+            if (capacity != null && !capacity.tryAcquire()) {
+                if (queued.incrementAndGet() > maxQueue) {
+                    queued.decrementAndGet();
+                    respond(exchange, 429, outcome(OperationOutcome.IssueType.THROTTLED, "Too many requests"));
+                    return;
+                }
+                try {
+                    capacity.acquire();
+                } finally {
+                    queued.decrementAndGet();
+                }
+            }
+            try {
+                long jitter = jitterMillis;
+                long delay = latencyMillis + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+                if (delay > 0) {
+                    TimeUnit.MILLISECONDS.sleep(delay);
+                }
+                route(exchange, method, relative);
+            } finally {
+                if (capacity != null) {
+                    capacity.release();
+                }
+            }
+
+        } catch (Exception e) {
+            log.warn("Stub request failed", e);
+            respond(exchange, 500, outcome(String.valueOf(e.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void route(HttpExchange exchange, String method, String relative) throws IOException {
+
+        if (relative.isEmpty()) {
+            if ("POST".equals(method)) {
+                transaction(exchange);
+            }
+            else {
+                respond(exchange, 405, outcome("Only transaction and batch Bundles can be posted to the base URL"));
+            }
+            return;
+        }
+
+        String query = exchange.getRequestURI().getRawQuery();
+        if ("GET".equals(method) && relative.indexOf('/') < 0) {
+            search(exchange, relative, params(query));
+            return;
+        }
+
+        // a single REST call is processed as the equivalent Bundle entry
+        Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+        Bundle.BundleEntryRequestComponent request = entry.getRequest();
+        request.setUrl(query != null ? relative + "?" + query : relative);
+        switch (method) {
+            case "GET":
+                request.setMethod(Bundle.HTTPVerb.GET);
+                break;
+            case "POST":
+                request.setMethod(Bundle.HTTPVerb.POST);
+                request.setIfNoneExist(exchange.getRequestHeaders().getFirst("If-None-Exist"));
+                entry.setResource(parse(exchange));
+                break;
+            case "PUT":
+                request.setMethod(Bundle.HTTPVerb.PUT);
+                entry.setResource(parse(exchange));
+                break;
+            case "DELETE":
+                request.setMethod(Bundle.HTTPVerb.DELETE);
+                break;
+            default:
+                respond(exchange, 405, outcome(method + " is not supported"));
+                return;
+        }
+
+        Bundle.BundleEntryComponent result;
+        synchronized (this) {
+            result = process(entry);
+        }
+        Bundle.BundleEntryResponseComponent response = result.getResponse();
+        int status = Integer.parseInt(response.getStatus().substring(0, 3));
+        if (response.hasLocation()) {
+            exchange.getResponseHeaders().set("Location", getBaseUrl() + response.getLocation());
+        }
+        if (response.hasEtag()) {
+            exchange.getResponseHeaders().set("ETag", response.getEtag());
+        }
+        if (response.hasOutcome()) {
+            respond(exchange, status, response.getOutcome());
+        }
+        else if (result.hasResource()) {
+            respond(exchange, status, result.getResource());
+        }
+        else {
+            exchange.sendResponseHeaders(status, -1);
+        }
+    }
+
+    private Resource parse(HttpExchange exchange) throws IOException {
+        return (Resource) ctx.newJsonParser().parseResource(read(exchange.getRequestBody()));
+    }
+
+    private void transaction(HttpExchange exchange) throws IOException {
+        IParser parser = ctx.newJsonParser();
+        Bundle request = parser.parseResource(Bundle.class, read(exchange.getRequestBody()));
+        boolean transaction = request.getType() == Bundle.BundleType.TRANSACTION;
+
+        String rejected = rejected(request);
+        if (transaction && rejected != null) {
+            respond(exchange, 422, outcome("Rejected " + rejected));
+            return;
+        }
+
+        Bundle response = new Bundle();
+        response.setType(transaction ? Bundle.BundleType.TRANSACTIONRESPONSE : Bundle.BundleType.BATCHRESPONSE);
+        Bundle.BundleEntryResponseComponent failed = null;
+        synchronized (this) {
+            long firstId = nextId;
+            long firstWrite = writes.get();
+            undo = transaction ? new ArrayList<>() : null;
+            try {
+                Map<String, String> written = new HashMap<>();
+                for (Bundle.BundleEntryComponent entry : request.getEntry()) {
+                    Bundle.BundleEntryResponseComponent result = process(entry).getResponse();
+                    if (transaction && !result.getStatus().startsWith("2")) {
+                        failed = result;
+                        break;
+                    }
+                    response.addEntry().setResponse(result);
+                    if (transaction && entry.hasFullUrl() && result.hasLocation()) {
+                        String location = result.getLocation();
+                        written.put(entry.getFullUrl(), location.substring(0, location.indexOf("/_history/")));
+                    }
+                }
+                if (failed != null) {
+                    for (int i = undo.size() - 1; i >= 0; i--) {
+                        undo.get(i).run();
+                    }
+                    nextId = firstId;
+                    writes.set(firstWrite);
+                }
+                else if (!written.isEmpty()) {
+                    resolveReferences(written);
+                }
+            } finally {
+                undo = null;
+            }
+        }
+        if (failed != null) {
+            int status = Integer.parseInt(failed.getStatus().substring(0, 3));
+            respond(exchange, status,
+                    failed.hasOutcome() ? failed.getOutcome() : outcome("Entry failed with " + failed.getStatus()));
+            return;
+        }
+        respond(exchange, 200, response);
+    }
+
+    /**
+     * Rewrites references to the fullUrls of a transaction's entries in the resources it wrote.
+     */
+    private void resolveReferences(Map<String, String> written) {
+        for (String key : written.values()) {
+            String json = resources.get(key);
+            if (json == null) {
+                continue;
+            }
+            String resolved = json;
+            for (Map.Entry<String, String> fullUrl : written.entrySet()) {
+                resolved = resolved.replace("\"" + fullUrl.getKey() + "\"", "\"" + fullUrl.getValue() + "\"");
+            }
+            if (!resolved.equals(json)) {
+                resources.put(key, resolved);
+            }
+        }
+    }
+
+    /**
+     * Lists the resources of the type with the given identifier, or all of them paged by _count and _offset.
+     */
+    private void search(HttpExchange exchange, String type, Map<String, String> params) throws IOException {
+
+        Bundle response = new Bundle();
+        response.setType(Bundle.BundleType.SEARCHSET);
+        IParser parser = ctx.newJsonParser();
+
+        synchronized (this) {
+            List<String> matches = new ArrayList<>();
+            String identifier = params.get("identifier");
+            if (identifier != null) {
+                searches.incrementAndGet();
+                String id = ids.get(identifierKey(type, identifier));
+                if (id != null && resources.containsKey(type + "/" + id)) {
+                    matches.add(type + "/" + id);
+                }
+            }
+            else {
+                for (String key : versions.keySet()) {
+                    if (key.startsWith(type + "/") && resources.containsKey(key)) {
+                        matches.add(key);
+                    }
+                }
+            }
+
+            int count = params.containsKey("_count") ? Integer.parseInt(params.get("_count")) : 20;
+            int offset = params.containsKey("_offset") ? Integer.parseInt(params.get("_offset")) : 0;
+            response.setTotal(matches.size());
+            for (int i = offset; i < Math.min(offset + count, matches.size()); i++) {
+                String key = matches.get(i);
+                response.addEntry()
+                        .setFullUrl(getBaseUrl() + key)
+                        .setResource((Resource) parser.parseResource(resources.get(key)))
+                        .getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+            }
+            if (offset + count < matches.size()) {
+                response.addLink()
+                        .setRelation("next")
+                        .setUrl(getBaseUrl() + type + "?_count=" + count + "&_offset=" + (offset + count));
+            }
+        }
+        respond(exchange, 200, response);
+    }
+
+    private String rejected(Bundle request) {
+        String reject = this.reject;
+        if (reject != null) {
+            for (Bundle.BundleEntryComponent entry : request.getEntry()) {
+                if (entry.getRequest().getUrl().contains(reject)) {
+                    return entry.getRequest().getUrl();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Carries out one request, from a Bundle entry or a REST call, and returns its response with the resource read or
+     * written.
+     */
+    private Bundle.BundleEntryComponent process(Bundle.BundleEntryComponent entry) {
+
+        Bundle.BundleEntryComponent result = new Bundle.BundleEntryComponent();
+        Bundle.BundleEntryResponseComponent response = result.getResponse();
+        Bundle.BundleEntryRequestComponent request = entry.getRequest();
+        Bundle.HTTPVerb method = request.getMethod();
+
+        String url = request.getUrl();
+        String reject = this.reject;
+        if (reject != null && url.contains(reject)) {
+            response.setStatus("422 Unprocessable Entity");
+            response.setOutcome(outcome("Rejected " + url));
+            return result;
+        }
+
+        String type = url.split("[/?]", 2)[0];
+        if (method == Bundle.HTTPVerb.GET || method == Bundle.HTTPVerb.DELETE) {
+            if (url.indexOf('?') >= 0 || url.indexOf('/') < 0) {
+                response.setStatus("400 Bad Request");
+                response.setOutcome(outcome(method + " needs Type/id, not " + url));
+            }
+            else if (resources.containsKey(url)) {
+                if (method == Bundle.HTTPVerb.GET) {
+                    result.setResource((Resource) ctx.newJsonParser().parseResource(resources.get(url)));
+                    response.setStatus("200 OK");
+                    response.setEtag("W/\"" + versions.get(url) + "\"");
+                }
+                else {
+                    remove(resources, url);
+                    response.setStatus("204 No Content");
+                }
+            }
+            else if (versions.containsKey(url)) {
+                response.setStatus(method == Bundle.HTTPVerb.GET ? "410 Gone" : "204 No Content");
+            }
+            else {
+                response.setStatus("404 Not Found");
+                response.setOutcome(outcome(url + " not found"));
+            }
+            return result;
+        }
+
+        String search = null;
+        if (method == Bundle.HTTPVerb.POST && request.hasIfNoneExist()) {
+            search = type + "?" + request.getIfNoneExist();
+        }
+        else if (method == Bundle.HTTPVerb.PUT && url.indexOf('?') >= 0) {
+            search = url;
+        }
+
+        String id;
+        if (search != null) {
+            searches.incrementAndGet();
+            String searchKey = searchKey(search);
+            id = ids.get(searchKey);
+            if (id == null) {
+                id = String.valueOf(nextId++);
+                put(ids, searchKey, id);
+            }
+            else if (method == Bundle.HTTPVerb.POST && resources.containsKey(type + "/" + id)) {
+                // conditional create of an existing resource: no new version
+                int version = versions.get(type + "/" + id);
+                response.setStatus("200 OK");
+                response.setLocation(type + "/" + id + "/_history/" + version);
+                response.setEtag("W/\"" + version + "\"");
+                return result;
+            }
+        }
+        else if (method == Bundle.HTTPVerb.POST) {
+            id = String.valueOf(nextId++);
+        }
+        else {
+            id = url.substring(type.length() + 1);
+        }
+
+        String key = type + "/" + id;
+        boolean created = !resources.containsKey(key);
+        writes.incrementAndGet();
+        int version = versions.getOrDefault(key, 0) + 1;
+        put(versions, key, version);
+
+        Resource resource = entry.getResource();
+        if (resource == null) {
+            resource = (Resource) ctx.getResourceDefinition(type).newInstance();
+        }
+        resource.setId(key);
+        resource.getMeta().setVersionId(String.valueOf(version)).setLastUpdated(new java.util.Date());
+        put(resources, key, ctx.newJsonParser().encodeResourceToString(resource));
+        for (Identifier identifier : ctx.newTerser().getValues(resource, "identifier", Identifier.class)) {
+            if (identifier.hasSystem() && identifier.hasValue()) {
+                put(ids, type + "|" + identifier.getSystem() + "|" + identifier.getValue(), id);
+            }
+        }
+        result.setResource(resource);
+
+        response.setStatus(created ? "201 Created" : "200 OK");
+        response.setLocation(key + "/_history/" + version);
+        response.setEtag("W/\"" + version + "\"");
+        return result;
+    }
+
+    private <V> void put(Map<String, V> map, String key, V value) {
+        V previous = map.put(key, value);
+        if (undo != null) {
+            undo.add(previous != null ? () -> map.put(key, previous) : () -> map.remove(key));
+        }
+    }
+
+    private <V> void remove(Map<String, V> map, String key) {
+        V previous = map.remove(key);
+        if (undo != null && previous != null) {
+            undo.add(() -> map.put(key, previous));
+        }
+    }
+
+    /**
+     * The key a conditional URL is indexed by: Type|system|value for a search by identifier, otherwise the URL.
+     */
+    private static String searchKey(String search) {
+        int question = search.indexOf('?');
+        Map<String, String> params = params(search.substring(question + 1));
+        if (params.size() == 1 && params.containsKey("identifier")) {
+            return identifierKey(search.substring(0, question), params.get("identifier"));
+        }
+        return search;
+    }
+
+    private static String identifierKey(String type, String identifier) {
+        return identifier.indexOf('|') < 0 ? type + "||" + identifier : type + "|" + identifier;
+    }
+
+    /**
+     * The decoded parameters of a query string.
+     */
+    private static Map<String, String> params(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int eq = param.indexOf('=');
+                if (eq > 0) {
+                    params.put(decode(param.substring(0, eq)), decode(param.substring(eq + 1)));
+                }
+            }
+        }
+        return params;
+    }
+
+    private static String decode(String text) {
+        try {
+            return URLDecoder.decode(text, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static OperationOutcome outcome(String diagnostics) {
+        return outcome(OperationOutcome.IssueType.PROCESSING, diagnostics);
+    }
+
+    private static OperationOutcome outcome(OperationOutcome.IssueType type, String diagnostics) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(type)
+                .setDiagnostics(diagnostics);
+        return outcome;
+    }
+
+    private void respond(HttpExchange exchange, int status, Resource resource) throws IOException {
+        byte[] body = ctx.newJsonParser().encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/fhir+json;charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
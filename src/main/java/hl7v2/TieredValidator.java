@@ -0,0 +1,335 @@
+package hl7v2;
+
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Validates converted messages in two tiers: the {@link StructuralCheck} on every resource, and full instance
+ * validation through a {@link ValidationService} only where it is worth its cost.
+ *
+ * A message gets full validation when the structural check fails one of its resources, to find out what else is wrong;
+ * at random, for a given fraction of messages, to catch what the structural check does not look for; and for the
+ * first messages after a mapping changes, since a new mapping is where new kinds of errors come from. Mapping versions
+ * ({@link HL7Mapping#getVersion()}) are remembered in a properties file, if given, so a restart with the same mappings
+ * does not count as a change.
+ *
+ * Counts, failures and time are kept for each tier, and for full validation by the reason it ran.
+ */
+public class TieredValidator implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(TieredValidator.class);
+
+    /** Why a message was fully validated. */
+    public enum Reason {
+        STRUCTURAL_FAILURE, MAPPING_CHANGE, SAMPLED
+    }
+
+    private final ValidationService full;
+    private final double sampleRate;
+    private final Path versionsFile;
+
+    private final Properties versions = new Properties();
+    private final Map<String, Integer> remaining = new HashMap<>();
+
+    private final Tier structural = new Tier("structural");
+    private final Tier instance = new Tier("full");
+    private final Map<Reason, AtomicLong> reasons = new EnumMap<>(Reason.class);
+
+    /**
+     * @param sampleRate         fraction of messages fully validated at random
+     * @param afterMappingChange messages fully validated after a mapping's version changes
+     * @param versionsFile       where mapping versions are remembered, or null to treat every mapping as changed
+     */
+    public TieredValidator(ValidationService full, double sampleRate, int afterMappingChange, Path versionsFile)
+            throws IOException {
+
+        this.full = full;
+        this.sampleRate = sampleRate;
+        this.versionsFile = versionsFile;
+        for (Reason reason : Reason.values()) {
+            reasons.put(reason, new AtomicLong());
+        }
+
+        if (versionsFile != null && Files.exists(versionsFile)) {
+            try (Reader reader = Files.newBufferedReader(versionsFile, StandardCharsets.UTF_8)) {
+                versions.load(reader);
+            }
+        }
+        for (HL7Mapping mapping : new HL7Mapping[] { ADTParser.MAPPING, ORMParser.MAPPING }) {
+            if (!mapping.getVersion().equals(versions.getProperty(mapping.getName())) && afterMappingChange > 0) {
+                log.info("{} mapping is new or changed ({}), fully validating the next {} messages",
+                        mapping.getName(), mapping.getVersion(), afterMappingChange);
+                remaining.put(mapping.getName(), afterMappingChange);
+            }
+            else {
+                versions.setProperty(mapping.getName(), mapping.getVersion());
+            }
+        }
+    }
+
+    /**
+     * Checks the message's resources and returns the problems found, or an empty list.
+     */
+    public List<String> validate(ConversionResult result) throws IOException {
+
+        List<String> issues = Collections.emptyList();
+        long start = System.nanoTime();
+        for (Resource resource : result.getResources()) {
+            List<String> found = StructuralCheck.check(resource);
+            if (!found.isEmpty()) {
+                if (issues.isEmpty()) {
+                    issues = new ArrayList<>();
+                }
+                issues.addAll(found);
+            }
+        }
+        structural.record(result.getResources().size(), !issues.isEmpty(), System.nanoTime() - start);
+
+        Reason reason = !issues.isEmpty() ? Reason.STRUCTURAL_FAILURE
+                : mappingChanged(result.getMessageType()) ? Reason.MAPPING_CHANGE
+                : ThreadLocalRandom.current().nextDouble() < sampleRate ? Reason.SAMPLED
+                : null;
+        if (reason == null) {
+            return issues;
+        }
+        reasons.get(reason).incrementAndGet();
+
+        start = System.nanoTime();
+        boolean failed = false;
+        for (Resource resource : result.getResources()) {
+            ValidationResult validation = full.validate(resource);
+            for (SingleValidationMessage message : validation.getMessages()) {
+                ResultSeverityEnum severity = message.getSeverity();
+                if (severity == ResultSeverityEnum.ERROR || severity == ResultSeverityEnum.FATAL) {
+                    if (issues.isEmpty()) {
+                        issues = new ArrayList<>();
+                    }
+                    issues.add(message.getLocationString() + " " + message.getMessage());
+                    failed = true;
+                }
+            }
+        }
+        instance.record(result.getResources().size(), failed, System.nanoTime() - start);
+        return issues;
+    }
+
+    /**
+     * True, counting it down, if the message's mapping still has messages to be fully validated after a change.
+     */
+    private boolean mappingChanged(String messageType) throws IOException {
+        synchronized (remaining) {
+            Integer left = remaining.get(messageType);
+            if (left == null) {
+                return false;
+            }
+            if (left > 1) {
+                remaining.put(messageType, left - 1);
+            }
+            else {
+                remaining.remove(messageType);
+                HL7Mapping mapping = "ADT".equals(messageType) ? ADTParser.MAPPING : ORMParser.MAPPING;
+                versions.setProperty(messageType, mapping.getVersion());
+                save();
+            }
+            return true;
+        }
+    }
+
+    private void save() throws IOException {
+        if (versionsFile != null) {
+            try (Writer writer = Files.newBufferedWriter(versionsFile, StandardCharsets.UTF_8)) {
+                versions.store(writer, "Mapping versions already fully validated");
+            }
+        }
+    }
+
+    public Tier getStructural() {
+        return structural;
+    }
+
+    public Tier getFull() {
+        return instance;
+    }
+
+    /** Messages fully validated for the reason. */
+    public long getFullCount(Reason reason) {
+        return reasons.get(reason).get();
+    }
+
+    @Override
+    public String toString() {
+        return structural + "; " + instance + " " + reasons;
+    }
+
+    /**
+     * Logs the statistics.
+     */
+    @Override
+    public void close() {
+        log.info("Tiered validation: {}", this);
+    }
+
+    /**
+     * Statistics of one tier, by resource; a message counts as failed if any of its resources did.
+     */
+    public static class Tier {
+
+        private final String name;
+        private final AtomicLong messages = new AtomicLong();
+        private final AtomicLong resources = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        Tier(String name) {
+            this.name = name;
+        }
+
+        void record(int resourceCount, boolean failed, long elapsed) {
+            messages.incrementAndGet();
+            resources.addAndGet(resourceCount);
+            if (failed) {
+                failures.incrementAndGet();
+            }
+            nanos.addAndGet(elapsed);
+        }
+
+        public long getMessages() {
+            return messages.get();
+        }
+
+        public long getResources() {
+            return resources.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public double getFailureRate() {
+            long count = messages.get();
+            return count == 0 ? 0 : (double) failures.get() / count;
+        }
+
+        /** Mean time per resource. */
+        public double getMicrosPerResource() {
+            long count = resources.get();
+            return count == 0 ? 0 : nanos.get() / 1000.0 / count;
+        }
+
+        public long getMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(nanos.get());
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d messages, %d resources, %.1f%% failed, %.1f us/resource, %d ms", name,
+                    getMessages(), getResources(), getFailureRate() * 100, getMicrosPerResource(), getMillis());
+        }
+    }
+
+    /**
+     * Usage: TieredValidator [file ...] [--repeat n] [--sample f] [--after-change n] [--versions file]
+     *
+     * Converts the files (ADT-2 and ORM-1 by default) --repeat times (10) and validates them, first fully, then in
+     * tiers with full validation for a fraction --sample of messages (0.05) and the first --after-change messages (20)
+     * of a mapping not recorded in --versions. Full validation has no result cache here, so the times are what it
+     * costs. Logs the statistics of both.
+     */
+    public static void main(String[] args) throws Exception {
+
+        List<Path> files = new ArrayList<>();
+        int repeat = 10;
+        double sample = 0.05;
+        int afterChange = 20;
+        Path versionsFile = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--repeat".equals(args[i])) {
+                repeat = Integer.parseInt(args[++i]);
+            }
+            else if ("--sample".equals(args[i])) {
+                sample = Double.parseDouble(args[++i]);
+            }
+            else if ("--after-change".equals(args[i])) {
+                afterChange = Integer.parseInt(args[++i]);
+            }
+            else if ("--versions".equals(args[i])) {
+                versionsFile = Paths.get(args[++i]);
+            }
+            else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            files.add(Paths.get("./src/main/resources/ADT-2.hl7"));
+            files.add(Paths.get("./src/main/resources/ORM-1.hl7"));
+        }
+
+        HL7Converter converter = HL7Converter.getInstance();
+        List<ConversionResult> results = new ArrayList<>();
+        List<Resource> warmup = new ArrayList<>();
+        for (int r = 0; r < repeat; r++) {
+            for (Path file : files) {
+                try (HL7BatchReader reader = new HL7BatchReader(file)) {
+                    while (reader.hasNext()) {
+                        results.add(converter.convert(reader.next()));
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < Math.min(10, results.size()); i++) {
+            warmup.addAll(results.get(i).getResources());
+        }
+
+        try (ValidationService service = new ValidationService(converter.getFhirContext(), 1, 0, warmup)) {
+
+            long start = System.nanoTime();
+            long failed = 0;
+            long resources = 0;
+            for (ConversionResult result : results) {
+                boolean ok = true;
+                for (Resource resource : result.getResources()) {
+                    ok &= service.validate(resource).isSuccessful();
+                    resources++;
+                }
+                failed += ok ? 0 : 1;
+            }
+            long elapsed = System.nanoTime() - start;
+            log.info("Full validation of everything: {} messages, {} resources, {} failed, {} ms", results.size(),
+                    resources, failed, TimeUnit.NANOSECONDS.toMillis(elapsed));
+
+            start = System.nanoTime();
+            try (TieredValidator tiered = new TieredValidator(service, sample, afterChange, versionsFile)) {
+                failed = 0;
+                for (ConversionResult result : results) {
+                    failed += tiered.validate(result).isEmpty() ? 0 : 1;
+                }
+                elapsed = System.nanoTime() - start;
+                log.info("Tiered validation: {} messages, {} failed, {} ms", results.size(), failed,
+                        TimeUnit.NANOSECONDS.toMillis(elapsed));
+            }
+        }
+    }
+}
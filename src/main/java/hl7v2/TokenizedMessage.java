@@ -0,0 +1,273 @@
+package hl7v2;
+
+import ca.uhn.hl7v2.HL7Exception;
+
+import java.util.Arrays;
+
+/**
+ * An HL7 v2 message tokenized in place, as a fast alternative to parsing it into the HAPI object model.
+ *
+ * Tokenizing makes one pass over the text and records where each segment and field starts and ends. Nothing is
+ * copied: components are found by scanning the field when it is read, and a String is only created for the values
+ * the mapping code actually asks for. The encoding characters are taken from MSH-2, and escape sequences for the
+ * delimiters (\F\, \S\, \T\, \R\, \E\) are resolved when a value is read, as HAPI does when it parses.
+ */
+public class TokenizedMessage {
+
+    private final String text;
+
+    private final char fieldSeparator;
+    private final char componentSeparator;
+    private final char repetitionSeparator;
+    private final char escapeCharacter;
+    private final char subcomponentSeparator;
+
+    private int segmentCount;
+    private int[] segmentStart = new int[16];
+    private int[] segmentFirstField = new int[16];
+    private int[] segmentFieldCount = new int[16];
+
+    private int fieldCount;
+    private int[] fieldStart = new int[256];
+    private int[] fieldEnd = new int[256];
+
+    private TokenizedMessage(String text) throws HL7Exception {
+
+        if (text.length() < 8 || !text.startsWith("MSH")) {
+            throw new HL7Exception("Message does not start with an MSH segment");
+        }
+
+        this.text = text;
+        this.fieldSeparator = text.charAt(3);
+        this.componentSeparator = text.charAt(4);
+        this.repetitionSeparator = encodingCharacter(1, '~');
+        this.escapeCharacter = encodingCharacter(2, '\\');
+        this.subcomponentSeparator = encodingCharacter(3, '&');
+
+        tokenize();
+    }
+
+    /**
+     * Segments may be separated by CR, LF or CRLF.
+     */
+    public static TokenizedMessage tokenize(String text) throws HL7Exception {
+        return new TokenizedMessage(text);
+    }
+
+    private char encodingCharacter(int index, char defaultValue) {
+        char c = text.charAt(4 + index);
+        return c == fieldSeparator ? defaultValue : c;
+    }
+
+    private void tokenize() {
+
+        int length = text.length();
+        int i = 0;
+
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == '\r' || c == '\n') {
+                i++;
+                continue;
+            }
+
+            int end = i;
+            while (end < length && (c = text.charAt(end)) != '\r' && c != '\n') {
+                end++;
+            }
+
+            int segment = addSegment(i);
+            int start;
+            if (text.startsWith("MSH", i)) {
+                // MSH-1 is the field separator itself
+                addField(segment, i + 3, i + 4);
+                start = i + 4;
+            }
+            else {
+                start = indexOf(fieldSeparator, i, end);
+                if (start == end) {
+                    i = end;
+                    continue;
+                }
+                start++;
+            }
+
+            for (int j = start; j < end; j++) {
+                if (text.charAt(j) == fieldSeparator) {
+                    addField(segment, start, j);
+                    start = j + 1;
+                }
+            }
+            addField(segment, start, end);
+            i = end;
+        }
+    }
+
+    private int addSegment(int start) {
+        if (segmentCount == segmentStart.length) {
+            segmentStart = Arrays.copyOf(segmentStart, segmentCount * 2);
+            segmentFirstField = Arrays.copyOf(segmentFirstField, segmentCount * 2);
+            segmentFieldCount = Arrays.copyOf(segmentFieldCount, segmentCount * 2);
+        }
+        segmentStart[segmentCount] = start;
+        segmentFirstField[segmentCount] = fieldCount;
+        segmentFieldCount[segmentCount] = 0;
+        return segmentCount++;
+    }
+
+    private void addField(int segment, int start, int end) {
+        if (fieldCount == fieldStart.length) {
+            fieldStart = Arrays.copyOf(fieldStart, fieldCount * 2);
+            fieldEnd = Arrays.copyOf(fieldEnd, fieldCount * 2);
+        }
+        fieldStart[fieldCount] = start;
+        fieldEnd[fieldCount] = end;
+        fieldCount++;
+        segmentFieldCount[segment]++;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Position of the first segment with the given name, or -1.
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < segmentCount; i++) {
+            int start = segmentStart[i];
+            if (text.startsWith(name, start) && isEndOfName(start + name.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isEndOfName(int index) {
+        if (index >= text.length()) {
+            return true;
+        }
+        char c = text.charAt(index);
+        return c == fieldSeparator || c == '\r' || c == '\n';
+    }
+
+    /**
+     * A view of the first occurrence of each named segment, for use by the mapping code.
+     */
+    public FieldSource select(String... names) {
+
+        int[] positions = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            positions[i] = indexOf(names[i]);
+        }
+
+        return new FieldSource() {
+            @Override
+            public boolean contains(int segment) {
+                return positions[segment] >= 0;
+            }
+
+            @Override
+            public String get(int segment, int field, int component) {
+                int position = positions[segment];
+                return position < 0 ? null : value(position, field, component);
+            }
+        };
+    }
+
+    /**
+     * The value of a field component in the segment at the given position. Returns null for empty values.
+     */
+    public String value(int segment, int field, int component) {
+
+        if (field < 1 || field > segmentFieldCount[segment]) {
+            return null;
+        }
+
+        int index = segmentFirstField[segment] + field - 1;
+        int start = fieldStart[index];
+        int end = fieldEnd[index];
+
+        // MSH-1 and MSH-2 hold the encoding characters and are not split any further
+        if (field <= 2 && text.startsWith("MSH", segmentStart[segment])) {
+            return component == 1 && end > start ? text.substring(start, end) : null;
+        }
+
+        end = indexOf(repetitionSeparator, start, end);
+
+        for (int i = 1; i < component; i++) {
+            start = indexOf(componentSeparator, start, end);
+            if (start == end) {
+                return null;
+            }
+            start++;
+        }
+        end = indexOf(componentSeparator, start, end);
+        end = indexOf(subcomponentSeparator, start, end);
+
+        if (start == end) {
+            return null;
+        }
+        if (indexOf(escapeCharacter, start, end) < end) {
+            String value = unescape(start, end);
+            return value.isEmpty() ? null : value;
+        }
+        return text.substring(start, end);
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private String unescape(int start, int end) {
+
+        StringBuilder value = new StringBuilder(end - start);
+        int i = start;
+        while (i < end) {
+            char c = text.charAt(i);
+            int close = c == escapeCharacter ? indexOf(escapeCharacter, i + 1, end) : end;
+            if (close == end) {
+                value.append(c);
+                i++;
+                continue;
+            }
+
+            if (close == i + 2) {
+                switch (text.charAt(i + 1)) {
+                    case 'F':
+                        value.append(fieldSeparator);
+                        i = close + 1;
+                        continue;
+                    case 'S':
+                        value.append(componentSeparator);
+                        i = close + 1;
+                        continue;
+                    case 'T':
+                        value.append(subcomponentSeparator);
+                        i = close + 1;
+                        continue;
+                    case 'R':
+                        value.append(repetitionSeparator);
+                        i = close + 1;
+                        continue;
+                    case 'E':
+                        value.append(escapeCharacter);
+                        i = close + 1;
+                        continue;
+                    default:
+                        break;
+                }
+            }
+
+            // other sequences (formatting, hex, character sets) are kept as they are
+            value.append(text, i, close + 1);
+            i = close + 1;
+        }
+        return value.toString();
+    }
+}
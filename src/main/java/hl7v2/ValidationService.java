@@ -0,0 +1,317 @@
+package hl7v2;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.common.hapi.validation.support.CachingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.SnapshotGeneratingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
+import org.hl7.fhir.r4.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Validates resources with the instance validator, set up once and ready before the first resource arrives.
+ *
+ * The constructor builds the validation support chain, fetches the structure definitions of the resource types the
+ * converter produces and makes sure they have snapshots, then validates sample resources on each worker so that the
+ * validator has loaded everything else it needs, including the value sets of the codes in the samples. That takes
+ * seconds, which ValidationExample pays on its first validation; here it is paid once per process.
+ *
+ * Resources are validated on a pool of worker threads sharing one validator. Results are cached by the SHA-256 of the
+ * resource's compact JSON without its id, so a resource identical to one already validated, as feeds that resend the
+ * same demographics produce, gets the earlier result.
+ */
+public class ValidationService implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ValidationService.class);
+
+    /** The types the converter produces. */
+    static final List<Class<? extends Resource>> TYPES = Arrays.asList(
+            Patient.class, Encounter.class, Location.class, Practitioner.class, ServiceRequest.class);
+
+    private final FhirValidator validator;
+    private final ExecutorService executor;
+    private final ThreadLocal<IParser> parser;
+    private final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(ValidationService::sha256);
+
+    private final int cacheSize;
+    private final Map<ByteBuffer, ValidationResult> cache;
+
+    private final AtomicLong validated = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * @param threads   worker threads
+     * @param cacheSize results kept, least recently used first out; 0 for none
+     */
+    public ValidationService(FhirContext ctx, int threads, int cacheSize) {
+        this(ctx, threads, cacheSize, null);
+    }
+
+    /**
+     * @param warmup resources like those to be validated, whose first validation loads the terminology they use; if
+     *               null, an empty instance of each type
+     */
+    public ValidationService(FhirContext ctx, int threads, int cacheSize, List<? extends Resource> warmup) {
+
+        long start = System.nanoTime();
+
+        DefaultProfileValidationSupport defaults = new DefaultProfileValidationSupport(ctx);
+        PrePopulatedValidationSupport profiles = new PrePopulatedValidationSupport(ctx);
+        ValidationSupportChain chain = new ValidationSupportChain(
+                profiles,
+                defaults,
+                new CommonCodeSystemsTerminologyService(ctx),
+                new InMemoryTerminologyServerValidationSupport(ctx),
+                new SnapshotGeneratingValidationSupport(ctx));
+        IValidationSupport support = new CachingValidationSupport(chain);
+
+        for (Class<? extends Resource> type : TYPES) {
+            String url = "http://hl7.org/fhir/StructureDefinition/" + ctx.getResourceType(type);
+            StructureDefinition definition = (StructureDefinition) support.fetchStructureDefinition(url);
+            if (!definition.hasSnapshot()) {
+                definition = (StructureDefinition) support.generateSnapshot(new ValidationSupportContext(support),
+                        definition, url, null, definition.getName());
+            }
+            profiles.addStructureDefinition(definition);
+        }
+
+        this.validator = ctx.newValidator();
+        this.validator.registerValidatorModule(new FhirInstanceValidator(support));
+        this.parser = ThreadLocal.withInitial(() -> ctx.newJsonParser().setOmitResourceId(true));
+
+        this.cacheSize = cacheSize;
+        this.cache = new LinkedHashMap<ByteBuffer, ValidationResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, ValidationResult> eldest) {
+                return size() > ValidationService.this.cacheSize;
+            }
+        };
+
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "fhir-validator-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (warmup == null) {
+            List<Resource> empty = new ArrayList<>();
+            for (Class<? extends Resource> type : TYPES) {
+                try {
+                    empty.add(type.getDeclaredConstructor().newInstance());
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            warmup = empty;
+        }
+
+        // load everything else the validator needs, on every worker
+        List<? extends Resource> samples = warmup;
+        List<Future<?>> warmups = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            warmups.add(executor.submit(() -> {
+                for (Resource sample : samples) {
+                    validator.validateWithResult(sample);
+                }
+            }));
+        }
+        for (Future<?> worker : warmups) {
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Validator warm-up failed", e.getCause());
+            }
+        }
+
+        log.info("Validation service ready with {} threads in {} ms", threads,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Validates on the calling thread, or returns the cached result for identical content.
+     */
+    public ValidationResult validate(Resource resource) {
+
+        ByteBuffer key = null;
+        if (cacheSize > 0) {
+            key = key(resource);
+            synchronized (cache) {
+                ValidationResult result = cache.get(key);
+                if (result != null) {
+                    hits.incrementAndGet();
+                    return result;
+                }
+            }
+        }
+
+        ValidationResult result = validator.validateWithResult(resource);
+        validated.incrementAndGet();
+        if (key != null) {
+            synchronized (cache) {
+                cache.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Validates on the worker pool.
+     */
+    public CompletableFuture<ValidationResult> submit(Resource resource) {
+        return CompletableFuture.supplyAsync(() -> validate(resource), executor);
+    }
+
+    /**
+     * Validates the resources on the worker pool and returns their results in the same order.
+     */
+    public List<ValidationResult> validateAll(List<? extends Resource> resources) {
+        List<CompletableFuture<ValidationResult>> futures = new ArrayList<>(resources.size());
+        for (Resource resource : resources) {
+            futures.add(submit(resource));
+        }
+        List<ValidationResult> results = new ArrayList<>(resources.size());
+        for (CompletableFuture<ValidationResult> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    private ByteBuffer key(Resource resource) {
+        String json = parser.get().encodeResourceToString(resource);
+        byte[] hash = digest.get().digest(json.getBytes(StandardCharsets.UTF_8));
+        return ByteBuffer.wrap(hash, 0, 16).slice();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Resources run through the validator, not counting cache hits. */
+    public long getValidated() {
+        return validated.get();
+    }
+
+    public long getCacheHits() {
+        return hits.get();
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Usage: ValidationService [file ...] [--repeat n] [--threads n]
+     *
+     * Converts the files (ADT-2 and ORM-1 by default) --repeat times (5) and validates the resources, first with a
+     * service of --threads workers (the number of processors by default), then as ValidationExample does with a new
+     * validator. Logs the time to the first result and for all resources for both, and the cache hits.
+     */
+    public static void main(String[] args) throws Exception {
+
+        List<Path> files = new ArrayList<>();
+        int repeat = 5;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--repeat".equals(args[i])) {
+                repeat = Integer.parseInt(args[++i]);
+            }
+            else if ("--threads".equals(args[i])) {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            files.add(Paths.get("./src/main/resources/ADT-2.hl7"));
+            files.add(Paths.get("./src/main/resources/ORM-1.hl7"));
+        }
+
+        HL7Converter converter = HL7Converter.getInstance();
+        List<Resource> resources = new ArrayList<>();
+        for (int r = 0; r < repeat; r++) {
+            for (Path file : files) {
+                try (HL7BatchReader reader = new HL7BatchReader(file)) {
+                    while (reader.hasNext()) {
+                        resources.addAll(converter.convert(reader.next()).getResources());
+                    }
+                }
+            }
+        }
+        FhirContext ctx = converter.getFhirContext();
+
+        List<Resource> warmup = new ArrayList<>();
+        for (Path file : files) {
+            try (HL7BatchReader reader = new HL7BatchReader(file)) {
+                warmup.addAll(converter.convert(reader.next()).getResources());
+            }
+        }
+
+        long start;
+        long first;
+        try (ValidationService service = new ValidationService(ctx, threads, 10_000, warmup)) {
+            start = System.nanoTime();
+            service.validate(resources.get(0));
+            first = System.nanoTime() - start;
+            List<ValidationResult> results = service.validateAll(resources.subList(1, resources.size()));
+            long errors = results.stream().filter(result -> !result.isSuccessful()).count();
+            log.info("Service: first result after {} ms, {} resources in {} ms, {} validated, {} cache hits, "
+                            + "{} with errors", TimeUnit.NANOSECONDS.toMillis(first), resources.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), service.getValidated(),
+                    service.getCacheHits(), errors);
+        }
+
+        start = System.nanoTime();
+        FhirValidator validator = ctx.newValidator();
+        validator.registerValidatorModule(new FhirInstanceValidator(ctx));
+        validator.validateWithResult(resources.get(0));
+        first = System.nanoTime() - start;
+        for (Resource resource : resources.subList(1, resources.size())) {
+            validator.validateWithResult(resource);
+        }
+        log.info("New validator: first result after {} ms, {} resources in {} ms",
+                TimeUnit.NANOSECONDS.toMillis(first), resources.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+}